@@ -0,0 +1,333 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.apache.commons.compress.archivers.zip.DefaultBackingStoreSupplier;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.InputStreamSupplier;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Builds a zip file. Works like ZipGenerator, except:
+ *
+ *  - each entry is written (or, with more than one thread, handed to a compression thread) when it's added, so
+ *    the content isn't held in memory until close(). Folders are listed when they're added, so the archive can
+ *    be built inside the folder it's archiving
+ *  - given an executor, the entries are compressed in parallel, into scratch files in the temp folder, and 
+ *    copied into the zip in the order they were added when it's closed. The executor can be shared by several
+ *    archives being built at once
+ *  - the zip is written next to its final location and moved into place, so there's never a partly written
+ *    zip at the path, and no second copy. If the archive isn't finished, discard() cleans up after it
+ */
+public class ArchiveBuilder {
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private File target;
+  private File temp;
+  private Set<String> names = new HashSet<>();
+
+  // with one thread
+  private ZipArchiveOutputStream zip;
+
+  // with an executor
+  private ParallelScatterZipCreator creator;
+
+  private boolean closed;
+
+  /**
+   * @param tempDir where the compression threads keep their scratch files (the system temp folder if null)
+   * @param executor the threads to compress the entries on, or null to compress them on this thread as they're added
+   */
+  public ArchiveBuilder(String path, String tempDir, ExecutorService executor) throws IOException {
+    super();
+    this.target = new File(path);
+    this.temp = new File(path+TEMP_SUFFIX);
+    if (executor == null) {
+      zip = new ZipArchiveOutputStream(temp);
+    } else {
+      creator = new ParallelScatterZipCreator(new SharedExecutor(executor), new DefaultBackingStoreSupplier(tempDir == null ? null : Paths.get(tempDir)));
+    }
+  }
+
+  /**
+   * an executor for compressing archives with the given number of threads, or null if there's only one
+   */
+  public static ExecutorService makeExecutor(int threads) {
+    if (threads <= 1) {
+      return null;
+    }
+    return Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "igpub-zip");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  public int count() {
+    return names.size();
+  }
+
+  public void addFileName(String statedPath, String actualPath, boolean omitIfExists) throws IOException {
+    File f = new File(actualPath);
+    if (add(statedPath, omitIfExists)) {
+      write(makeEntry(statedPath, f.lastModified()), () -> new FileInputStream(f));
+    }
+  }
+
+  public void addBytes(String statedPath, byte[] content, boolean omitIfExists) throws IOException {
+    if (add(statedPath, omitIfExists)) {
+      write(makeEntry(statedPath, System.currentTimeMillis()), () -> new ByteArrayInputStream(content));
+    }
+  }
+
+  public void addFileSource(String statedPath, String content, boolean omitIfExists) throws IOException {
+    addBytes(statedPath, content.getBytes(StandardCharsets.UTF_8), omitIfExists);
+  }
+
+  /**
+   * adds all the files in the folder and its sub-folders (except this archive itself), in name order
+   */
+  public void addFolder(String actualDir, String statedDir, boolean omitIfExists) throws IOException {
+    File fd = new File(actualDir);
+    String[] list = fd.list();
+    if (list == null) {
+      throw new IOException("Unable to list "+actualDir);
+    }
+    Arrays.sort(list);
+    for (String name : list) {
+      File f = new File(fd, name);
+      if (f.isDirectory()) {
+        addFolder(f.getAbsolutePath(), statedDir+name+"/", omitIfExists);
+      } else if (!f.getAbsoluteFile().equals(target.getAbsoluteFile()) && !f.getAbsoluteFile().equals(temp.getAbsoluteFile())) {
+        addFileName(statedDir+name, f.getAbsolutePath(), omitIfExists);
+      }
+    }
+  }
+
+  private boolean add(String statedPath, boolean omitIfExists) throws IOException {
+    if (!names.add(statedPath)) {
+      if (omitIfExists) {
+        return false;
+      }
+      throw new ZipException("duplicate entry: "+statedPath);
+    }
+    return true;
+  }
+
+  private interface IContentSource {
+    InputStream open() throws IOException;
+  }
+
+  private void write(ZipArchiveEntry entry, IContentSource source) throws IOException {
+    if (zip != null) {
+      zip.putArchiveEntry(entry);
+      try (InputStream s = source.open()) {
+        IOUtils.copy(s, zip);
+      }
+      zip.closeArchiveEntry();
+    } else {
+      creator.addArchiveEntry(entry, supplier(source));
+    }
+  }
+
+  public void close() throws IOException {
+    closed = true;
+    try {
+      finish();
+      move();
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * if the archive wasn't closed (something went wrong while building it), stops building it, and deletes what was 
+   * written so far. Nothing is left at the path or in the temp folder. Does nothing if it was closed
+   */
+  public void discard() {
+    if (!closed) {
+      closed = true;
+      try {
+        finish();
+      } catch (IOException e) {
+        // nothing - it's being thrown away
+      } finally {
+        temp.delete();
+      }
+    }
+  }
+
+  private void finish() throws IOException {
+    if (zip != null) {
+      zip.close();
+    } else {
+      try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(temp)) {
+        writeParallel(out);
+      }
+    }
+  }
+
+  private void writeParallel(ZipArchiveOutputStream out) throws IOException {
+    try {
+      creator.writeTo(out);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted building "+target.getName(), e);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      throw new IOException("Error building "+target.getName()+": "+cause.getMessage(), cause);
+    }
+  }
+
+  /**
+   * this archive's share of an executor. ParallelScatterZipCreator shuts its executor down and waits for it to 
+   * terminate when it writes the zip, which mustn't stop the executor, since other archives may be using it; 
+   * instead it stops this archive submitting work, and waits for this archive's tasks to finish
+   */
+  private static class SharedExecutor extends AbstractExecutorService {
+    private ExecutorService executor;
+    private int running;
+    private boolean shutdown;
+
+    public SharedExecutor(ExecutorService executor) {
+      super();
+      this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(Runnable command) {
+      if (shutdown) {
+        throw new RejectedExecutionException("The archive has been written");
+      }
+      running++;
+      try {
+        executor.execute(() -> {
+          try {
+            command.run();
+          } finally {
+            finished();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        running--;
+        throw e;
+      }
+    }
+
+    private synchronized void finished() {
+      running--;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+      shutdown = true;
+      return new ArrayList<>();
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+      return shutdown && running == 0;
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      long end = System.nanoTime() + unit.toNanos(timeout);
+      while (running > 0) {
+        long left = end - System.nanoTime();
+        if (left <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, left);
+      }
+      return true;
+    }
+  }
+
+  private InputStreamSupplier supplier(IContentSource source) {
+    return () -> {
+      try {
+        return source.open();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    };
+  }
+
+  private ZipArchiveEntry makeEntry(String name, long time) {
+    ZipArchiveEntry res = new ZipArchiveEntry(name);
+    res.setMethod(ZipEntry.DEFLATED);
+    res.setTime(time);
+    return res;
+  }
+
+  private void move() throws IOException {
+    try {
+      Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+}
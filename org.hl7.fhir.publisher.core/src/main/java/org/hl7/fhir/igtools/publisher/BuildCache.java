@@ -0,0 +1,265 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r5.context.ILoggingService;
+import org.hl7.fhir.r5.context.ILoggingService.LogCategory;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.model.JsonProperty;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+
+/**
+ * A content addressed cache of work done by the publisher, kept on disk between runs. At present, only the
+ * results of validation are cached; everything else is done on every run.
+ * 
+ * Each entry is stored under a key that is a SHA-256 hash of the source of the file and a fingerprint 
+ * of the build as a whole (publisher version, FHIR version, the packages that were loaded, the template, 
+ * the configuration, and which resources the IG contains). If any of that changes, the key changes, and 
+ * the entry is simply never found again.
+ * 
+ * Each entry also records the content hashes of the other files in the IG that the work depended on (the
+ * definitions it used, and the resources it refers to). The entry is only used if all of those files are 
+ * unchanged, so editing one resource only invalidates the entries that depended on it.
+ * 
+ * Entries that weren't used in a run are removed at the end of it, so the cache only ever holds 
+ * the last build.
+ */
+public class BuildCache {
+
+  private static final String FORMAT_VERSION = "2";
+  
+  private String folder;
+  private ILoggingService logger;
+  private String fingerprint;
+  private Set<String> used = ConcurrentHashMap.newKeySet();
+  private int hits;
+  private int misses;
+
+  public BuildCache(String folder, ILoggingService logger) throws IOException {
+    super();
+    this.folder = folder;
+    this.logger = logger;
+    Utilities.createDirectory(folder);
+  }
+
+  public String getFolder() {
+    return folder;
+  }
+
+  /**
+   * set the fingerprint of the build from all the things that every entry depends on 
+   */
+  public void setFingerprint(List<String> parts) {
+    StringBuilder b = new StringBuilder();
+    b.append(FORMAT_VERSION);
+    for (String s : parts) {
+      b.append("|");
+      b.append(s);
+    }
+    fingerprint = hash(b.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  public String key(FetchedFile f, String phase) {
+    return hash((phase+"|"+fingerprint+"|"+f.getPath()+"|"+f.getContentHash()).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param hashes the current content hash of each file in the IG, by path
+   * @return the cached entry, or null if there isn't one, it can't be read, or one of the files it depended on has changed
+   */
+  public JsonObject load(String key, Map<String, String> hashes) {
+    used.add(key);
+    File f = new File(filename(key));
+    if (f.exists()) {
+      try {
+        JsonObject json = JsonParser.parseObject(TextFile.fileToBytes(f));
+        if (isCurrent(json.getJsonObject("dependencies"), hashes)) {
+          synchronized (this) {
+            hits++;
+          }
+          return json.getJsonObject("content");
+        }
+      } catch (Exception e) {
+        // a damaged entry is just a miss
+      }
+    }
+    synchronized (this) {
+      misses++;
+    }
+    return null;
+  }
+
+  private boolean isCurrent(JsonObject dependencies, Map<String, String> hashes) {
+    if (dependencies == null) {
+      return false;
+    }
+    for (JsonProperty p : dependencies.getProperties()) {
+      if (!p.getValue().asString().equals(hashes.get(p.getName()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param dependencies the content hash of each file the entry depended on, by path
+   */
+  public void save(String key, JsonObject content, Map<String, String> dependencies) throws IOException {
+    used.add(key);
+    JsonObject json = new JsonObject();
+    JsonObject deps = new JsonObject();
+    json.add("dependencies", deps);
+    for (String path : dependencies.keySet()) {
+      deps.add(path, dependencies.get(path));
+    }
+    json.add("content", content);
+    File f = new File(filename(key));
+    File tmp = new File(f.getAbsolutePath()+"."+Thread.currentThread().getId()+".tmp");
+    TextFile.stringToFile(JsonParser.compose(json, false), tmp);
+    try {
+      Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      if (logger != null) {
+        logger.logDebugMessage(LogCategory.PROGRESS, "Build cache: atomic move not supported in "+folder+", replacing "+f.getName()+" directly");
+      }
+      Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * remove everything that wasn't used in this run
+   */
+  public void prune() {
+    File[] files = new File(folder).listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        String key = name.endsWith(".json") ? name.substring(0, name.length()-5) : null;
+        if (key == null || !used.contains(key)) {
+          f.delete();
+        }
+      }
+    }
+  }
+
+  public String summary() {
+    return Integer.toString(hits)+" hits, "+Integer.toString(misses)+" misses";
+  }
+
+  private String filename(String key) {
+    return folder+File.separator+key+".json";
+  }
+
+  public static String hash(byte[] content) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] digest = md.digest(content);
+      StringBuilder b = new StringBuilder();
+      for (byte bt : digest) {
+        b.append(String.format("%02x", bt));
+      }
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  public static JsonObject messageToJson(ValidationMessage vm) {
+    JsonObject json = new JsonObject();
+    json.add("source", vm.getSource().name());
+    json.add("type", vm.getType().name());
+    json.add("level", vm.getLevel().name());
+    json.add("line", vm.getLine());
+    json.add("col", vm.getCol());
+    addIfNotNull(json, "location", vm.getLocation());
+    addIfNotNull(json, "message", vm.getMessage());
+    addIfNotNull(json, "html", vm.getHtml());
+    addIfNotNull(json, "messageId", vm.getMessageId());
+    addIfNotNull(json, "locationLink", vm.getLocationLink());
+    addIfNotNull(json, "txLink", vm.getTxLink());
+    addIfNotNull(json, "server", vm.getServer());
+    addIfNotNull(json, "sliceHtml", vm.getSliceHtml());
+    if (vm.getSliceText() != null) {
+      for (String st : vm.getSliceText()) {
+        json.forceArray("sliceText").add(st);
+      }
+    }
+    if (vm.isSignpost()) {
+      json.add("signpost", true);
+    }
+    if (vm.isSlicingHint()) {
+      json.add("slicingHint", true);
+    }
+    return json;
+  }
+
+  public static ValidationMessage messageFromJson(JsonObject json) {
+    ValidationMessage vm = new ValidationMessage(Source.valueOf(json.asString("source")), IssueType.valueOf(json.asString("type")), 
+        Integer.parseInt(json.asString("line")), Integer.parseInt(json.asString("col")), json.asString("location"), json.asString("message"), 
+        json.asString("html"), IssueSeverity.valueOf(json.asString("level")));
+    vm.setMessageId(json.asString("messageId"));
+    vm.setLocationLink(json.asString("locationLink"));
+    vm.setTxLink(json.asString("txLink"));
+    vm.setServer(json.asString("server"));
+    if (json.has("sliceHtml")) {
+      vm.setSliceHtml(json.asString("sliceHtml"), json.has("sliceText") ? json.getJsonArray("sliceText").asStrings().toArray(new String[0]) : null);
+    }
+    vm.setSignpost(json.asBoolean("signpost"));
+    vm.setSlicingHint(json.asBoolean("slicingHint"));
+    return vm;
+  }
+
+  public static List<ValidationMessage> messagesFromJson(List<JsonObject> list) {
+    List<ValidationMessage> res = new ArrayList<>();
+    for (JsonObject json : list) {
+      res.add(messageFromJson(json));
+    }
+    return res;
+  }
+
+  private static void addIfNotNull(JsonObject json, String name, String value) {
+    if (value != null) {
+      json.add(name, value);
+    }
+  }
+}
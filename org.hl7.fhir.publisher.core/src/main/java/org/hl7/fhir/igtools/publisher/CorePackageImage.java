@@ -0,0 +1,133 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonArray;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+/**
+ * What the publisher has learned about a core package from loading it before, kept beside the package cache.
+ *
+ * When the IG isn't R5, the publisher makes sure every StructureDefinition in the core package has its element
+ * ids, which means loading and converting every one of them up front (the context would otherwise only load
+ * them as they're used). Almost all of them already have their ids, so the image records which ones didn't,
+ * and later runs only have to fix those.
+ *
+ * The image is keyed by the package id, version and date, and the version of the publisher, so it's
+ * replaced whenever any of those change.
+ */
+public class CorePackageImage {
+
+  private static final String FORMAT_VERSION = "1";
+
+  private String filename;
+  private String key;
+  private List<String> needIds = new ArrayList<>();
+
+  private CorePackageImage(String folder, NpmPackage pi, String publisherVersion) throws IOException {
+    super();
+    filename = Utilities.path(folder, "publisher-images", pi.name()+"#"+pi.version()+".json");
+    key = FORMAT_VERSION+"|"+pi.name()+"#"+pi.version()+"|"+pi.date()+"|"+publisherVersion;
+  }
+
+  /**
+   * the image for the package, if there is a current one, or null
+   */
+  public static CorePackageImage load(String folder, NpmPackage pi, String publisherVersion) throws IOException {
+    CorePackageImage self = new CorePackageImage(folder, pi, publisherVersion);
+    File f = new File(self.filename);
+    if (!f.exists()) {
+      return null;
+    }
+    try {
+      JsonObject json = JsonParser.parseObject(TextFile.fileToBytes(f));
+      if (!self.key.equals(json.asString("key"))) {
+        return null;
+      }
+      self.needIds.addAll(json.getStrings("need-ids"));
+      return self;
+    } catch (Exception e) {
+      // a damaged image is just rebuilt
+      return null;
+    }
+  }
+
+  /**
+   * start a new image for the package, to be filled in by noteStructure() as the package is loaded, and then saved
+   */
+  public static CorePackageImage create(String folder, NpmPackage pi, String publisherVersion) throws IOException {
+    return new CorePackageImage(folder, pi, publisherVersion);
+  }
+
+  /**
+   * the urls of the structures that have to have their ids set
+   */
+  public List<String> getNeedIds() {
+    return needIds;
+  }
+
+  /**
+   * records whether the structure (as loaded, before the publisher has touched it) has to have its ids set
+   */
+  public void noteStructure(StructureDefinition sd) {
+    if (!sd.hasDifferential() || !sd.hasSnapshot() || missingIds(sd.getDifferential().getElement()) || missingIds(sd.getSnapshot().getElement())) {
+      needIds.add(sd.getUrl());
+    }
+  }
+
+  private boolean missingIds(List<ElementDefinition> list) {
+    for (ElementDefinition ed : list) {
+      if (!ed.hasId()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void save() throws IOException {
+    JsonObject json = new JsonObject();
+    json.add("key", key);
+    JsonArray arr = new JsonArray();
+    for (String s : needIds) {
+      arr.add(s);
+    }
+    json.add("need-ids", arr);
+    Utilities.createDirectory(Utilities.getDirectoryForFile(filename));
+    String tmp = filename+".tmp";
+    TextFile.stringToFile(JsonParser.compose(json, false), tmp);
+    File f = new File(filename);
+    f.delete();
+    new File(tmp).renameTo(f);
+  }
+}
@@ -0,0 +1,136 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r5.context.ILoggingService;
+import org.hl7.fhir.r5.context.ILoggingService.LogCategory;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+/**
+ * Finds the IG's dependency packages (and their dependencies) ahead of time, on the worker pool, so that
+ * the package cache lookups and the reading of each package's spec.internals aren't done one package at a time.
+ *
+ * Only packages already in the package cache (or loaded from a -packages folder) are found here. Nothing
+ * is downloaded, and unversioned or current/dev references are left alone, since the publisher resolves
+ * those itself, and might pick a different package.
+ *
+ * Nothing is loaded into the context here: the publisher still loads the packages one at a time, in the
+ * same order as always, and just picks up what was found here, so which resource is used when canonical
+ * URLs collide doesn't change. Anything that fails here is left for the publisher to do again, and
+ * report, in the usual way.
+ */
+public class DependencyPrefetcher {
+
+  private final FilesystemPackageCacheManager pcm;
+  private final int threads;
+  private final ILoggingService logger;
+  private Map<String, NpmPackage> packages = new ConcurrentHashMap<>();
+  private Map<NpmPackage, SpecMapManager> specMaps = new ConcurrentHashMap<>();
+  private Set<String> seen = ConcurrentHashMap.newKeySet();
+
+  public DependencyPrefetcher(FilesystemPackageCacheManager pcm, int threads, ILoggingService logger) {
+    super();
+    this.pcm = pcm;
+    this.threads = threads;
+    this.logger = logger;
+  }
+
+  /**
+   * @param roots the packages the IG depends on directly, as id#version
+   * @param noDeps the roots whose own dependencies aren't loaded
+   */
+  public void prefetch(List<String> roots, Set<String> noDeps) throws Exception {
+    WorkerPool pool = new WorkerPool("packages", threads);
+    List<String> wave = new ArrayList<>();
+    for (String s : roots) {
+      if (seen.add(s)) {
+        wave.add(s);
+      }
+    }
+    while (!wave.isEmpty()) {
+      List<String> next = new ArrayList<>();
+      pool.run(wave, id -> {
+        NpmPackage pi = fetch(id);
+        if (pi != null && !noDeps.contains(id)) {
+          synchronized (next) {
+            next.add(id);
+          }
+        }
+      });
+      // the next wave is worked out in order, so the same packages are fetched whatever the scheduling
+      List<String> deps = new ArrayList<>();
+      for (String id : wave) {
+        if (next.contains(id)) {
+          for (String dep : packages.get(id).dependencies()) {
+            if (VersionUtilities.getVersionForPackage(dep) == null && seen.add(dep)) {
+              deps.add(dep);
+            }
+          }
+        }
+      }
+      wave = deps;
+    }
+  }
+
+  private NpmPackage fetch(String id) {
+    String[] p = id.split("\\#");
+    if (p.length != 2 || Utilities.existsInList(p[1], "current", "dev") || p[1].startsWith("current$")) {
+      return null;
+    }
+    try {
+      NpmPackage pi = pcm.loadPackageFromCacheOnly(p[0], p[1]);
+      if (pi != null) {
+        packages.put(id, pi);
+        specMaps.put(pi, pi.hasFile("other", "spec.internals") ? new SpecMapManager(TextFile.streamToBytes(pi.load("other", "spec.internals")), pi.fhirVersion()) : SpecMapManager.createSpecialPackage(pi));
+      }
+      return pi;
+    } catch (Exception e) {
+      logger.logDebugMessage(LogCategory.INIT, "Unable to prefetch package "+id+": "+e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * the package for id#version, if it was found ahead of time, or null
+   */
+  public NpmPackage getPackage(String id, String version) {
+    return packages.get(version == null ? id : id+"#"+version);
+  }
+
+  /**
+   * the spec map read from the package ahead of time, or null. The caller names it, so it's only handed out once
+   */
+  public SpecMapManager takeSpecMap(NpmPackage pi) {
+    return specMaps.remove(pi);
+  }
+}
@@ -22,7 +22,6 @@ import org.hl7.fhir.r5.model.ImplementationGuide;
 import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.r5.model.StructureDefinition.StructureDefinitionKind;
 import org.hl7.fhir.utilities.TextFile;
-import org.hl7.fhir.utilities.Utilities;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -123,25 +122,19 @@ public class ExtensionTracker {
     return path.substring(0,  path.lastIndexOf("."));
   }
 
-  public void scan(Element element, String origin) {
+  /**
+   * note the resource, and the top level extensions it uses (as found by the ExtensionUsageIndex)
+   */
+  public void scan(Element element, List<ExtensionUsageIndex.ExtensionUse> uses) {
     String t = element.fhirType();
     if (!useCount.containsKey(t))
       useCount.put(t, 0);
     useCount.put(t, useCount.get(t)+1);
-    scan(t, element, origin);
-  }
-
-  private void scan(String path, Element element, String origin) {
-    for (Element e : element.getChildren()) {
-      if (Utilities.existsInList(e.getName(), "extension", "modifierExtension")) {
-        String url = e.getChildValue("url");
-        if (url != null) {
-          usages.add(new ExtensionUsage(false, url, path));
-        }
-      } else {
-        scan(path+"."+e.getName(), e, origin);
+    for (ExtensionUsageIndex.ExtensionUse use : uses) {
+      if (!use.isNested()) {
+        usages.add(new ExtensionUsage(false, use.getUrl(), use.getPath()));
       }
-    }    
+    }
   }
 
   public  byte[] generate() throws IOException {
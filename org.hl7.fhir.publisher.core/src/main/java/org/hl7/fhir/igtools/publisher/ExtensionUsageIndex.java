@@ -0,0 +1,124 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.utilities.Utilities;
+
+/**
+ * Records which extensions are used where in the IG's resources.
+ *
+ * Each resource is walked once, when it's indexed, and every extension found is
+ * filed under its url, so asking how often an extension is used is a lookup rather
+ * than a walk over every element of every resource.
+ */
+public class ExtensionUsageIndex {
+
+  public static class ExtensionUse {
+    private String url;
+    private String origin;
+    private String path;
+    private boolean nested;
+
+    public ExtensionUse(String url, String origin, String path, boolean nested) {
+      super();
+      this.url = url;
+      this.origin = origin;
+      this.path = path;
+      this.nested = nested;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * the name of the file the resource was loaded from
+     */
+    public String getOrigin() {
+      return origin;
+    }
+
+    /**
+     * the path of the element that has the extension (e.g. Patient.name)
+     */
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * true if the extension is inside another extension
+     */
+    public boolean isNested() {
+      return nested;
+    }
+  }
+
+  private Map<String, List<ExtensionUse>> uses = new HashMap<>();
+
+  /**
+   * walk the resource, record the extensions it uses, and return them in document order
+   */
+  public List<ExtensionUse> index(Element element, String origin) {
+    List<ExtensionUse> res = new ArrayList<>();
+    index(element.fhirType(), element, origin, false, res);
+    for (ExtensionUse use : res) {
+      List<ExtensionUse> list = uses.get(use.getUrl());
+      if (list == null) {
+        list = new ArrayList<>();
+        uses.put(use.getUrl(), list);
+      }
+      list.add(use);
+    }
+    return res;
+  }
+
+  private void index(String path, Element element, String origin, boolean nested, List<ExtensionUse> res) {
+    for (Element e : element.getChildren()) {
+      boolean isExt = Utilities.existsInList(e.getName(), "extension", "modifierExtension");
+      if (isExt || "Extension".equals(e.fhirType())) {
+        String url = e.getChildValue("url");
+        if (url != null) {
+          res.add(new ExtensionUse(url, origin, path, nested));
+        }
+      }
+      index(path+"."+e.getName(), e, origin, nested || isExt, res);
+    }
+  }
+
+  public int countUsages(String url) {
+    List<ExtensionUse> list = url == null ? null : uses.get(url);
+    return list == null ? 0 : list.size();
+  }
+
+  public List<ExtensionUse> getUsages(String url) {
+    List<ExtensionUse> list = url == null ? null : uses.get(url);
+    return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+  }
+}
@@ -59,6 +59,7 @@ public class FetchedFile {
   private byte[] source;
   private long size;
   private long hash;
+  private String contentHash;
   private long time;
   private String contentType;
   private List<FetchedFile> dependencies;
@@ -138,6 +139,18 @@ public class FetchedFile {
     this.source = source;
     this.size = source.length;
     this.hash = Arrays.hashCode(source);
+    this.contentHash = null;
+  }
+
+  /**
+   * a strong hash (SHA-256) of the source, for the build cache. It's worked out the first time it's asked for;
+   * after that, it's kept when the file is trimmed
+   */
+  public synchronized String getContentHash() {
+    if (contentHash == null) {
+      contentHash = BuildCache.hash(getSource());
+    }
+    return contentHash;
   }
   
 
@@ -218,9 +231,11 @@ public class FetchedFile {
     this.logical = logical;
   }
   
-  public void start(String activityName) {
-    if (!columns.contains(activityName)) {
-      columns.add(activityName);
+  public synchronized void start(String activityName) {
+    synchronized (columns) {
+      if (!columns.contains(activityName)) {
+        columns.add(activityName);
+      }
     }
     ProcessingReport pr = new ProcessingReport();
     pr.activity = activityName;
@@ -228,7 +243,7 @@ public class FetchedFile {
     processes.add(pr);
   }
   
-  public void finish(String activityName) {
+  public synchronized void finish(String activityName) {
     for (int i = processes.size() -1; i >= 0; i--) {
       ProcessingReport pr = processes.get(i);
       if (pr.activity.equals(activityName) && pr.finish == 0) {
@@ -22,10 +22,10 @@ package org.hl7.fhir.igtools.publisher;
 
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
@@ -35,6 +35,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 
@@ -128,6 +129,11 @@ public class HTMLInspector {
     private String path;
     private boolean hasXhtml;
     private int id = 0;
+    private Set<String> fragments = new HashSet<String>();
+    // the tree parsed at loading, until the links have been checked. It's only softly held, since for a big IG the
+    // trees for the whole site won't fit in memory at once; if it's been collected, the file is parsed again
+    private SoftReference<XhtmlNode> xhtml;
+    private boolean referencesValidatorPack;
 
     public LoadedFile(String filename, String path, long lastModified, int iteration, Boolean hl7State, boolean exempt, boolean hasXhtml) {
       this.filename = filename;
@@ -175,6 +181,10 @@ public class HTMLInspector {
       id++;
       return Integer.toString(id );
     }
+
+    public Set<String> getFragments() {
+      return fragments;
+    }
     
   }
 
@@ -189,10 +199,12 @@ public class HTMLInspector {
   private String altRootFolder;
   private List<SpecMapManager> specs;
   private List<SpecMapManager> linkSpecs;
+  private SpecMapIndex specIndex;
+  private SpecMapIndex linkSpecIndex;
   private Map<String, LoadedFile> cache = new HashMap<String, LoadedFile>();
   private int iteration = 0;
   private List<StringPair> otherlinks = new ArrayList<StringPair>();
-  private int links;
+  private AtomicInteger links = new AtomicInteger();
   private List<String> manual = new ArrayList<String>(); // pages that will be provided manually when published, so allowed to be broken links
   private ILoggingService log;
   private boolean forHL7;
@@ -206,11 +218,11 @@ public class HTMLInspector {
   private boolean missingPublishBox;
   private List<String> missingPublishBoxList = new ArrayList<>();
   private Set<String> exceptions = new HashSet<>();
-  private boolean referencesValidatorPack;
   private Map<String, List<String>> trackedFragments;
   private Set<String> foundFragments = new HashSet<>();
   private List<FetchedFile> sources;
   private IPublisherModule module;
+  private int threads = 1;
 
   public HTMLInspector(String rootFolder, List<SpecMapManager> specs, List<SpecMapManager> linkSpecs, ILoggingService log, String canonical, String packageId, Map<String, List<String>> trackedFragments, List<FetchedFile> sources, IPublisherModule module) {
     this.rootFolder = rootFolder.replace("/", File.separator);
@@ -242,6 +254,7 @@ public class HTMLInspector {
     log.logMessage("found "+Integer.toString(loadList.size())+" files");
 
     checkGoneFiles();
+    buildSpecIndexes();
 
     log.logDebugMessage(LogCategory.HTML, "Loading Files");
     // load files
@@ -258,21 +271,30 @@ public class HTMLInspector {
     System.out.println();
 
 
+    WorkerPool pool = new WorkerPool("html", threads);
     log.logDebugMessage(LogCategory.HTML, "Checking Resources");
-    for (FetchedFile f : sources) {
-      for (FetchedResource r : f.getResources()) {
-        checkNarrativeLinks(f, r);
-      }
+    try {
+      pool.run(sources, f -> {
+        for (FetchedResource r : f.getResources()) {
+          checkNarrativeLinks(f, r);
+        }
+      });
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
     }
     log.logDebugMessage(LogCategory.HTML, "Checking Files");
-    links = 0;
+    links.set(0);
     // check links
     boolean first = true;
-    i = 0;
-    c = cache.size() / 40;
+    List<LoadedFile> checkList = new ArrayList<>();
+    Map<LoadedFile, List<ValidationMessage>> fileMessages = new HashMap<>();
     for (String s : sorted(cache.keySet())) {
-      log.logDebugMessage(LogCategory.HTML, "Check "+s);
       LoadedFile lf = cache.get(s);
+      List<ValidationMessage> msgs = new ArrayList<>();
+      checkList.add(lf);
+      fileMessages.put(lf, msgs);
 
       if (lf.getHl7State() != null && !lf.getHl7State()) {
         boolean check = true;
@@ -284,10 +306,10 @@ public class HTMLInspector {
         }
         if (check && !lf.isExempt()) {
           if (requirePublishBox) {
-            messages.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, s, "The html source does not contain the publish box" 
+            msgs.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, s, "The html source does not contain the publish box" 
               + (first ? " "+RELEASE_HTML_MARKER+" (see note at http://wiki.hl7.org/index.php?title=FHIR_Implementation_Guide_Publishing_Requirements#HL7_HTML_Standards_considerations)" : ""), IssueSeverity.ERROR));
           } else if (first) {
-            messages.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, s, "The html source does not contain the publish box; this is recommended for publishing support",
+            msgs.add(new ValidationMessage(Source.Publisher, IssueType.NOTFOUND, s, "The html source does not contain the publish box; this is recommended for publishing support",
                 "The html source does not contain the publish box; this is recommended for publishing support  (see note at http://wiki.hl7.org/index.php?title=FHIR_Implementation_Guide_Publishing_Requirements#HL7_HTML_Standards_considerations). Note that this is mandatory for HL7 specifications, and on the ci-build, but in other cases it's still recommended (this is only reported once, but applies for all pages)", IssueSeverity.INFORMATION));            
             
           }
@@ -296,27 +318,26 @@ public class HTMLInspector {
           first = false;
         }
       }
-      checkFragmentIds(TextFile.fileToString(lf.filename));
-      
-      if (lf.isHasXhtml()) {
-        XhtmlNode x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(lf.filename), null);
-        referencesValidatorPack = false;
-        if (checkLinks(lf, s, "", x, null, messages, false) != NodeChangeType.NONE) { // returns true if changed
-          saveFile(lf, x);
-        }
-        if (referencesValidatorPack) {
-          if (lf.getHl7State() != null && lf.getHl7State()) {
-            messages.add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, s, "The html source references validator.pack which is deprecated. Change the IG to describe the use of the package system instead", IssueSeverity.ERROR));                      
-          } else {
-            messages.add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, s, "The html source references validator.pack which is deprecated. Change the IG to describe the use of the package system instead", IssueSeverity.WARNING));                                  
-          }
+      foundFragments.addAll(lf.getFragments());
+    }
+
+    // each file is checked against its own tree, and reports into its own list; the lists are merged in file order
+    AtomicInteger done = new AtomicInteger();
+    int dots = checkList.size() / 40;
+    try {
+      pool.run(checkList, lf -> {
+        checkFileLinks(lf, fileMessages.get(lf));
+        if (dots > 0 && done.incrementAndGet() % dots == 0) {
+          System.out.print(".");
         }
-      }
-      if (i == c) {
-        System.out.print(".");
-        i = 0;
-      }
-      i++;
+      });
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+    for (LoadedFile lf : checkList) {
+      messages.addAll(fileMessages.get(lf));
     }
     System.out.println();
  
@@ -342,6 +363,77 @@ public class HTMLInspector {
     return messages;
   }
 
+  private void buildSpecIndexes() {
+    specIndex = null;
+    if (specs != null) {
+      specIndex = new SpecMapIndex(specs);
+      for (SpecMapManager spec : specs) {
+        if (spec.getBase() != null) {
+          addKnownBase(specIndex, spec.getBase(), true);
+          for (String s : Utilities.strings("definitions.json.zip", "full-ig.zip", "definitions.xml.zip", "package.tgz", "history.html")) {
+            specIndex.addKnown(Utilities.pathURL(spec.getBase(), s));
+          }
+        }
+        if (spec.getBase2() != null) {
+          addKnownBase(specIndex, spec.getBase2(), false);
+          for (String s : Utilities.strings("definitions.json.zip", "definitions.xml.zip", "package.tgz", "full-ig.zip")) {
+            specIndex.addKnown(Utilities.pathURL(spec.getBase2(), s));
+          }
+        }
+      }
+    }
+    linkSpecIndex = null;
+    if (linkSpecs != null) {
+      linkSpecIndex = new SpecMapIndex(linkSpecs);
+      for (SpecMapManager spec : linkSpecs) {
+        if (spec.getBase() != null) {
+          addKnownBase(linkSpecIndex, spec.getBase(), true);
+          linkSpecIndex.addKnown(Utilities.pathURL(spec.getBase(), "history.html"));
+        }
+        if (spec.getBase2() != null) {
+          addKnownBase(linkSpecIndex, spec.getBase2(), false);
+        }
+      }
+    }
+  }
+
+  /**
+   * a reference to the base itself resolves (with or without a trailing slash)
+   */
+  private void addKnownBase(SpecMapIndex index, String base, boolean withSlash) {
+    index.addKnown(base);
+    if (base.endsWith("/")) {
+      index.addKnown(base.substring(0, base.length()-1));
+    }
+    if (withSlash) {
+      index.addKnown(base+"/");
+    }
+  }
+
+  private void checkFileLinks(LoadedFile lf, List<ValidationMessage> messages) throws IOException {
+    String s = lf.getFilename();
+    log.logDebugMessage(LogCategory.HTML, "Check "+s);
+    if (lf.isHasXhtml()) {
+      // files that haven't changed since the last check, or whose tree has been collected, are parsed again here
+      XhtmlNode x = lf.xhtml != null ? lf.xhtml.get() : null;
+      lf.xhtml = null;
+      if (x == null) {
+        x = new XhtmlParser().setMustBeWellFormed(strict).parse(TextFile.fileToString(s), null);
+      }
+      lf.referencesValidatorPack = false;
+      if (checkLinks(lf, s, "", x, null, messages, false) != NodeChangeType.NONE) { // returns true if changed
+        saveFile(lf, x);
+      }
+      if (lf.referencesValidatorPack) {
+        if (lf.getHl7State() != null && lf.getHl7State()) {
+          messages.add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, s, "The html source references validator.pack which is deprecated. Change the IG to describe the use of the package system instead", IssueSeverity.ERROR));                      
+        } else {
+          messages.add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, s, "The html source references validator.pack which is deprecated. Change the IG to describe the use of the package system instead", IssueSeverity.WARNING));                                  
+        }
+      }
+    }
+  }
+
   private void checkNarrativeLinks(FetchedFile f, FetchedResource r) throws IOException {
     Element t = r.getElement().getNamedChild("text");
     if (t != null) {
@@ -406,12 +498,12 @@ public class HTMLInspector {
     return false;
   }
 
-  private void checkFragmentIds(String src) {
+  private void checkFragmentIds(String src, Set<String> fragments) {
     int s = src.indexOf(TRACK_PREFIX);
     while (s > -1) {
       src = src.substring(s+TRACK_PREFIX.length());
       int e = src.indexOf(TRACK_SUFFIX);
-      foundFragments.add(src.substring(0, e));
+      fragments.add(src.substring(0, e));
       s = src.indexOf(TRACK_PREFIX);
     }    
   }
@@ -463,9 +555,16 @@ public class HTMLInspector {
     File f = new File(s);
     Boolean hl7State = null;
     XhtmlNode x = null;
+    String src = null;
     boolean htmlName = f.getName().endsWith(".html") || f.getName().endsWith(".xhtml");
     try {
-      x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(f), null);
+      // the file is read and parsed once; the release marker is filled in before parsing (it doesn't change the structure)
+      src = TextFile.fileToString(f);
+      hl7State = src.contains(RELEASE_HTML_MARKER);
+      if (hl7State) {
+        src = src.replace(RELEASE_HTML_MARKER, START_HTML_MARKER + statusText+END_HTML_MARKER);
+      }
+      x = new XhtmlParser().setMustBeWellFormed(strict).parse(src, null);
       if (x.getElement("html")==null && !htmlName) {
         // We don't want resources being treated as HTML.  We'll check the HTML of the narrative in the page representation
         x = null;
@@ -476,25 +575,24 @@ public class HTMLInspector {
     	  messages.add(new ValidationMessage(Source.LinkChecker, IssueType.STRUCTURE, s, e.getMessage(), IssueSeverity.ERROR).setLocationLink(makeLocal(f.getAbsolutePath())));
       }
     }
-    if (x != null) {
-      String src;
+    if (x == null) {
+      hl7State = null;
+    } else if (hl7State) {
       try {
-        src = TextFile.fileToString(f);
-        hl7State = src.contains(RELEASE_HTML_MARKER);
-        if (hl7State) {
-          src = src.replace(RELEASE_HTML_MARKER, START_HTML_MARKER + statusText+END_HTML_MARKER);
-          TextFile.stringToFile(src, f);
-        }
-        x = new XhtmlParser().setMustBeWellFormed(strict).parse(new FileInputStream(f), null);
+        TextFile.stringToFile(src, f);
       } catch (Exception e1) {
         hl7State = false;
       }
     }
     LoadedFile lf = new LoadedFile(s, getPath(s, base), f.lastModified(), iteration, hl7State, findExemptionComment(x) || Utilities.existsInList(f.getName(), "searchform.html"), x != null);
     cache.put(s, lf);
+    if (src != null) {
+      checkFragmentIds(src, lf.getFragments());
+    }
     if (x != null) {
       checkHtmlStructure(s, x, messages);
       listTargets(x, lf.getTargets());
+      lf.xhtml = new SoftReference<>(x);
       if (forHL7 & !isRedirect(x)) {
         checkTemplatePoints(x, messages, s);
       }
@@ -612,12 +710,15 @@ public class HTMLInspector {
       path = path + "/"+ x.getName();
     } else {
       if (x.getContent() != null && x.getContent().contains("validator.pack")) {
-        referencesValidatorPack = true;
+        lf.referencesValidatorPack = true;
       }
     }
     if ("title".equals(x.getName()) && Utilities.noString(x.allText())) {
       x.addText("?html-link?");
     }
+    if (("a".equals(x.getName()) || "area".equals(x.getName())) && x.hasAttribute("href") && Utilities.URLDecode(x.getAttribute("href")).contains("validator.pack")) {
+      lf.referencesValidatorPack = true;
+    }
     if ("a".equals(x.getName()) && x.hasAttribute("href")) {
       changed = checkResolveLink(s, x.getLocation(), path, x.getAttribute("href"), x.allText(), messages, uuid);
     }
@@ -678,14 +779,11 @@ public class HTMLInspector {
   }
 
   private boolean checkResolveLink(String filename, Location loc, String path, String ref, String text, List<ValidationMessage> messages, String uuid) throws IOException {
-    links++;
+    links.incrementAndGet();
     String rref = Utilities.URLDecode(ref);
     if ((rref.startsWith("http:") || rref.startsWith("https:") ) && (rref.endsWith(".sch") || rref.endsWith(".xsd") || rref.endsWith(".shex"))) { // work around for the fact that spec.internals does not track all these minor things 
       rref = Utilities.changeFileExt(ref, ".html");
     }
-    if (rref.contains("validator.pack")) {
-      referencesValidatorPack = true;
-    }
 
     StringBuilder tgtList = new StringBuilder();
     BooleanHolder bh = new BooleanHolder();
@@ -727,29 +825,11 @@ public class HTMLInspector {
     if (!resolved) {
       resolved = rref.startsWith("http://build.fhir.org/ig/FHIR/fhir-tools-ig") || rref.startsWith("http://build.fhir.org/ig/FHIR/ig-guidance"); // always allowed to refer to tooling or IG Guidance IG build location
     }
-    if (!resolved && specs != null){
-      for (SpecMapManager spec : specs) {
-        if (!resolved && spec.getBase() != null) {
-          resolved = resolved || spec.getBase().equals(rref) || (spec.getBase()).equals(rref+"/") || (spec.getBase()+"/").equals(rref)|| spec.hasTarget(rref) || 
-            Utilities.existsInList(rref, Utilities.pathURL(spec.getBase(), "definitions.json.zip"), 
-                Utilities.pathURL(spec.getBase(), "full-ig.zip"), Utilities.pathURL(spec.getBase(), "definitions.xml.zip"), 
-                Utilities.pathURL(spec.getBase(), "package.tgz"), Utilities.pathURL(spec.getBase(), "history.html"));
-        }
-        if (!resolved && spec.getBase2() != null) {
-          resolved = spec.getBase2().equals(rref) || (spec.getBase2()).equals(rref+"/") || 
-              Utilities.existsInList(rref, Utilities.pathURL(spec.getBase2(), "definitions.json.zip"), Utilities.pathURL(spec.getBase2(), "definitions.xml.zip"), Utilities.pathURL(spec.getBase2(), "package.tgz"), Utilities.pathURL(spec.getBase2(), "full-ig.zip")); 
-        }
-      }
+    if (!resolved && specIndex != null) {
+      resolved = specIndex.isKnown(rref) || specIndex.hasTarget(rref);
     }
-    if (!resolved && linkSpecs != null){
-      for (SpecMapManager spec : linkSpecs) {
-        if (!resolved && spec.getBase() != null) {
-          resolved = resolved || spec.getBase().equals(rref) || (spec.getBase()).equals(rref+"/") || (spec.getBase()+"/").equals(rref)|| spec.hasTarget(rref) || Utilities.existsInList(rref, Utilities.pathURL(spec.getBase(), "history.html"));
-        }
-        if (!resolved && spec.getBase2() != null) {
-          resolved = spec.getBase2().equals(rref) || (spec.getBase2()).equals(rref+"/"); 
-        }
-      }
+    if (!resolved && linkSpecIndex != null) {
+      resolved = linkSpecIndex.isKnown(rref) || linkSpecIndex.hasTarget(rref);
     }
     
     
@@ -807,9 +887,9 @@ public class HTMLInspector {
             // special case because au - wrongly - posts AU Base at http://hl7.org.au/fhir
             resolved = true;
           }
-        } else if (specs != null) {
-          for (SpecMapManager spec : specs) {
-            if (spec.getSpecial() != SpecialPackageType.Examples && spec.getBase() != null && rref.startsWith(spec.getBase())) {
+        } else if (specIndex != null) {
+          for (SpecMapManager spec : specIndex.specsForBase(rref)) {
+            if (spec.getSpecial() != SpecialPackageType.Examples) {
               resolved = false;
             }
           }
@@ -912,7 +992,7 @@ public class HTMLInspector {
   }
 
   private boolean checkResolveImageLink(String filename, Location loc, String path, String ref, List<ValidationMessage> messages, String uuid) throws IOException {
-    links++;
+    links.incrementAndGet();
     boolean resolved = checkImgSourceExists(filename, ref);
     if (resolved)
       return false;
@@ -931,10 +1011,8 @@ public class HTMLInspector {
     }
     if (!resolved)
       resolved = manual.contains(ref);
-    if (!resolved && specs != null){
-      for (SpecMapManager spec : specs) {
-        resolved = resolved || (spec.getBase() != null && spec.hasImage(ref)); 
-      }
+    if (!resolved && specIndex != null) {
+      resolved = specIndex.hasImage(ref); 
     }
     if (!resolved) {
       ;resolved = Utilities.existsInList(ref, "http://hl7.org/fhir/assets-hist/images/fhir-logo-www.png", "http://hl7.org/fhir/assets-hist/images/hl7-logo-n.png"); 
@@ -942,11 +1020,8 @@ public class HTMLInspector {
     if (!resolved) {
       if (ref.startsWith("http://") || ref.startsWith("https://")) {
         resolved = true;
-        if (specs != null) {
-          for (SpecMapManager spec : specs) {
-            if (ref.startsWith(spec.getBase()))
-              resolved = false;
-          }
+        if (specIndex != null && !specIndex.specsForBase(ref).isEmpty()) {
+          resolved = false;
         }
       } else if (!ref.contains("#")) { 
         String page = Utilities.path(filename == null ? rootFolder : Utilities.getDirectoryForFile(filename), ref.replace("/", File.separator));
@@ -967,7 +1042,7 @@ public class HTMLInspector {
   }
 
   public int links() {
-    return links;
+    return links.get();
   }
 
   private static String checkPlural(String word, int c) {
@@ -1002,6 +1077,14 @@ public class HTMLInspector {
     this.pcm = pcm; 
   }
 
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   public List<String> getExemptHtmlPatterns() {
     return exemptHtmlPatterns;
   }
@@ -21,10 +21,13 @@ package org.hl7.fhir.igtools.publisher;
  */
 
  
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.convertors.VersionConvertorConstants;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -61,9 +64,29 @@ import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
 
 public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase.ILinkResolver {
 
+  /**
+   * a message that was raised on a worker thread, and hasn't been reported yet
+   */
+  public static class HeldMessage {
+    private String key;
+    private List<ValidationMessage> list;
+    private ValidationMessage message;
+
+    private HeldMessage(String key, List<ValidationMessage> list, ValidationMessage message) {
+      super();
+      this.key = key;
+      this.list = list;
+      this.message = message;
+    }
+  }
+
+  private static final String TOKEN_START = "{{[";
+  private static final String TOKEN_END = "]}}";
+
   private IWorkerContext context;
   private SpecMapManager specPaths;
-  private Set<String> msgs = new HashSet<String>();
+  private Set<String> msgs = ConcurrentHashMap.newKeySet();
+  private ThreadLocal<List<HeldMessage>> held = new ThreadLocal<>();
   private String pathToSpec;
   private String canonical;
   private List<ValidationMessage> errors;
@@ -145,23 +168,9 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
     if (r.getId()== null) {
       throw new FHIRException("Error doing replacements - no id defined in resource: " + (r.getTitle()== null ? "NO TITLE EITHER" : r.getTitle())+" from "+r.getNameForErrors());
     }
-    s = s.replace("{{[title]}}", r.getTitle() == null ? "?title?" : r.getTitle());
-    s = s.replace("{{[name]}}", r.getId()+(format==null? "": "-"+format)+"-html");
-    s = s.replace("{{[id]}}", r.getId());
-    if (format!=null)
-      s = s.replace("{{[fmt]}}", format);
-    s = s.replace("{{[type]}}", r.fhirType());
-    s = s.replace("{{[uid]}}", r.fhirType()+"="+r.getId());
-    if (vars != null) {
-      for (String n : vars.keySet()) {
-        String v = vars.get(n);
-        if (v == null) {
-          v = "";
-        }
-        s = s == null ? "" : s.replace("{{["+n+"]}}", v);
-      }
-    }
-    return s;
+    if (!s.contains(TOKEN_START))
+      return s;
+    return replaceTokens(s, fixedTokens(r.getTitle(), r.getId(), r.getId(), format, r.fhirType()), vars);
   }
 
   public String doReplacements(String s, FetchedResource r, Resource res, Map<String, String> vars, String format, String prefixForContained) throws FHIRException {
@@ -170,38 +179,117 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
     if (r.getId()== null) {
       throw new FHIRException("Error doing replacements - no id defined in resource: " + (r.getTitle()== null ? "NO TITLE EITHER" : r.getTitle()));
     }
-    s = s.replace("{{[title]}}", r.getTitle() == null ? "?title?" : r.getTitle());
-    s = s.replace("{{[name]}}", res.getId()+(format==null? "": "-"+format)+"-html");
-    s = s.replace("{{[id]}}", prefixForContained+res.getId());
+    if (!s.contains(TOKEN_START))
+      return s;
+    return replaceTokens(s, fixedTokens(r.getTitle(), res.getId(), prefixForContained+res.getId(), format, res.fhirType()), vars);
+  }
+
+  public String doReplacements(String s, Resource r, Map<String, String> vars, String format) {
+    if (Utilities.noString(s))
+      return s;
+    if (!s.contains(TOKEN_START))
+      return s;
+    return replaceTokens(s, fixedTokens(null, r.getId(), r.getId(), format, null), vars);
+  }
+
+  /**
+   * the tokens every replacement knows about, in the order they have always been replaced. type and uid are left out if type is null
+   */
+  static Map<String, String> fixedTokens(String title, String nameId, String id, String format, String type) {
+    Map<String, String> fixed = new LinkedHashMap<>();
+    fixed.put("title", title == null ? "?title?" : title);
+    fixed.put("name", nameId+(format==null? "": "-"+format)+"-html");
+    fixed.put("id", id);
     if (format!=null)
-      s = s.replace("{{[fmt]}}", format);
-    s = s.replace("{{[type]}}", res.fhirType());
-    s = s.replace("{{[uid]}}", res.fhirType()+"="+prefixForContained+res.getId());
-    if (vars != null) {
-      for (String n : vars.keySet()) {
-        String v = vars.get(n);
+      fixed.put("fmt", format);
+    if (type != null) {
+      fixed.put("type", type);
+      fixed.put("uid", type+"="+id);
+    }
+    return fixed;
+  }
+
+  /**
+   * Replaces the {{[name]}} tokens in s in a single pass, taking the value from fixed, and then vars (a null value 
+   * is replaced with nothing). Tokens that aren't known are left as they are.
+   * 
+   * This gives the same result as replacing each token in turn, fixed ones first, except where replacing one token 
+   * makes a new one: a value that contains a token, or that ends with the start of one (and so joins up with the 
+   * text after it), or a token nested inside an unknown one. Then the order of the replacements matters, and the 
+   * replacements are done one at a time, in that order, as they always have been. As a backstop, the same is done 
+   * whenever a known token is left in the result, since that can only happen when the order mattered
+   */
+  static String replaceTokens(String s, Map<String, String> fixed, Map<String, String> vars) {
+    StringBuilder b = new StringBuilder(s.length() + 64);
+    boolean replaced = false;
+    boolean unsafe = false;
+    int last = 0;
+    int i = s.indexOf(TOKEN_START);
+    while (i >= 0) {
+      int e = s.indexOf(TOKEN_END, i + TOKEN_START.length());
+      if (e < 0) {
+        break;
+      }
+      String n = s.substring(i + TOKEN_START.length(), e);
+      String v = fixed.get(n);
+      if (v == null && !fixed.containsKey(n) && vars != null && vars.containsKey(n)) {
+        v = vars.get(n);
         if (v == null) {
           v = "";
         }
-        s = s == null ? "" : s.replace("{{["+n+"]}}", v);
+      }
+      if (v == null) {
+        // not a token we know. If there's a token inside it, what it turns into depends on the order of the replacements
+        i = s.indexOf(TOKEN_START, i + 1);
+        unsafe = unsafe || (i >= 0 && i < e);
+      } else {
+        b.append(s, last, i);
+        b.append(v);
+        replaced = true;
+        unsafe = unsafe || v.contains(TOKEN_START) || v.endsWith("{");
+        last = e + TOKEN_END.length();
+        i = s.indexOf(TOKEN_START, last);
       }
     }
-    return s;
+    if (!replaced) {
+      return s;
+    }
+    b.append(s, last, s.length());
+    String res = b.toString();
+    if (unsafe || hasKnownToken(res, fixed, vars)) {
+      return replaceTokensInTurn(s, fixed, vars);
+    }
+    return res;
   }
 
-  public String doReplacements(String s, Resource r, Map<String, String> vars, String format) {
-    if (Utilities.noString(s))
-      return s;
-    s = s.replace("{{[title]}}", "?title?");
-    s = s.replace("{{[name]}}", r.getId()+(format==null? "": "-"+format)+"-html");
-    s = s.replace("{{[id]}}", r.getId());
-    if (format!=null)
-      s = s.replace("{{[fmt]}}", format);
-//    s = s.replace("{{[type]}}", r.fhirType());
-//    s = s.replace("{{[uid]}}", r.fhirType()+"="+r.getId());
+  private static boolean hasKnownToken(String s, Map<String, String> fixed, Map<String, String> vars) {
+    int i = s.indexOf(TOKEN_START);
+    while (i >= 0) {
+      int e = s.indexOf(TOKEN_END, i + TOKEN_START.length());
+      if (e < 0) {
+        return false;
+      }
+      String n = s.substring(i + TOKEN_START.length(), e);
+      if (fixed.containsKey(n) || (vars != null && vars.containsKey(n))) {
+        return true;
+      }
+      i = s.indexOf(TOKEN_START, i + 1);
+    }
+    return false;
+  }
+
+  static String replaceTokensInTurn(String s, Map<String, String> fixed, Map<String, String> vars) {
+    for (String n : fixed.keySet()) {
+      s = s.replace(TOKEN_START+n+TOKEN_END, fixed.get(n));
+    }
     if (vars != null) {
-      for (String n : vars.keySet())
-        s = s.replace("{{["+n+"]}}", vars.get(n));
+      for (String n : vars.keySet()) {
+        String v = vars.get(n);
+        if (v == null) {
+          v = "";
+        }
+        s = s.replace(TOKEN_START+n+TOKEN_END, v);
+      }
     }
     return s;
   }
@@ -457,16 +545,43 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
   }
 
   private void error(FetchedFile f, String path, String msg, String msgId) {
-    if (!msgs.contains(msg)) {
-      msgs.add(msg);
-      f.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.INVARIANT, path, msg, IssueSeverity.ERROR).setMessageId(msgId));
-    }
+    report(msg, f.getErrors(), new ValidationMessage(Source.Publisher, IssueType.INVARIANT, path, msg, IssueSeverity.ERROR).setMessageId(msgId));
   }
 
   private void hint(String location, String msg) {
-    if (!msgs.contains(msg)) {
-      msgs.add(msg);
-      errors.add(new ValidationMessage(Source.Publisher, IssueType.INVARIANT, location, msg, IssueSeverity.INFORMATION));
+    report(msg, errors, new ValidationMessage(Source.Publisher, IssueType.INVARIANT, location, msg, IssueSeverity.INFORMATION));
+  }
+
+  /**
+   * each message is only reported once, against the first place it's raised
+   */
+  private void report(String key, List<ValidationMessage> list, ValidationMessage message) {
+    List<HeldMessage> h = held.get();
+    if (h != null) {
+      h.add(new HeldMessage(key, list, message));
+    } else if (msgs.add(key) && list != null) {
+      list.add(message);
+    }
+  }
+
+  /**
+   * hold the messages raised on this thread until releaseMessages is called. Worker threads do this, and their
+   * messages are reported in file order once they're all done, so the first place a message is raised doesn't
+   * depend on which thread got there first
+   */
+  public void holdMessages() {
+    held.set(new ArrayList<>());
+  }
+
+  public List<HeldMessage> releaseMessages() {
+    List<HeldMessage> res = held.get();
+    held.remove();
+    return res == null ? new ArrayList<>() : res;
+  }
+
+  public void reportMessages(List<HeldMessage> messages) {
+    for (HeldMessage m : messages) {
+      report(m.key, m.list, m.message);
     }
   }
 
@@ -476,12 +591,7 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
 
   private void brokenLinkMessage(String location, String ref, boolean warning) {
     String s = "The reference "+ref+" could not be resolved";
-    if (!msgs.contains(s)) {
-      msgs.add(s);
-      if (errors != null) {
-        errors.add(new ValidationMessage(Source.Publisher, IssueType.INVARIANT, pathToFhirPath(location), s, warning ? IssueSeverity.WARNING : IssueSeverity.ERROR));
-      }
-    }
+    report(s, errors, new ValidationMessage(Source.Publisher, IssueType.INVARIANT, pathToFhirPath(location), s, warning ? IssueSeverity.WARNING : IssueSeverity.ERROR));
   }
 
   private String pathToFhirPath(String path) {
@@ -670,8 +780,11 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
     StructureDefinition sd = context.fetchResource(StructureDefinition.class, url);
     if (noXhtml && sd != null && sd.getType().equals("xhtml"))
       return null;
-    if (xver.matchingUrl(url)) {
-      return xver.getReference(url); 
+    // the extension manager loads its lists as they're needed, and this is called from the worker threads
+    synchronized (xver) {
+      if (xver.matchingUrl(url)) {
+        return xver.getReference(url);
+      }
     }
     if (sd != null && sd.hasWebPath())
       return sd.getWebPath()+"|"+sd.getName();
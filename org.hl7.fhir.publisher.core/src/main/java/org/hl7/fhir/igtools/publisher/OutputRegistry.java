@@ -0,0 +1,68 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.utilities.CSFile;
+import org.hl7.fhir.utilities.TextFile;
+
+/**
+ * Keeps track of every file the publisher generates during a run, so that
+ * two different sources can't write the same output (which would silently
+ * lose one of them), and only writes files whose content has actually changed.
+ *
+ * Safe to use from several generation threads at once: claiming a path is atomic,
+ * and each path can only be claimed by one writer.
+ */
+public class OutputRegistry {
+
+  private Set<String> allOutputs = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Claim the path, record it in the outputTracker, and write the content if it differs from what's already there
+   *
+   * @return true if the file was written
+   */
+  public boolean checkMakeFile(byte[] bs, String path, Set<String> outputTracker) throws IOException {
+    // logDebugMessage(LogCategory.GENERATE, "Check Generate "+path);
+    String s = path.toLowerCase();
+    if (!allOutputs.add(s))
+      throw new Error("Error generating build: the file "+path+" is being generated more than once (may differ by case)");
+    synchronized (outputTracker) {
+      outputTracker.add(path);
+    }
+    File f = new CSFile(path);
+    byte[] existing = null;
+    if (f.exists())
+      existing = TextFile.fileToBytes(path);
+    if (!Arrays.equals(bs, existing)) {
+      TextFile.bytesToFile(bs, path);
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,170 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds, for each profile, the resources that claim to conform to it (stated) or were found
+ * to conform to it when they were validated, and the test plans and test scripts that test it.
+ *
+ * Built in one pass over the fileList once validation has recorded the found profiles, so
+ * rendering each profile doesn't have to look at every resource in the IG again.
+ *
+ * Everything is keyed by the profile url without any version; each use keeps the reference
+ * exactly as the resource made it. Uses are kept in fileList order.
+ */
+public class ProfileUsageIndex {
+
+  public static class ProfileUse {
+    private FetchedFile file;
+    private FetchedResource resource;
+    private String reference;
+    private boolean stated;
+
+    public ProfileUse(FetchedFile file, FetchedResource resource, String reference, boolean stated) {
+      super();
+      this.file = file;
+      this.resource = resource;
+      this.reference = reference;
+      this.stated = stated;
+    }
+
+    public FetchedFile getFile() {
+      return file;
+    }
+
+    public FetchedResource getResource() {
+      return resource;
+    }
+
+    /**
+     * the profile reference as the resource made it (may have a |version)
+     */
+    public String getReference() {
+      return reference;
+    }
+
+    /**
+     * true if the resource states the profile, false if it was found to conform to it
+     */
+    public boolean isStated() {
+      return stated;
+    }
+  }
+
+  private Map<String, List<ProfileUse>> examples = new HashMap<>();
+  private Map<String, List<ProfileUse>> testPlans = new HashMap<>();
+  private Map<String, List<ProfileUse>> testScripts = new HashMap<>();
+
+  public ProfileUsageIndex(List<FetchedFile> fileList) {
+    super();
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        for (String p : r.getStatedProfiles()) {
+          add(examples, new ProfileUse(f, r, p, true));
+        }
+        for (String p : r.getFoundProfiles()) {
+          add(examples, new ProfileUse(f, r, p, false));
+        }
+        if (r.fhirType().equals("TestPlan")) {
+          for (String p : r.getTestArtifacts()) {
+            add(testPlans, new ProfileUse(f, r, p, true));
+          }
+        } else if (r.fhirType().equals("TestScript")) {
+          for (String p : r.getTestArtifacts()) {
+            add(testScripts, new ProfileUse(f, r, p, true));
+          }
+        }
+      }
+    }
+  }
+
+  private void add(Map<String, List<ProfileUse>> map, ProfileUse use) {
+    if (use.getReference() != null) {
+      String url = unversioned(use.getReference());
+      List<ProfileUse> list = map.get(url);
+      if (list == null) {
+        list = new ArrayList<>();
+        map.put(url, list);
+      }
+      list.add(use);
+    }
+  }
+
+  private String unversioned(String url) {
+    return url.contains("|") ? url.substring(0, url.indexOf("|")) : url;
+  }
+
+  private List<ProfileUse> get(Map<String, List<ProfileUse>> map, String url) {
+    List<ProfileUse> list = url == null ? null : map.get(url);
+    return list == null ? Collections.emptyList() : list;
+  }
+
+  /**
+   * the resources that state (or, unless statedOnly, were found to conform to) the profile, in fileList order
+   */
+  public List<ProfileUse> getExamples(String url, boolean statedOnly) {
+    List<ProfileUse> list = get(examples, url);
+    if (!statedOnly) {
+      return list;
+    }
+    List<ProfileUse> res = new ArrayList<>();
+    for (ProfileUse use : list) {
+      if (use.isStated()) {
+        res.add(use);
+      }
+    }
+    return res;
+  }
+
+  public List<ProfileUse> getTestPlans(String url) {
+    return get(testPlans, url);
+  }
+
+  public List<ProfileUse> getTestScripts(String url) {
+    return get(testScripts, url);
+  }
+
+  public int countStatedExamples(String url, String vurl) {
+    return count(url, vurl, true);
+  }
+
+  public int countFoundExamples(String url, String vurl) {
+    return count(url, vurl, false);
+  }
+
+  private int count(String url, String vurl, boolean stated) {
+    int res = 0;
+    for (ProfileUse use : get(examples, url)) {
+      if (use.isStated() == stated && (use.getReference().equals(url) || use.getReference().equals(vurl))) {
+        res++;
+      }
+    }
+    return res;
+  }
+}
@@ -44,8 +44,8 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
@@ -53,14 +53,19 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -94,6 +99,9 @@ import org.hl7.fhir.exceptions.FHIRFormatError;
 import org.hl7.fhir.exceptions.PathEngineException;
 import org.hl7.fhir.igtools.publisher.FetchedFile.FetchedBundleType;
 import org.hl7.fhir.igtools.publisher.IFetchFile.FetchState;
+import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider.HeldMessage;
+import org.hl7.fhir.igtools.publisher.SnapshotScheduler.SnapshotTask;
+import org.hl7.fhir.igtools.publisher.comparators.ComparisonContextPool;
 import org.hl7.fhir.igtools.publisher.comparators.IpaComparator;
 import org.hl7.fhir.igtools.publisher.comparators.IpsComparator;
 import org.hl7.fhir.igtools.publisher.comparators.PreviousVersionComparator;
@@ -414,6 +422,9 @@ import lombok.Setter;
 public class Publisher implements ILoggingService, IReferenceResolver, IValidationProfileUsageTracker {
 
   private static final String PACKAGE_CACHE_FOLDER_PARAM = "-package-cache-folder";
+  private static final String TOOLS_PACKAGE_ID = "hl7.fhir.uv.tools";
+  private static final String TOOLS_PACKAGE_VERSION = "0.1.0";
+  private static final String TOOLS_PACKAGE = TOOLS_PACKAGE_ID+"#"+TOOLS_PACKAGE_VERSION;
 
   public class ContainedResourceDetails {
 
@@ -651,7 +662,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
 
   public enum CacheOption {
-    LEAVE, CLEAR_ERRORS, CLEAR_ALL;
+    LEAVE, COMPACT, CLEAR_ERRORS, CLEAR_ALL;
   }
 
   public static final String FHIR_SETTINGS_PARAM = "-fhir-settings";
@@ -689,7 +700,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private Map<String,String> countryCodeFor2Letter = null;
   private Map<String,String> shortCountryCode = null;
   private Map<String,String> stateNameForCode = null;
-  private Map<String, Map<String, ElementDefinition>> sdMapCache = new HashMap<>();
+  private Map<String, Map<String, ElementDefinition>> sdMapCache = Collections.synchronizedMap(new HashMap<>());
   private List<String> ignoreFlags = null;
 
   private Publisher childPublisher = null;
@@ -737,20 +748,20 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private Map<String, FetchedFile> altMap = new HashMap<String, FetchedFile>();
   private Map<String, FetchedResource> canonicalResources = new HashMap<String, FetchedResource>();
   private List<FetchedFile> fileList = new ArrayList<FetchedFile>();
-  private List<FetchedFile> changeList = new ArrayList<FetchedFile>();
+  private Set<FetchedFile> changeList = new LinkedHashSet<FetchedFile>();
   private List<String> fileNames = new ArrayList<String>();
   private Map<String, FetchedFile> relativeNames = new HashMap<String, FetchedFile>();
   private Set<String> bndIds = new HashSet<String>();
   private List<Resource> loaded = new ArrayList<Resource>();
   private ImplementationGuide sourceIg;
   private ImplementationGuide publishedIg;
-  private List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
+  private List<ValidationMessage> errors = Collections.synchronizedList(new ArrayList<ValidationMessage>());
   private Calendar execTime = Calendar.getInstance();
   private Set<String> otherFilesStartup = new HashSet<String>();
-  private Set<String> otherFilesRun = new HashSet<String>();
+  private Set<String> otherFilesRun = Collections.synchronizedSet(new HashSet<String>());
   private Set<String> regenList = new HashSet<String>();
   private StringBuilder filelog;
-  private Set<String> allOutputs = new HashSet<String>();
+  private OutputRegistry outputs = new OutputRegistry();
   private Set<FetchedResource> examples = new HashSet<FetchedResource>();
   private Set<FetchedResource> testplans = new HashSet<FetchedResource>();
   private Set<FetchedResource> testscripts = new HashSet<FetchedResource>();
@@ -804,7 +815,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private String configFileRootPath;
 
   private MarkDownProcessor markdownEngine;
-  private List<ValueSet> expansions = new ArrayList<>();
+  private List<ValueSet> expansions = Collections.synchronizedList(new ArrayList<>());
 
   private String npmName;
 
@@ -858,6 +869,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private PreviousVersionComparator previousVersionComparator;
   private IpaComparator ipaComparator;
   private IpsComparator ipsComparator;
+  private ComparisonContextPool comparisonPool;
 
   private IGPublisherLiquidTemplateServices templateProvider;
 
@@ -874,6 +886,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private boolean isBuildingTemplate;
   private JsonObject templateInfo;
   private ExtensionTracker extensionTracker;
+  private ExtensionUsageIndex extensionUsages = new ExtensionUsageIndex();
+  private ProfileUsageIndex profileUsages;
+  private StructureDefinitionGraph structureGraph;
 
   private String currVer;
 
@@ -929,6 +944,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private R4ToR4BAnalyser r4tor4b;
   private List<DependencyAnalyser.ArtifactDependency> dependencyList;
   private Map<String, List<String>> trackedFragments = new HashMap<>();
+  private Map<FetchedFile, List<StructureDefinition>> allProfilesXlsxQueue = new ConcurrentHashMap<>();
   private PackageInformation packageInfo;
   private boolean tocSizeWarning = false;
   private CSVWriter allProfilesCsv;
@@ -942,11 +958,22 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private List<String> usedLangFiles = new ArrayList<>();
   private List<String> viewDefinitions = new ArrayList<>();
   private int validationLogTime = 0;
+  private int threads = 1;
+  private boolean useBuildCache;
+  private XSLTransformer xslTransformer;
+  private ExecutorService zipExecutor;
+  private BuildCache buildCache;
+  private Map<String, String> buildCacheHashes;
+  private Map<String, FetchedFile> buildCacheFiles;
+  private WatchSession watchSession;
+  private DependencyPrefetcher prefetcher;
+  private ThreadLocal<InstanceValidator> workerValidator = new ThreadLocal<>();
+  private ThreadLocal<RenderingContext> workerRc = new ThreadLocal<>();
   private long maxMemory = 0;
   private String oidRoot;
   private IniFile oidIni;
 
-  long last = System.currentTimeMillis();
+  private ThreadLocal<Long> last = ThreadLocal.withInitial(System::currentTimeMillis);
   private List<String> unknownParams = new ArrayList<>();
 
   private FixedValueFormat fixedFormat = FixedValueFormat.JSON;
@@ -981,16 +1008,22 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
   public void execute() throws Exception {
     tt = new TimeTracker();
-    initialize();
-    if (isBuildingTemplate) {
-      packageTemplate();
-    } else {
-      log("Load Content");
-      try {
-        createIg();
-      } catch (Exception e) {
-        recordOutcome(e, null);
-        throw e;
+    try {
+      initialize();
+      if (isBuildingTemplate) {
+        packageTemplate();
+      } else {
+        log("Load Content");
+        try {
+          createIg();
+        } catch (Exception e) {
+          recordOutcome(e, null);
+          throw e;
+        }
+      }
+    } finally {
+      if (zipExecutor != null) {
+        zipExecutor.shutdownNow();
       }
     }
     if (templateLoaded && new File(rootDir).exists()) {
@@ -1006,6 +1039,48 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
   }
 
+  /**
+   * -watch: rather than finishing, wait for the IG source to change, and then build it again. 
+   * 
+   * Each rebuild is a full build, done by a new publisher set up from the same command line, that shares 
+   * this one's watch session: the package cache is already open, and the JVM is already warm, but everything 
+   * else (core package, template, load, snapshots, narratives, validation, generation, Jekyll) is done again 
+   * for the whole IG. The changed files aren't used to limit what is regenerated. If -build-cache was given, 
+   * validation results are reused as in any other build. A failed rebuild is reported, and the watch continues
+   */
+  private void watchForChanges(String[] args) throws Exception {
+    List<String> exclusions = new ArrayList<>();
+    exclusions.add(outputDir);
+    exclusions.add(tempDir);
+    exclusions.add(qaDir);
+    exclusions.add(vsCache);
+    exclusions.add(destDir);
+    exclusions.add(Utilities.path(rootDir, "template"));
+    exclusions.add(Utilities.path(rootDir, "input-cache"));
+    exclusions.add(Utilities.path(rootDir, "fsh-generated"));
+    watchSession.watch(rootDir, exclusions);
+    while (true) {
+      log("Watching "+rootDir+" for changes (Ctrl-C to stop)");
+      List<String> changes = watchSession.waitForChanges();
+      log("");
+      log("Full rebuild: "+changes.size()+(changes.size() == 1 ? " file has" : " files have")+" changed"+(changes.size() == 1 ? " ("+changes.get(0)+")" : ""));
+      try {
+        makeRebuildPublisher(args).execute();
+      } catch (Exception e) {
+        log("Rebuild Failed: "+e.getMessage());
+      }
+    }
+  }
+
+  Publisher makeRebuildPublisher(String[] args) throws Exception {
+    Publisher self = new Publisher();
+    parseOptions(self, args);
+    // the terminology cache was already cleared or compacted (if asked) by the first build
+    self.setCacheOption(CacheOption.LEAVE);
+    self.watchSession = watchSession;
+    return self;
+  }
+
   private String renderGlobals() {
     if (sourceIg.hasGlobal()) {
       StringBuilder b = new StringBuilder();
@@ -1067,13 +1142,14 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     TextFile.stringToFile(json, Utilities.path(outputDir, "qa.json"));
     TextFile.stringToFile(txt.toString(), Utilities.path(outputDir, "qa.txt"));
 
-    Utilities.createDirectory(tempDir);
-    ZipGenerator zip = new ZipGenerator(Utilities.path(tempDir, "full-ig.zip"));
-    zip.addFolder(outputDir, "site/", false);
-    zip.addFileSource("index.html", REDIRECT_SOURCE, false);
-    zip.close();
-    Utilities.copyFile(Utilities.path(tempDir, "full-ig.zip"), Utilities.path(outputDir, "full-ig.zip"));
-    new File(Utilities.path(tempDir, "full-ig.zip")).delete();
+    ArchiveBuilder zip = new ArchiveBuilder(Utilities.path(outputDir, "full-ig.zip"), tempDir, getZipExecutor());
+    try {
+      zip.addFolder(outputDir, "site/", false);
+      zip.addFileSource("index.html", REDIRECT_SOURCE, false);
+      zip.close();
+    } finally {
+      zip.discard();
+    }
 
     // registering the package locally
     log("Finished. "+DurationUtil.presentDuration(endTime - startTime)+". Output in "+outputDir);
@@ -1143,6 +1219,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       tts = tt.start("generate");
       log("Processing Conformance Resources");
       loadConformance();
+      prefetchTerminology();
       if (!validationOff) {
         log("Validating Resources");
         try {
@@ -2072,84 +2149,95 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private void generateNarratives() throws Exception {
     Session tts = tt.start("narrative generation");
     logDebugMessage(LogCategory.PROGRESS, "gen narratives");
-    for (FetchedFile f : fileList) {
-      f.start("generateNarratives");
-      try {
-        for (FetchedResource r : f.getResources()) {
-          if (r.getExampleUri()==null || genExampleNarratives) {
-            if (!passesNarrativeFilter(r)) {
+    // files are rendered concurrently, but the languages for a resource are not: they all render into the one narrative
+    WorkerPool pool = new WorkerPool("narratives", threads);
+    runInFileOrder(pool, fileList, f -> generateNarratives(f));
+    if (pool.isParallel()) {
+      sortByFileList(noNarrativeResources);
+    }
+    tts.end();
+  }
+
+  private void generateNarratives(FetchedFile f) throws Exception {
+    f.start("generateNarratives");
+    try {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getExampleUri()==null || genExampleNarratives) {
+          if (!passesNarrativeFilter(r)) {
+            synchronized (noNarrativeResources) {
               noNarrativeResources.add(r);
-              logDebugMessage(LogCategory.PROGRESS, "narrative for "+f.getName()+" : "+r.getId()+" suppressed");
-              if (r.getResource() != null && r.getResource() instanceof DomainResource) {
-                ((DomainResource) r.getResource()).setText(null);
+            }
+            logDebugMessage(LogCategory.PROGRESS, "narrative for "+f.getName()+" : "+r.getId()+" suppressed");
+            if (r.getResource() != null && r.getResource() instanceof DomainResource) {
+              ((DomainResource) r.getResource()).setText(null);
+            }
+            r.getElement().removeChild("text");
+          } else {
+            List<String> langs = narrativeLangs();
+            logDebugMessage(LogCategory.PROGRESS, "narrative for "+f.getName()+" : "+r.getId());
+            if (r.getResource() != null && isConvertableResource(r.getResource().fhirType())) {
+              boolean regen = false;
+              for (String lang : langs) {
+                RenderingContext lrc = rc.copy().setDefinitionsTarget(igpkp.getDefinitionsName(r));
+                lrc.setLang(lang);
+                lrc.setRules(GenerationRules.VALID_RESOURCE);
+                lrc.setDefinitionsTarget(igpkp.getDefinitionsName(r));
+                if (r.getResource() instanceof DomainResource && (langs.size() > 1 || !(((DomainResource) r.getResource()).hasText() && ((DomainResource) r.getResource()).getText().hasDiv()))) {
+                  regen = true;
+                  RendererFactory.factory(r.getResource(), lrc).setMultiLangMode(langs.size() > 1).render((DomainResource) r.getResource());
+                } else if (r.getResource() instanceof Bundle) {
+                  regen = true;
+                  new BundleRenderer(lrc).setMultiLangMode(langs.size() > 1).render((Bundle) r.getResource());
+                } else if (r.getResource() instanceof Parameters) {
+                  regen = true;
+                  Parameters p = (Parameters) r.getResource();
+                  new ParametersRenderer(lrc, new ResourceContext(null, p)).setMultiLangMode(langs.size() > 1).render(p);
+                } else if (r.getResource() instanceof DomainResource) {
+                  checkExistingNarrative(f, r, ((DomainResource) r.getResource()).getText().getDiv());
+                }
+              }
+              if (regen) {
+                Element e = convertToElement(r, r.getResource());
+                e.copyUserData(r.getElement());
+                r.setElement(e);
               }
-              r.getElement().removeChild("text");
             } else {
-              List<String> langs = narrativeLangs();
-              logDebugMessage(LogCategory.PROGRESS, "narrative for "+f.getName()+" : "+r.getId());
-              if (r.getResource() != null && isConvertableResource(r.getResource().fhirType())) {
-                boolean regen = false;
-                for (String lang : langs) {
-                  RenderingContext lrc = rc.copy().setDefinitionsTarget(igpkp.getDefinitionsName(r));
-                  lrc.setLang(lang);
-                  lrc.setRules(GenerationRules.VALID_RESOURCE);
-                  lrc.setDefinitionsTarget(igpkp.getDefinitionsName(r));
-                  if (r.getResource() instanceof DomainResource && (langs.size() > 1 || !(((DomainResource) r.getResource()).hasText() && ((DomainResource) r.getResource()).getText().hasDiv()))) {
-                    regen = true;
-                    RendererFactory.factory(r.getResource(), lrc).setMultiLangMode(langs.size() > 1).render((DomainResource) r.getResource());
-                  } else if (r.getResource() instanceof Bundle) {
-                    regen = true;
-                    new BundleRenderer(lrc).setMultiLangMode(langs.size() > 1).render((Bundle) r.getResource());
-                  } else if (r.getResource() instanceof Parameters) {
-                    regen = true;
-                    Parameters p = (Parameters) r.getResource();
-                    new ParametersRenderer(lrc, new ResourceContext(null, p)).setMultiLangMode(langs.size() > 1).render(p);
-                  } else if (r.getResource() instanceof DomainResource) {
-                    checkExistingNarrative(f, r, ((DomainResource) r.getResource()).getText().getDiv());
-                  }
-                }
-                if (regen) {
-                  Element e = convertToElement(r, r.getResource());
-                  e.copyUserData(r.getElement());
-                  r.setElement(e);
-                }
-              } else {
-                for (String lang : langs) {
-                  RenderingContext lrc = rc.copy().setParser(getTypeLoader(f,r));
-                  lrc.setLang(lang);
-                  lrc.setRules(GenerationRules.VALID_RESOURCE);
-                  if (isDomainResource(r) && (langs.size() > 1|| !hasNarrative(r.getElement()))) {
-                    ResourceWrapper rw = new ElementWrappers.ResourceWrapperMetaElement(lrc, r.getElement());
-                    RendererFactory.factory(rw, lrc).setRcontext(new ResourceContext(null, rw)).setMultiLangMode(langs.size() > 1).render(rw);
+              for (String lang : langs) {
+                RenderingContext lrc = rc.copy().setParser(getTypeLoader(f,r));
+                lrc.setLang(lang);
+                lrc.setRules(GenerationRules.VALID_RESOURCE);
+                if (isDomainResource(r) && (langs.size() > 1|| !hasNarrative(r.getElement()))) {
+                  ResourceWrapper rw = new ElementWrappers.ResourceWrapperMetaElement(lrc, r.getElement());
+                  RendererFactory.factory(rw, lrc).setRcontext(new ResourceContext(null, rw)).setMultiLangMode(langs.size() > 1).render(rw);
+                  synchronized (otherFilesRun) {
                     otherFilesRun.addAll(lrc.getFiles());
-                  } else if (r.fhirType().equals("Bundle")) {
-                    lrc.setAddName(true);
-                    for (Element e : r.getElement().getChildrenByName("entry")) {
-                      Element res = e.getNamedChild("resource");
-                      if (res!=null && "http://hl7.org/fhir/StructureDefinition/DomainResource".equals(res.getProperty().getStructure().getBaseDefinition())) {
-                        ResourceWrapper rw = new ElementWrappers.ResourceWrapperMetaElement(lrc, res);
-                        if (hasNarrative(res)) {
-                          RendererFactory.factory(rw, lrc, new ResourceContext(null, r.getElement())).checkNarrative(rw);                        
-                        } else {
-                          RendererFactory.factory(rw, lrc, new ResourceContext(null, r.getElement())).setMultiLangMode(langs.size() > 1).render(rw);
-                        }
+                  }
+                } else if (r.fhirType().equals("Bundle")) {
+                  lrc.setAddName(true);
+                  for (Element e : r.getElement().getChildrenByName("entry")) {
+                    Element res = e.getNamedChild("resource");
+                    if (res!=null && "http://hl7.org/fhir/StructureDefinition/DomainResource".equals(res.getProperty().getStructure().getBaseDefinition())) {
+                      ResourceWrapper rw = new ElementWrappers.ResourceWrapperMetaElement(lrc, res);
+                      if (hasNarrative(res)) {
+                        RendererFactory.factory(rw, lrc, new ResourceContext(null, r.getElement())).checkNarrative(rw);                        
+                      } else {
+                        RendererFactory.factory(rw, lrc, new ResourceContext(null, r.getElement())).setMultiLangMode(langs.size() > 1).render(rw);
                       }
                     }
-                  } else if (isDomainResource(r) && hasNarrative(r.getElement())) {
-                    checkExistingNarrative(f, r, r.getElement().getNamedChild("text").getNamedChild("div").getXhtml());
                   }
+                } else if (isDomainResource(r) && hasNarrative(r.getElement())) {
+                  checkExistingNarrative(f, r, r.getElement().getNamedChild("text").getNamedChild("div").getXhtml());
                 }
               }
             }
-          } else {
-            logDebugMessage(LogCategory.PROGRESS, "skipped narrative for "+f.getName()+" : "+r.getId());
           }
+        } else {
+          logDebugMessage(LogCategory.PROGRESS, "skipped narrative for "+f.getName()+" : "+r.getId());
         }
-      } finally {
-        f.finish("generateNarratives");
       }
+    } finally {
+      f.finish("generateNarratives");
     }
-    tts.end();
   }
 
   private List<String> narrativeLangs() {
@@ -2279,72 +2367,82 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void checkDependencies() {
-    // first, we load all the direct dependency lists
+    // first, we load all the direct dependency lists, and turn them around, so we know what depends on each file
+    Map<String, FetchedFile> filesByUrl = new HashMap<>();
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getResource() instanceof CanonicalResource && ((CanonicalResource) r.getResource()).getUrl() != null) {
+          filesByUrl.putIfAbsent(((CanonicalResource) r.getResource()).getUrl(), f);
+        }
+      }
+    }
+    Map<FetchedFile, List<FetchedFile>> dependents = new HashMap<>();
     for (FetchedFile f : fileList) {
       if (f.getDependencies() == null) {
-        loadDependencyList(f);
+        loadDependencyList(f, filesByUrl);
+      }
+      for (FetchedFile d : f.getDependencies()) {
+        List<FetchedFile> list = dependents.get(d);
+        if (list == null) {
+          list = new ArrayList<>();
+          dependents.put(d, list);
+        }
+        list.add(f);
       }
     }
 
-    // now, we keep adding to the change list till there's no change
-    boolean changed;
-    do {
-      changed = false;
-      for (FetchedFile f : fileList) {
-        if (!changeList.contains(f)) {
-          boolean dep = false;
-          for (FetchedFile d : f.getDependencies())
-            if (changeList.contains(d))
-              dep = true;
-          if (dep) {
-            changeList.add(f);
-            changed = true;
+    // now, anything that depends (directly or indirectly) on a changed file has changed too
+    Queue<FetchedFile> queue = new ArrayDeque<>(changeList);
+    while (!queue.isEmpty()) {
+      List<FetchedFile> list = dependents.get(queue.remove());
+      if (list != null) {
+        for (FetchedFile f : list) {
+          if (changeList.add(f)) {
+            queue.add(f);
           }
         }
       }
-    } while (changed);
+    }
   }
 
-  private void loadDependencyList(FetchedFile f) {
+  private void loadDependencyList(FetchedFile f, Map<String, FetchedFile> filesByUrl) {
     f.setDependencies(new ArrayList<FetchedFile>());
     for (FetchedResource r : f.getResources()) {
       if (r.fhirType().equals("ValueSet"))
-        loadValueSetDependencies(f, r);
+        loadValueSetDependencies(f, r, filesByUrl);
       else if (r.fhirType().equals("StructureDefinition"))
-        loadProfileDependencies(f, r);
+        loadProfileDependencies(f, r, filesByUrl);
       else
         ; // all other resource types don't have dependencies that we care about for rendering purposes
     }
   }
 
-  private void loadValueSetDependencies(FetchedFile f, FetchedResource r) {
+  private void loadValueSetDependencies(FetchedFile f, FetchedResource r, Map<String, FetchedFile> filesByUrl) {
     ValueSet vs = (ValueSet) r.getResource();
     for (ConceptSetComponent cc : vs.getCompose().getInclude()) {
       for (UriType vsi : cc.getValueSet()) {
-        FetchedFile fi = getFileForUri(vsi.getValue());
-        if (fi != null)
-          f.getDependencies().add(fi);
+        addDependency(f, filesByUrl, vsi.getValue());
       }
     }
     for (ConceptSetComponent cc : vs.getCompose().getExclude()) {
       for (UriType vsi : cc.getValueSet()) {
-        FetchedFile fi = getFileForUri(vsi.getValue());
-        if (fi != null)
-          f.getDependencies().add(fi);
+        addDependency(f, filesByUrl, vsi.getValue());
       }
     }
     for (ConceptSetComponent vsc : vs.getCompose().getInclude()) {
-      FetchedFile fi = getFileForUri(vsc.getSystem());
-      if (fi != null)
-        f.getDependencies().add(fi);
+      addDependency(f, filesByUrl, vsc.getSystem());
     }
     for (ConceptSetComponent vsc : vs.getCompose().getExclude()) {
-      FetchedFile fi = getFileForUri(vsc.getSystem());
-      if (fi != null)
-        f.getDependencies().add(fi);
+      addDependency(f, filesByUrl, vsc.getSystem());
     }
   }
 
+  private void addDependency(FetchedFile f, Map<String, FetchedFile> filesByUrl, String uri) {
+    FetchedFile fi = uri == null ? null : filesByUrl.get(uri);
+    if (fi != null)
+      f.getDependencies().add(fi);
+  }
+
   private FetchedFile getFileForFile(String path) {
     for (FetchedFile f : fileList) {
       if (f.getPath().equals(path))
@@ -2354,14 +2452,6 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
 
-  private FetchedFile getFileForUri(String uri) {
-    for (FetchedFile f : fileList) {
-      if (getResourceForUri(f, uri) != null)
-        return f;
-    }
-    return null;
-  }
-
   private FetchedResource getResourceForUri(FetchedFile f, String uri) {
     for (FetchedResource r : f.getResources()) {
       if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
@@ -2399,11 +2489,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     return null;
   }
 
-  private void loadProfileDependencies(FetchedFile f, FetchedResource r) {
+  private void loadProfileDependencies(FetchedFile f, FetchedResource r, Map<String, FetchedFile> filesByUrl) {
     StructureDefinition sd = (StructureDefinition) r.getResource();
-    FetchedFile fi = getFileForUri(sd.getBaseDefinition());
-    if (fi != null)
-      f.getDependencies().add(fi);
+    addDependency(f, filesByUrl, sd.getBaseDefinition());
   }
 
   private boolean bool(JsonObject obj, String name) throws Exception {
@@ -2447,7 +2535,14 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   public void initialize() throws Exception {
-    pcm = getFilesystemPackageCacheManager();
+    if (watchSession != null && watchSession.getPcm() != null) {
+      pcm = watchSession.getPcm();
+    } else {
+      pcm = getFilesystemPackageCacheManager();
+      if (watchSession != null) {
+        watchSession.setPcm(pcm);
+      }
+    }
     log("Build FHIR IG from "+configFile);
     if (mode == IGBuildMode.PUBLICATION)
       log("Build Formal Publication package, intended for "+getTargetOutput());
@@ -2464,6 +2559,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
     fetcher.setRootDir(rootDir);
     fetcher.setResourceDirs(resourceDirs);
+    fetcher.setThreads(threads);
     if (configFile != null && focusDir().contains(" ")) {
       throw new Error("There is a space in the folder path: \""+focusDir()+"\". Please fix your directory arrangement to remove the space and try again");
     }
@@ -3104,18 +3200,21 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
 
     // initializing the tx sub-system
-    Utilities.createDirectory(vsCache);
+    TerminologyCacheStore txStore = new TerminologyCacheStore(vsCache);
     if (cacheOption == CacheOption.CLEAR_ALL) {
       log("Terminology Cache is at "+vsCache+". Clearing now");
-      Utilities.clearDirectory(vsCache);
+      txStore.clearAll();
     } else if (mode == IGBuildMode.AUTOBUILD) {
       log("Terminology Cache is at "+vsCache+". Trimming now");
-      Utilities.clearDirectory(vsCache, "snomed.cache", "loinc.cache", "ucum.cache");
+      txStore.trim("snomed.cache", "loinc.cache", "ucum.cache");
     } else if (cacheOption == CacheOption.CLEAR_ERRORS) {
       log("Terminology Cache is at "+vsCache+". Clearing Errors now");
-      logDebugMessage(LogCategory.INIT, "Deleted "+Integer.toString(clearErrors(vsCache))+" files");
+      logDebugMessage(LogCategory.INIT, "Dropped "+Integer.toString(txStore.clearErrors())+" errors");
+    } else if (cacheOption == CacheOption.COMPACT) {
+      log("Terminology Cache is at "+vsCache+". Compacting now");
+      logDebugMessage(LogCategory.INIT, "Dropped "+Integer.toString(txStore.compact())+" superseded entries");
     } else {
-      log("Terminology Cache is at "+vsCache+". "+Integer.toString(Utilities.countFilesInDirectory(vsCache))+" files in cache");
+      log("Terminology Cache is at "+vsCache+". "+Integer.toString(txStore.count())+" files in cache");
     }
     if (!new File(vsCache).exists())
       throw new Exception("Unable to access or create the cache directory at "+vsCache);
@@ -3193,11 +3292,11 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       dep.addExtension(ToolingExtensions.EXT_IGDEP_COMMENT, new MarkdownType("Automatically added as a dependency - all IGs depend on HL7 Terminology"));
       sourceIg.getDependsOn().add(0, dep);
     }    
-    if (!"hl7.fhir.uv.tools".equals(sourceIg.getPackageId()) && !dependsOnTooling(sourceIg.getDependsOn())) {
+    if (!TOOLS_PACKAGE_ID.equals(sourceIg.getPackageId()) && !dependsOnTooling(sourceIg.getDependsOn())) {
       if (sourceIg.getDefinition().hasExtension("http://hl7.org/fhir/tools/StructureDefinition/ig-internal-dependency")) {
-        sourceIg.getDefinition().getExtensionByUrl("http://hl7.org/fhir/tools/StructureDefinition/ig-internal-dependency").setValue(new CodeType("hl7.fhir.uv.tools#0.1.0"));      
+        sourceIg.getDefinition().getExtensionByUrl("http://hl7.org/fhir/tools/StructureDefinition/ig-internal-dependency").setValue(new CodeType(TOOLS_PACKAGE));      
       } else {
-        sourceIg.getDefinition().addExtension("http://hl7.org/fhir/tools/StructureDefinition/ig-internal-dependency", new CodeType("hl7.fhir.uv.tools#0.1.0"));
+        sourceIg.getDefinition().addExtension("http://hl7.org/fhir/tools/StructureDefinition/ig-internal-dependency", new CodeType(TOOLS_PACKAGE));
       }
     }
     
@@ -3211,20 +3310,23 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     inspector.getManual().add("qa-tx.html");
     inspector.getExemptHtmlPatterns().addAll(exemptHtmlPatterns);
     inspector.setPcm(pcm);
+    inspector.setThreads(threads);
 
+    prefetchDependencies();
     int i = 0;
     for (ImplementationGuideDependsOnComponent dep : sourceIg.getDependsOn()) {
       loadIg(dep, i, !dep.hasUserData("no-load-deps"));
       i++;
     }
-    if (!"hl7.fhir.uv.tools".equals(sourceIg.getPackageId()) && !dependsOnTooling(sourceIg.getDependsOn())) {
-      loadIg("igtools", "hl7.fhir.uv.tools", "0.1.0", "http://hl7.org/fhir/tools/ImplementationGuide/hl7.fhir.uv.tools", i, false);   
+    if (!TOOLS_PACKAGE_ID.equals(sourceIg.getPackageId()) && !dependsOnTooling(sourceIg.getDependsOn())) {
+      loadIg("igtools", TOOLS_PACKAGE_ID, TOOLS_PACKAGE_VERSION, "http://hl7.org/fhir/tools/ImplementationGuide/"+TOOLS_PACKAGE_ID, i, false);   
     }
 
     // we're also going to look for packages that can be referred to but aren't dependencies
     for (Extension ext : sourceIg.getDefinition().getExtensionsByUrl("http://hl7.org/fhir/tools/StructureDefinition/ig-link-dependency")) {
       loadLinkIg(ext.getValue().primitiveValue());
     }
+    prefetcher = null;
 
 
     if (!VersionUtilities.isR5Plus(context.getVersion())) {
@@ -3247,29 +3349,13 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     generateLoadedSnapshots();
 
     // set up validator;
-    validator = new InstanceValidator(context, new IGPublisherHostServices(), context.getXVer()); // todo: host services for reference resolution....
-    validator.setAllowXsiLocation(true);
-    validator.setNoBindingMsgSuppressed(true);
-    validator.setNoExtensibleWarnings(!allowExtensibleWarnings);
-    validator.setHintAboutNonMustSupport(hintAboutNonMustSupport);
-    validator.setAnyExtensionsAllowed(anyExtensionsAllowed);
-    validator.setAllowExamples(true);
-    validator.setCrumbTrails(true);
-    validator.setWantCheckSnapshotUnchanged(true);
-    validator.setForPublication(true);
-    validator.setDisplayWarnings(displayWarnings);
+    validationFetcher = new ValidationServices(context, igpkp, sourceIg, fileList, npmList, bundleReferencesResolve, specMaps, module);
+    validator = makeInstanceValidator();
 
     pvalidator = new ProfileValidator(context, context.getXVer());
     csvalidator = new CodeSystemValidator(context, context.getXVer());
     pvalidator.setCheckAggregation(checkAggregation);
     pvalidator.setCheckMustSupport(hintAboutNonMustSupport);
-    validator.setShowMessagesFromReferences(showReferenceMessages);
-    validator.getExtensionDomains().addAll(extensionDomains);
-    validator.getExtensionDomains().add(ToolingExtensions.EXT_PRIVATE_BASE);
-    validationFetcher = new ValidationServices(context, igpkp, sourceIg, fileList, npmList, bundleReferencesResolve, specMaps, module);
-    validator.setFetcher(validationFetcher);
-    validator.setPolicyAdvisor(validationFetcher);
-    validator.setTracker(this);
     for (String s : context.getBinaryKeysAsSet()) {
       if (needFile(s)) {
         if (makeQA)
@@ -3319,6 +3405,37 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     log("Initialization complete");
   }
 
+  /**
+   * the instance validator keeps per-resource state (example, aggregation checking, timings),
+   * so when validating on several threads, each worker gets its own, set up the same way,
+   * sharing the context and the fetcher
+   */
+  private InstanceValidator makeInstanceValidator() {
+    InstanceValidator iv = new InstanceValidator(context, new IGPublisherHostServices(), context.getXVer()); // todo: host services for reference resolution....
+    iv.setAllowXsiLocation(true);
+    iv.setNoBindingMsgSuppressed(true);
+    iv.setNoExtensibleWarnings(!allowExtensibleWarnings);
+    iv.setHintAboutNonMustSupport(hintAboutNonMustSupport);
+    iv.setAnyExtensionsAllowed(anyExtensionsAllowed);
+    iv.setAllowExamples(true);
+    iv.setCrumbTrails(true);
+    iv.setWantCheckSnapshotUnchanged(true);
+    iv.setForPublication(true);
+    iv.setDisplayWarnings(displayWarnings);
+    iv.setShowMessagesFromReferences(showReferenceMessages);
+    iv.getExtensionDomains().addAll(extensionDomains);
+    iv.getExtensionDomains().add(ToolingExtensions.EXT_PRIVATE_BASE);
+    iv.setFetcher(validationFetcher);
+    iv.setPolicyAdvisor(validationFetcher);
+    iv.setTracker(this);
+    return iv;
+  }
+
+  private InstanceValidator validator() {
+    InstanceValidator iv = workerValidator.get();
+    return iv == null ? validator : iv;
+  }
+
   private String oidIniLocation() throws IOException {
     String f = Utilities.path(Utilities.getDirectoryForFile(igName), "oids.ini");
     if (new File(f).exists()) {
@@ -3666,19 +3783,6 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
   }
 
-  private int clearErrors(String dirName) throws FileNotFoundException, IOException {
-    File dir = new File(dirName);
-    int i = 0;
-    for (File f : dir.listFiles()) {
-      String s = TextFile.fileToString(f);
-      if (s.contains("OperationOutcome")) {
-        f.delete();
-        i++;
-      }
-    }
-    return i;
-  }
-
   public class FoundResource {
     private String path;
     private FhirFormat format;
@@ -3815,16 +3919,32 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     npmList.add(pi);
 
     SpecMapManager spm = loadSpecDetails(TextFile.streamToBytes(pi.load("other", "spec.internals")), "basespec", specPath);
-    SimpleWorkerContext sp;
     IContextResourceLoader loader = new PublisherLoader(pi, spm, specPath, igpkp).makeLoader();
-    sp = new SimpleWorkerContext.SimpleWorkerContextBuilder().withTerminologyCachePath(vsCache).fromPackage(pi, loader, false);
+    SimpleWorkerContext sp = new SimpleWorkerContext.SimpleWorkerContextBuilder().withTerminologyCachePath(vsCache).fromPackage(pi, loader, false);
     sp.loadBinariesFromFolder(pi);
     sp.setForPublication(true);
     if (!version.equals(Constants.VERSION)) {
       // If it wasn't a 4.0 source, we need to set the ids because they might not have been set in the source
       ProfileUtilities utils = new ProfileUtilities(context, new ArrayList<ValidationMessage>(), igpkp);
-      for (StructureDefinition sd : new ContextUtilities(sp).allStructures()) {
-        utils.setIds(sd, true);
+      CorePackageImage image = Utilities.noString(igPack) ? CorePackageImage.load(pcm.getFolder(), pi, IGVersionUtil.getVersion()) : null;
+      if (image != null) {
+        // we already know which structures are missing ids, so the rest don't have to be loaded now
+        logDebugMessage(LogCategory.INIT, "Core package image: "+image.getNeedIds().size()+" structures need ids");
+        for (String url : image.getNeedIds()) {
+          StructureDefinition sd = sp.fetchResource(StructureDefinition.class, url);
+          if (sd != null) {
+            utils.setIds(sd, true);
+          }
+        }
+      } else {
+        image = CorePackageImage.create(pcm.getFolder(), pi, IGVersionUtil.getVersion());
+        for (StructureDefinition sd : new ContextUtilities(sp).allStructures()) {
+          image.noteStructure(sd);
+          utils.setIds(sd, true);
+        }
+        if (Utilities.noString(igPack)) {
+          image.save();
+        }
       }
     }
     return sp;    
@@ -3860,6 +3980,71 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     return ep;
   }
 
+  /**
+   * with more than one thread, the value set expansions that will be rendered are asked for up front, several
+   * at a time, so they're waiting in the terminology cache when generation gets to them
+   */
+  private void prefetchTerminology() throws Exception {
+    if (threads < 2 || txLog == null) {
+      return;
+    }
+    TerminologyPrefetcher tp = new TerminologyPrefetcher(threads);
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getResource() instanceof ValueSet && igpkp.wantGen(r, "expansion") && ((ValueSet) r.getResource()).getStatus() != PublicationStatus.RETIRED) {
+          tp.seeExpansion((ValueSet) r.getResource());
+        }
+      }
+    }
+    if (tp.count() > 0) {
+      log("Prefetching "+tp.count()+" value set expansions ("+threads+" at a time)");
+      tp.expand(vs -> context.expandVS(vs, true, true, true));
+      if (tp.failures() > 0) {
+        logDebugMessage(LogCategory.PROGRESS, tp.failures()+" value set expansions failed while prefetching; they will be reported when they are rendered");
+      }
+    }
+  }
+
+  /**
+   * with more than one thread, find the dependency packages and read their spec maps in parallel before
+   * they're loaded (see DependencyPrefetcher)
+   */
+  private void prefetchDependencies() throws Exception {
+    if (threads < 2) {
+      return;
+    }
+    List<String> roots = new ArrayList<>();
+    Set<String> noDeps = new HashSet<>();
+    for (ImplementationGuideDependsOnComponent dep : sourceIg.getDependsOn()) {
+      if (dep.hasPackageId() && dep.hasVersion()) {
+        String id = dep.getPackageId()+"#"+dep.getVersion();
+        roots.add(id);
+        if (dep.hasUserData("no-load-deps")) {
+          noDeps.add(id);
+        }
+      }
+    }
+    if (!TOOLS_PACKAGE_ID.equals(sourceIg.getPackageId()) && !dependsOnTooling(sourceIg.getDependsOn())) {
+      roots.add(TOOLS_PACKAGE);
+      noDeps.add(TOOLS_PACKAGE);
+    }
+    prefetcher = new DependencyPrefetcher(pcm, threads, this);
+    prefetcher.prefetch(roots, noDeps);
+  }
+
+  private NpmPackage loadDependencyPackage(String packageId, String igver) throws IOException {
+    NpmPackage pi = prefetcher == null ? null : prefetcher.getPackage(packageId, igver);
+    return pi != null ? pi : pcm.loadPackageFromCacheOnly(packageId, igver);
+  }
+
+  private SpecMapManager makeSpecMap(NpmPackage pi) throws IOException {
+    SpecMapManager smm = prefetcher == null ? null : prefetcher.takeSpecMap(pi);
+    if (smm != null) {
+      return smm;
+    }
+    return pi.hasFile("other", "spec.internals") ?  new SpecMapManager( TextFile.streamToBytes(pi.load("other", "spec.internals")), pi.fhirVersion()) : SpecMapManager.createSpecialPackage(pi);
+  }
+
   private void loadLinkIg(String packageId) throws Exception {
     if (!Utilities.noString(packageId)) {
       String[] p = packageId.split("\\#");
@@ -3901,7 +4086,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       throw new Exception("You must specify a version for the IG "+packageId+" ("+canonical+")");
 
 
-    NpmPackage pi = packageId == null ? null : pcm.loadPackageFromCacheOnly(packageId, igver);
+    NpmPackage pi = packageId == null ? null : loadDependencyPackage(packageId, igver);
     if (pi == null) {
       pi = resolveDependency(canonical, packageId, igver);
       if (pi == null) {
@@ -3931,7 +4116,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       throw new Exception("You must specify a canonical URL for the IG "+name);
 
 
-    NpmPackage pi = packageId == null ? null : pcm.loadPackageFromCacheOnly(packageId, igver);
+    NpmPackage pi = packageId == null ? null : loadDependencyPackage(packageId, igver);
     if (pi == null) {
       pi = resolveDependency(canonical, packageId, igver);
       if (pi == null) {
@@ -3954,7 +4139,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     String webref = pi.getWebLocation();
     webref = PackageHacker.fixPackageUrl(webref);
 
-    SpecMapManager igm = pi.hasFile("other", "spec.internals") ?  new SpecMapManager( TextFile.streamToBytes(pi.load("other", "spec.internals")), pi.fhirVersion()) : SpecMapManager.createSpecialPackage(pi);
+    SpecMapManager igm = makeSpecMap(pi);
     igm.setName(name);
     igm.setBase(canonical);
     igm.setBase2(PackageHacker.fixPackageUrl(pi.url()));
@@ -4011,7 +4196,10 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
           if (coreVersion != null) {
             log("Ignore Dependency on Core FHIR "+dep+", from package '"+pi.name()+"#"+pi.version()+"'");
           } else {
-            NpmPackage dpi = pcm.loadPackage(dep);
+            NpmPackage dpi = prefetcher == null ? null : prefetcher.getPackage(dep, null);
+            if (dpi == null) {
+              dpi = pcm.loadPackage(dep);
+            }
             if (dpi == null) {
               logDebugMessage(LogCategory.CONTEXT, "Unable s to find package dependency "+dep+". Will proceed, but likely to be be errors in qa.html etc");
             } else {
@@ -4024,7 +4212,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
               SpecMapManager smm = null;
               logDebugMessage(LogCategory.PROGRESS, "Load package dependency "+dep);
               try {
-                smm = dpi.hasFile("other", "spec.internals") ?  new SpecMapManager(TextFile.streamToBytes(dpi.load("other", "spec.internals")), dpi.fhirVersion()) : SpecMapManager.createSpecialPackage(dpi);
+                smm = makeSpecMap(dpi);
                 smm.setName(dpi.name()+"_"+dpi.version());
                 smm.setBase(dpi.canonical());
                 smm.setBase2(PackageHacker.fixPackageUrl(dpi.url()));
@@ -4063,7 +4251,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (Utilities.noString(canonical) && !Utilities.noString(packageId))
       canonical = pcm.getPackageUrl(packageId);
 
-    NpmPackage pi = packageId == null ? null : pcm.loadPackageFromCacheOnly(packageId, igver);
+    NpmPackage pi = packageId == null ? null : loadDependencyPackage(packageId, igver);
     if (pi != null)
       npmList.add(pi);
     if (pi == null) {
@@ -4173,21 +4361,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private boolean checkMakeFile(byte[] bs, String path, Set<String> outputTracker) throws IOException {
-    // logDebugMessage(LogCategory.GENERATE, "Check Generate "+path);
-    String s = path.toLowerCase();
-    if (allOutputs.contains(s))
-      throw new Error("Error generating build: the file "+path+" is being generated more than once (may differ by case)");
-    allOutputs.add(s);
-    outputTracker.add(path);
-    File f = new CSFile(path);
-    byte[] existing = null;
-    if (f.exists())
-      existing = TextFile.fileToBytes(path);
-    if (!Arrays.equals(bs, existing)) {
-      TextFile.bytesToFile(bs, path);
-      return true;
-    }
-    return false;
+    return outputs.checkMakeFile(bs, path, outputTracker);
   }
 
   private boolean needFile(String s) {
@@ -5515,7 +5689,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
           if (r.fhirType().equals(type)) {
             logDebugMessage(LogCategory.PROGRESS, "validate res: "+r.fhirType()+"/"+r.getId());
             if (!r.isValidated()) {
-              validate(f, r);
+              validate(f, r, null, null);
             }
             if (SpecialTypeHandler.handlesType(r.fhirType(), context.getVersion()) && !VersionUtilities.isR5Plus(version)) {
               // we validated the resource as it was supplied, but now we need to 
@@ -5568,7 +5742,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
         for (FetchedResource r : f.getResources()) {
           if (r.fhirType().equals("StructureDefinition")) 
             extensionTracker.scan((StructureDefinition) r.getResource());
-          extensionTracker.scan(r.getElement(), f.getName());
+          extensionTracker.scan(r.getElement(), extensionUsages.index(r.getElement(), f.getName()));
         }
       } finally {
         f.finish("scanForUsageStats");      
@@ -5577,7 +5751,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
 
-  private void checkConformanceResources() throws IOException {
+  private void checkConformanceResources() throws Exception {
     log("Check profiles & code systems");
     for (FetchedFile f : fileList) {
       f.start("checkConformanceResources");
@@ -5669,6 +5843,16 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
   }
 
+  /**
+   * the published packages the comparators compare against, loaded once however many comparators use them
+   */
+  private synchronized ComparisonContextPool getComparisonPool() {
+    if (comparisonPool == null) {
+      comparisonPool = new ComparisonContextPool(context);
+    }
+    return comparisonPool;
+  }
+
   private PreviousVersionComparator makePreviousVersionComparator() throws IOException {
     if (isTemplate()) {
       return null;
@@ -5677,7 +5861,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       comparisonVersions = new ArrayList<>();
       comparisonVersions.add("{last}");
     }
-    return new PreviousVersionComparator(context, version, businessVersion != null ? businessVersion : sourceIg == null ? null : sourceIg.getVersion(), rootDir, tempDir, igpkp.getCanonical(), igpkp, logger, comparisonVersions, versionToAnnotate);
+    PreviousVersionComparator res = new PreviousVersionComparator(context, getComparisonPool(), version, businessVersion != null ? businessVersion : sourceIg == null ? null : sourceIg.getVersion(), rootDir, tempDir, igpkp.getCanonical(), igpkp, logger, comparisonVersions, versionToAnnotate);
+    res.setThreads(threads);
+    return res;
   }
 
 
@@ -5688,7 +5874,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (ipaComparisons == null) {
       return null;
     }
-    return new IpaComparator(context, rootDir, tempDir, igpkp, logger, ipaComparisons);
+    return new IpaComparator(context, getComparisonPool(), rootDir, tempDir, igpkp, logger, ipaComparisons);
   }
 
   private IpsComparator makeIpsComparator() throws IOException {
@@ -5698,7 +5884,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (ipsComparisons == null) {
       return null;
     }
-    return new IpsComparator(context, rootDir, tempDir, igpkp, logger, ipsComparisons);
+    return new IpsComparator(context, getComparisonPool(), rootDir, tempDir, igpkp, logger, ipsComparisons);
   }
 
   private void checkJurisdiction(FetchedFile f, CanonicalResource resource, IssueSeverity error, String verb) {
@@ -6628,25 +6814,25 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private void generateSnapshots() throws Exception {
     context.setAllowLoadingDuplicates(true);
 
-    ProfileUtilities utils = new ProfileUtilities(context, null, igpkp);
-    utils.setXver(context.getXVer());
-    utils.setForPublication(true);
-    utils.setMasterSourceFileNames(specMaps.get(0).getTargets());
-    utils.setLocalFileNames(pageTargets());
-    if (VersionUtilities.isR4Plus(version)) {
-      utils.setNewSlicingProcessing(true);
-    }
-    
+    Set<String> localFileNames = pageTargets();
     logDebugMessage(LogCategory.PROGRESS, "Generate Snapshots");
     for (FetchedFile f : fileList) {
-      f.start("generateSnapshots");
-      try {
-        for (FetchedResource r : f.getResources()) {
-          if (r.getResource() instanceof StructureDefinition) {
-            if (r.getResEntry() != null) {
-              ToolingExtensions.setStringExtension(r.getResEntry(), ToolingExtensions.EXT_IGP_RESOURCE_INFO, r.fhirType()+":"+IGKnowledgeProvider.getSDType(r));
-            }
+      for (FetchedResource r : f.getResources()) {
+        if (r.getResource() instanceof StructureDefinition && r.getResEntry() != null) {
+          ToolingExtensions.setStringExtension(r.getResEntry(), ToolingExtensions.EXT_IGP_RESOURCE_INFO, r.fhirType()+":"+IGKnowledgeProvider.getSDType(r));
+        }
+      }
+    }
 
+    // each wave only depends on the waves before it, so the profiles within a wave can be generated concurrently
+    WorkerPool pool = new WorkerPool("snapshots", threads);
+    for (List<SnapshotTask> wave : new SnapshotScheduler().schedule(fileList)) {
+      pool.run(wave, task -> {
+        FetchedFile f = task.getFile();
+        ProfileUtilities utils = makeSnapshotUtilities(localFileNames);
+        f.start("generateSnapshots");
+        try {
+          for (FetchedResource r : task.getResources()) {
             StructureDefinition sd = (StructureDefinition) r.getResource();
             if (!r.isSnapshotted()) {
               try {
@@ -6655,17 +6841,37 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
                 throw new Exception("Error generating snapshot for "+f.getTitle()+(f.getResources().size() > 0 ? "("+r.getId()+")" : "")+": "+e.getMessage(), e);
               }
             }
-            if ("Extension".equals(sd.getType()) && sd.getSnapshot().getElementFirstRep().getIsModifier()) {
-              modifierExtensions.add(sd);
-            }
+          }
+        } finally {
+          f.finish("generateSnapshots");      
+        }
+      });
+    }
+
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getResource() instanceof StructureDefinition) {
+          StructureDefinition sd = (StructureDefinition) r.getResource();
+          if ("Extension".equals(sd.getType()) && sd.getSnapshot().getElementFirstRep().getIsModifier()) {
+            modifierExtensions.add(sd);
           }
         }
-      } finally {
-        f.finish("generateSnapshots");      
       }
     }
   }
 
+  private ProfileUtilities makeSnapshotUtilities(Set<String> localFileNames) {
+    ProfileUtilities utils = new ProfileUtilities(context, null, igpkp);
+    utils.setXver(context.getXVer());
+    utils.setForPublication(true);
+    utils.setMasterSourceFileNames(specMaps.get(0).getTargets());
+    utils.setLocalFileNames(localFileNames);
+    if (VersionUtilities.isR4Plus(version)) {
+      utils.setNewSlicingProcessing(true);
+    }
+    return utils;
+  }
+
   private void checkR4R4B() throws Exception {
     logDebugMessage(LogCategory.PROGRESS, "R4/R4B Check");
     for (FetchedFile f : fileList) {
@@ -6799,25 +7005,13 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private StructureDefinition fetchSnapshotted(String url) throws Exception {
-
-    ProfileUtilities utils = null;
     for (FetchedFile f : fileList) {
       for (FetchedResource r : f.getResources()) {
         if (r.getResource() instanceof StructureDefinition) {
           StructureDefinition sd = (StructureDefinition) r.getResource();
           if (sd.getUrl().equals(url)) {
             if (!r.isSnapshotted()) {
-              if (utils == null) {
-                utils = new ProfileUtilities(context, null, igpkp);
-                utils.setXver(context.getXVer());
-                utils.setForPublication(true);
-                utils.setMasterSourceFileNames(specMaps.get(0).getTargets());
-                utils.setLocalFileNames(pageTargets());
-                if (VersionUtilities.isR4Plus(version)) {
-                  utils.setNewSlicingProcessing(true);
-                }
-              }
-              generateSnapshot(f, r, sd, false, utils);
+              generateSnapshot(f, r, sd, false, makeSnapshotUtilities(pageTargets()));
             }
             return sd;
           }
@@ -6969,43 +7163,27 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
     checkURLsUnique();
     checkOIDsUnique();
+    if (useBuildCache) {
+      startBuildCache();
+    }
 
-    for (FetchedFile f : fileList) {
-      f.start("validate");
-      try {
-        logDebugMessage(LogCategory.PROGRESS, " .. validate "+f.getName());
-        logDebugMessage(LogCategory.PROGRESS, " .. "+f.getName());
-        FetchedResource r0 = f.getResources().get(0);
-        if (f.getLogical() != null && f.getResources().size() == 1 && !r0.fhirType().equals("Binary")) {
-          throw new Error("Not done yet");
-        } else {
-          for (FetchedResource r : f.getResources()) {
-            if (!r.isValidated()) {
-              logDebugMessage(LogCategory.PROGRESS, "     validating "+r.getTitle());
-//              log("     validating "+r.getTitle());
-              validate(f, r);
-            }
-          }
-          if (f.getLogical() != null && f.getResources().size() == 1 && r0.fhirType().equals("Binary")) {
-            Binary bin = (Binary) r0.getResource();
-            StructureDefinition profile = context.fetchResource(StructureDefinition.class, f.getLogical());
-            List<ValidationMessage> errs = new ArrayList<ValidationMessage>();
-            if (profile == null) {
-              errs.add(new ValidationMessage(Source.InstanceValidator, IssueType.NOTFOUND, "file", context.formatMessage(I18nConstants.Bundle_BUNDLE_Entry_NO_LOGICAL_EXPL, r0.getId(), f.getLogical()), IssueSeverity.ERROR));
-            } else {
-              FhirFormat fmt = FhirFormat.readFromMimeType(bin.getContentType() == null ? f.getContentType() : bin.getContentType());       
-              Session tts = tt.start("validation");
-              List<StructureDefinition> profiles = new ArrayList<>();
-              profiles.add(profile);
-              validate(f, r0, bin, errs, fmt, profiles);    
-              tts.end();
-            }
-            processValidationOutcomes(f, r0, errs);
-          }
-        }
-      } finally {
-        f.finish("validate");      
+    WorkerPool pool = new WorkerPool("validate", threads);
+    if (pool.isParallel()) {
+      logMessage("Validating on "+pool.getThreads()+" threads");
+    }
+    runInFileOrder(pool, fileList, f -> {
+      if (workerValidator.get() == null && pool.isParallel()) {
+        workerValidator.set(makeInstanceValidator());
       }
+      validateFile(f);
+    });
+    workerValidator.remove();
+    if (pool.isParallel()) {
+      sortByFileList(noValidateResources);
+    }
+    if (buildCache != null) {
+      log("Build cache: "+buildCache.summary()+" for validation");
+      buildCache.prune();
     }
     logDebugMessage(LogCategory.PROGRESS, " .. check Profile Examples");
     logDebugMessage(LogCategory.PROGRESS, "gen narratives");
@@ -7018,9 +7196,81 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
   }
 
+  private void validateFile(FetchedFile f) throws Exception {
+    f.start("validate");
+    try {
+      logDebugMessage(LogCategory.PROGRESS, " .. validate "+f.getName());
+      logDebugMessage(LogCategory.PROGRESS, " .. "+f.getName());
+      FetchedResource r0 = f.getResources().get(0);
+      if (f.getLogical() != null && f.getResources().size() == 1 && !r0.fhirType().equals("Binary")) {
+        throw new Error("Not done yet");
+      } else {
+        // binaries with a logical model keep the logical element from validation, so they are never cached
+        String key = buildCache == null || f.getLogical() != null ? null : buildCache.key(f, "validation");
+        JsonObject cached = key == null ? null : buildCache.load(key, buildCacheHashes);
+        JsonObject record = key == null ? null : new JsonObject();
+        for (FetchedResource r : f.getResources()) {
+          if (!r.isValidated()) {
+            logDebugMessage(LogCategory.PROGRESS, "     validating "+r.getTitle());
+//            log("     validating "+r.getTitle());
+            validate(f, r, cached, record);
+          }
+        }
+        if (record != null && cached == null) {
+          buildCache.save(key, record, validationDependencies(f));
+        }
+        if (f.getLogical() != null && f.getResources().size() == 1 && r0.fhirType().equals("Binary")) {
+          Binary bin = (Binary) r0.getResource();
+          StructureDefinition profile = context.fetchResource(StructureDefinition.class, f.getLogical());
+          List<ValidationMessage> errs = new ArrayList<ValidationMessage>();
+          if (profile == null) {
+            errs.add(new ValidationMessage(Source.InstanceValidator, IssueType.NOTFOUND, "file", context.formatMessage(I18nConstants.Bundle_BUNDLE_Entry_NO_LOGICAL_EXPL, r0.getId(), f.getLogical()), IssueSeverity.ERROR));
+          } else {
+            FhirFormat fmt = FhirFormat.readFromMimeType(bin.getContentType() == null ? f.getContentType() : bin.getContentType());       
+            Session tts = startSession("validation");
+            List<StructureDefinition> profiles = new ArrayList<>();
+            profiles.add(profile);
+            validate(f, r0, bin, errs, fmt, profiles);    
+            endSession(tts);
+          }
+          processValidationOutcomes(f, r0, errs);
+        }
+      }
+    } finally {
+      f.finish("validate");      
+    }
+  }
+
+  /**
+   * workers finish in any order; put the resources back in fileList order so the QA output is stable
+   */
+  private void sortByFileList(List<FetchedResource> list) {
+    Set<FetchedResource> set = new HashSet<>(list);
+    list.clear();
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (set.contains(r)) {
+          list.add(r);
+        }
+      }
+    }
+  }
+
+  private Session startSession(String name) {
+    synchronized (tt) {
+      return tt.start(name);
+    }
+  }
+
+  private void endSession(Session tts) {
+    synchronized (tt) {
+      tts.end();
+    }
+  }
+
   private void validate(FetchedFile f, FetchedResource r, Binary bin, List<ValidationMessage> errs, FhirFormat fmt, List<StructureDefinition> profiles) {
     long ts = System.currentTimeMillis();
-    r.setLogicalElement(validator.validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), fmt, profiles));
+    r.setLogicalElement(validator().validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), fmt, profiles));
     long tf = System.currentTimeMillis();
     if (tf-ts > validationLogTime && validationLogTime > 0) {
       reportLongValidation(f, r, tf-ts);
@@ -7029,7 +7279,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
   private void validate(FetchedFile f, FetchedResource r, List<ValidationMessage> errs, List<StructureDefinition> profiles) {
     long ts = System.currentTimeMillis();
-    validator.validate(r.getElement(), errs, null, r.getElement(), profiles);
+    validator().validate(r.getElement(), errs, null, r.getElement(), profiles);
     long tf = System.currentTimeMillis();
     if (tf-ts > validationLogTime && validationLogTime > 0) {
       reportLongValidation(f, r, tf-ts);
@@ -7038,7 +7288,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
   private void validate(FetchedFile f, FetchedResource r, List<ValidationMessage> errs, Binary bin) {
     long ts = System.currentTimeMillis();
-    validator.validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), FhirFormat.readFromMimeType(bin.getContentType() == null ? f.getContentType() : bin.getContentType()));
+    validator().validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), FhirFormat.readFromMimeType(bin.getContentType() == null ? f.getContentType() : bin.getContentType()));
     long tf = System.currentTimeMillis();
     if (tf-ts > validationLogTime && validationLogTime > 0) {
       reportLongValidation(f, r, tf-ts);
@@ -7049,7 +7299,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     long ts = System.currentTimeMillis();
     List<StructureDefinition> profiles = new ArrayList<StructureDefinition>();
     profiles.add(sd);
-    validator.validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), FhirFormat.readFromMimeType(bin.getContentType() == null ? f.getContentType(): bin.getContentType()), profiles);
+    validator().validate(r.getElement(), errs, new ByteArrayInputStream(bin.getContent()), FhirFormat.readFromMimeType(bin.getContentType() == null ? f.getContentType(): bin.getContentType()), profiles);
     long tf = System.currentTimeMillis();
     if (tf-ts > validationLogTime && validationLogTime > 0) {
       reportLongValidation(f, r, tf-ts);
@@ -7058,7 +7308,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
   private void validate(FetchedFile f, FetchedResource r, List<ValidationMessage> errs, Resource ber) {
     long ts = System.currentTimeMillis();
-    validator.validate(r.getElement(), errs, ber, ber.getUserString("profile"));
+    validator().validate(r.getElement(), errs, ber, ber.getUserString("profile"));
     long tf = System.currentTimeMillis();
     if (tf-ts > validationLogTime && validationLogTime > 0) {
       reportLongValidation(f, r, tf-ts);
@@ -7067,7 +7317,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
   private void validate(FetchedFile f, FetchedResource r, List<ValidationMessage> errs) {
     long ts = System.currentTimeMillis();
-    validator.validate(r.getElement(), errs, null, r.getElement());
+    validator().validate(r.getElement(), errs, null, r.getElement());
     long tf = System.currentTimeMillis();
     if (tf-ts > validationLogTime && validationLogTime > 0) {
       reportLongValidation(f, r, tf-ts);
@@ -7077,7 +7327,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private void reportLongValidation(FetchedFile f, FetchedResource r, long l) {
     String bps = Long.toString(f.getSize()/l);
     System.out.println("Long Validation for "+f.getTitle()+" resource "+r.fhirType()+"/"+r.getId()+": "+Long.toString(l)+"ms ("+bps+" kb/sec)");
-    System.out.println("  * "+validator.reportTimes());
+    System.out.println("  * "+validator().reportTimes());
   }
 
   private void checkURLsUnique() {
@@ -7204,7 +7454,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       } else if (sd.getKind() == StructureDefinitionKind.COMPLEXTYPE) {
         if (!noUsageCheck) {
           if (sd.getType().equals("Extension")) {
-            int c = countUsages(getFixedUrl(sd));
+            int c = extensionUsages.countUsages(getFixedUrl(sd));
             if (c == 0) {
               f.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "The Implementation Guide contains no examples for this extension", IssueSeverity.WARNING));
               r.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.BUSINESSRULE, "StructureDefinition.where(url = '"+sd.getUrl()+"')", "The Implementation Guide contains no examples for this extension", IssueSeverity.WARNING));
@@ -7233,31 +7483,6 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
   
   
-  private int countUsages(String fixedUrl) {
-    int res = 0;
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        res = res + countExtensionUsage(r.getElement(), fixedUrl);
-      }
-    }
-    return res;
-  }
-
-
-
-  private int countExtensionUsage(Element element, String url) {
-    int res = 0;
-    if (element.fhirType().equals("Extension") && url.equals(element.getChildValue("url"))) {
-      res = res + 1;
-    }
-    for (Element child : element.getChildren()) {
-      res = res + countExtensionUsage(child, url);
-    }
-    return res;
-  }
-
-
-
   private String getFixedUrl(StructureDefinition sd) {
     for (ElementDefinition ed : sd.getSnapshot().getElement()) {
       if (ed.getPath().equals("Extension.url") && ed.hasFixed()) {
@@ -7269,48 +7494,58 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
 
 
-  private int countStatedExamples(String url, String vurl) {
-    int res = 0;
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        for (String p : r.getStatedProfiles()) {
-          if (url.equals(p) || vurl.equals(p)) {
-            res++;
-          }
-        }
-      }
+  /**
+   * built the first time a profile is rendered, when all the structures are loaded
+   */
+  private synchronized StructureDefinitionGraph getStructureGraph() {
+    if (structureGraph == null) {
+      structureGraph = new StructureDefinitionGraph(context.fetchResourcesByType(StructureDefinition.class),
+          ToolingExtensions.EXT_OBLIGATION_INHERITS, ToolingExtensions.EXT_SD_IMPOSE_PROFILE, ToolingExtensions.EXT_SD_COMPLIES_WITH_PROFILE);
     }
-    return res;
+    return structureGraph;
+  }
+
+  private int countStatedExamples(String url, String vurl) {
+    return getProfileUsages().countStatedExamples(url, vurl);
   }
 
   private int countFoundExamples(String url, String vurl) {
-    int res = 0;
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        for (String p : r.getFoundProfiles()) {
-          if (url.equals(p) || vurl.equals(p)) {
-            res++;
-          }
-        }
-      }
+    return getProfileUsages().countFoundExamples(url, vurl);
+  }
+
+  /**
+   * the found profiles are recorded as the resources are validated, so this is built the first time it's asked for
+   * once validation is done (or skipped)
+   */
+  private synchronized ProfileUsageIndex getProfileUsages() {
+    if (profileUsages == null) {
+      profileUsages = new ProfileUsageIndex(fileList);
     }
-    return res;
+    return profileUsages;
   }
 
-  private void validate(FetchedFile file, FetchedResource r) throws Exception {
+  private void validate(FetchedFile file, FetchedResource r, JsonObject cached, JsonObject record) throws Exception {
     if (!passesValidationFilter(r)) {
-      noValidateResources.add(r);
+      synchronized (noValidateResources) {
+        noValidateResources.add(r);
+      }
       return;
     }
     if ("ImplementationGuide".equals(r.fhirType()) && !unknownParams.isEmpty()) {
       file.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.INVALID, file.getName(), "Unknown Parameters: "+unknownParams.toString(), IssueSeverity.WARNING));
     }
 
-    Session tts = tt.start("validation");
+    String rkey = r.fhirType()+"/"+r.getId();
+    if (cached != null && cached.has(rkey)) {
+      replayValidation(file, r, cached.getJsonObject(rkey));
+      return;
+    }
+
+    Session tts = startSession("validation");
     List<ValidationMessage> errs = new ArrayList<ValidationMessage>();
     r.getElement().setUserData("igpub.context.file", file);
     r.getElement().setUserData("igpub.context.resource", r);
-    validator.setExample(r.isExample());
+    validator().setExample(r.isExample());
     if (r.isValidateAsResource()) { 
       Resource res = r.getResource();
       if (res instanceof Bundle) {
@@ -7333,7 +7568,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       Binary bin = (Binary) r.getResource();
       validate(file, r, errs, bin);    
     } else {
-      validator.setNoCheckAggregation(r.isExample() && ToolingExtensions.readBoolExtension(r.getResEntry(), "http://hl7.org/fhir/tools/StructureDefinition/igpublisher-no-check-aggregation"));
+      validator().setNoCheckAggregation(r.isExample() && ToolingExtensions.readBoolExtension(r.getResEntry(), "http://hl7.org/fhir/tools/StructureDefinition/igpublisher-no-check-aggregation"));
       List<StructureDefinition> profiles = new ArrayList<>();
 
       if (r.getElement().hasUserData("profile")) {
@@ -7345,11 +7580,271 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       validate(file, r, errs, profiles);
     }
     processValidationOutcomes(file, r, errs);
+    if (record != null) {
+      JsonObject rj = new JsonObject();
+      record.add(rkey, rj);
+      for (ValidationMessage vm : errs) {
+        rj.forceArray("messages").add(BuildCache.messageToJson(vm));
+      }
+      recordElementMessages(rj, r.getElement(), "");
+      synchronized (this) {
+        for (String p : r.getFoundProfiles()) {
+          rj.forceArray("profiles").add(p);
+        }
+      }
+    }
     r.setValidated(true);
     if (r.getConfig() == null) {
       igpkp.findConfiguration(file, r);
     }
-    tts.end();
+    endSession(tts);
+  }
+
+  /**
+   * one per build, shared by all the archives, so that however many are built at once, they use -threads threads between them
+   */
+  private synchronized ExecutorService getZipExecutor() {
+    if (zipExecutor == null) {
+      zipExecutor = ArchiveBuilder.makeExecutor(threads);
+    }
+    return zipExecutor;
+  }
+
+  /**
+   * one per build, so that each stylesheet is only compiled once
+   */
+  private synchronized XSLTransformer getXslTransformer() {
+    if (xslTransformer == null) {
+      xslTransformer = new XSLTransformer(debug);
+    }
+    return xslTransformer;
+  }
+
+  private void startBuildCache() throws IOException {
+    buildCache = new BuildCache(Utilities.path(vsCache, "build-cache", npmName), this);
+    List<String> parts = new ArrayList<>();
+    parts.add(IGVersionUtil.getVersion());
+    parts.add(version);
+    parts.add(templatePck);
+    parts.add(txServer);
+    if (configFile != null && new File(configFile).exists()) {
+      parts.add(BuildCache.hash(TextFile.fileToBytes(configFile)));
+    }
+    for (NpmPackage pi : npmList) {
+      parts.add(pi.name()+"#"+pi.version());
+    }
+    // references are resolved against whatever the IG contains, so adding, removing or renaming a resource changes every key.
+    // The content of the other files is checked per entry, against the files it depended on
+    buildCacheHashes = new HashMap<>();
+    buildCacheFiles = new HashMap<>();
+    for (FetchedFile f : fileList) {
+      if (!f.getResources().isEmpty()) {
+        buildCacheHashes.put(f.getPath(), f.getContentHash());
+        for (FetchedResource r : f.getResources()) {
+          String url = r.getResource() instanceof CanonicalResource ? ((CanonicalResource) r.getResource()).getUrl() : null;
+          parts.add(f.getPath()+"#"+r.fhirType()+"/"+r.getId()+(url == null ? "" : "="+url));
+          if (url != null) {
+            buildCacheFiles.putIfAbsent(url, f);
+          }
+          buildCacheFiles.putIfAbsent(r.fhirType()+"/"+r.getId(), f);
+          buildCacheFiles.putIfAbsent(Utilities.pathURL(igpkp.getCanonical(), r.fhirType(), r.getId()), f);
+        }
+      }
+    }
+    buildCache.setFingerprint(parts);
+    log("Build cache is at "+buildCache.getFolder());
+  }
+
+  /**
+   * the other files in the IG that validating this file depended on: the profiles its resources were validated against, 
+   * the extensions and code systems they use, the resources they refer to, and everything those profiles, value sets 
+   * and code systems refer to, with the content hash of each
+   */
+  private Map<String, String> validationDependencies(FetchedFile f) {
+    Queue<String> urls = new ArrayDeque<>();
+    for (FetchedResource r : f.getResources()) {
+      synchronized (this) {
+        addUrls(urls, r.getStatedProfiles());
+        addUrls(urls, r.getFoundProfiles());
+      }
+      if (r.getElement() != null) {
+        addElementUrls(urls, r.getElement());
+      }
+      if (r.getResource() != null) {
+        addDefinitionUrls(urls, r.getResource());
+      }
+      if (r.getExampleUri() != null) {
+        urls.add(r.getExampleUri());
+      }
+    }
+    Set<FetchedFile> done = new HashSet<>();
+    done.add(f);
+    Map<String, String> res = new TreeMap<>();
+    while (!urls.isEmpty()) {
+      String url = urls.remove();
+      FetchedFile d = buildCacheFile(url);
+      if (d != null && done.add(d)) {
+        res.put(d.getPath(), buildCacheHashes.get(d.getPath()));
+        for (FetchedResource r : d.getResources()) {
+          if (r.getResource() != null) {
+            addDefinitionUrls(urls, r.getResource());
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  private FetchedFile buildCacheFile(String url) {
+    if (url.contains("|")) {
+      url = url.substring(0, url.indexOf("|"));
+    }
+    if (url.contains("/_history/")) {
+      url = url.substring(0, url.indexOf("/_history/"));
+    }
+    return buildCacheFiles.get(url);
+  }
+
+  private void addUrls(Queue<String> urls, Collection<String> list) {
+    for (String url : list) {
+      if (url != null) {
+        urls.add(url);
+      }
+    }
+  }
+
+  /**
+   * extension urls, code systems, references, and anything else an instance refers to by url. 
+   * Contained resources and bundle entries are in the same file, so they're covered by its own hash
+   */
+  private void addElementUrls(Queue<String> urls, Element e) {
+    if (e.hasPrimitiveValue() && (Utilities.existsInList(e.getName(), "url", "system", "profile", "reference") || "canonical".equals(e.fhirType()))) {
+      urls.add(e.primitiveValue());
+    }
+    if (e.hasChildren()) {
+      for (Element c : e.getChildren()) {
+        addElementUrls(urls, c);
+      }
+    }
+  }
+
+  private void addDefinitionUrls(Queue<String> urls, Resource res) {
+    if (res instanceof StructureDefinition) {
+      StructureDefinition sd = (StructureDefinition) res;
+      if (sd.hasBaseDefinition()) {
+        urls.add(sd.getBaseDefinition());
+      }
+      for (ElementDefinition ed : sd.hasSnapshot() ? sd.getSnapshot().getElement() : sd.getDifferential().getElement()) {
+        for (TypeRefComponent t : ed.getType()) {
+          if (t.hasCode() && Utilities.isAbsoluteUrl(t.getCode())) {
+            urls.add(t.getCode());
+          }
+          for (CanonicalType ct : t.getProfile()) {
+            if (ct.hasValue()) {
+              urls.add(ct.getValue());
+            }
+          }
+          for (CanonicalType ct : t.getTargetProfile()) {
+            if (ct.hasValue()) {
+              urls.add(ct.getValue());
+            }
+          }
+        }
+        if (ed.hasBinding() && ed.getBinding().hasValueSet()) {
+          urls.add(ed.getBinding().getValueSet());
+        }
+      }
+    } else if (res instanceof ValueSet) {
+      ValueSet vs = (ValueSet) res;
+      for (ConceptSetComponent cc : vs.getCompose().getInclude()) {
+        addConceptSetUrls(urls, cc);
+      }
+      for (ConceptSetComponent cc : vs.getCompose().getExclude()) {
+        addConceptSetUrls(urls, cc);
+      }
+    } else if (res instanceof CodeSystem) {
+      CodeSystem cs = (CodeSystem) res;
+      if (cs.hasSupplements()) {
+        urls.add(cs.getSupplements());
+      }
+      if (cs.hasValueSet()) {
+        urls.add(cs.getValueSet());
+      }
+    }
+  }
+
+  private void addConceptSetUrls(Queue<String> urls, ConceptSetComponent cc) {
+    if (cc.hasSystem()) {
+      urls.add(cc.getSystem());
+    }
+    for (CanonicalType vs : cc.getValueSet()) {
+      if (vs.hasValue()) {
+        urls.add(vs.getValue());
+      }
+    }
+  }
+
+  /**
+   * do what validation would have done, from the cache: the same messages, the same signposts on 
+   * the elements, and the same profile usage
+   */
+  private void replayValidation(FetchedFile file, FetchedResource r, JsonObject rj) {
+    r.getElement().setUserData("igpub.context.file", file);
+    r.getElement().setUserData("igpub.context.resource", r);
+    if (rj.has("messages")) {
+      processValidationOutcomes(file, r, BuildCache.messagesFromJson(rj.getJsonObjects("messages")));
+    }
+    if (rj.has("elementMessages")) {
+      for (JsonObject m : rj.getJsonObjects("elementMessages")) {
+        Element e = elementAt(r.getElement(), m.asString("at"));
+        if (e != null) {
+          e.addMessage(BuildCache.messageFromJson(m));
+        }
+      }
+    }
+    if (rj.has("profiles")) {
+      for (String url : rj.getJsonArray("profiles").asStrings()) {
+        StructureDefinition profile = context.fetchResource(StructureDefinition.class, url);
+        if (profile != null) {
+          recordProfileUsage(profile, r.getElement(), r.getElement());
+        }
+      }
+    }
+    r.setValidated(true);
+    if (r.getConfig() == null) {
+      igpkp.findConfiguration(file, r);
+    }
+  }
+
+  /**
+   * the messages the validator left on the elements themselves, by their position in the tree
+   */
+  private void recordElementMessages(JsonObject rj, Element e, String at) {
+    if (e.hasMessages()) {
+      for (ValidationMessage vm : e.getMessages()) {
+        JsonObject m = BuildCache.messageToJson(vm);
+        m.add("at", at);
+        rj.forceArray("elementMessages").add(m);
+      }
+    }
+    if (e.hasChildren()) {
+      for (int i = 0; i < e.getChildren().size(); i++) {
+        recordElementMessages(rj, e.getChildren().get(i), at+"."+i);
+      }
+    }
+  }
+
+  private Element elementAt(Element e, String at) {
+    for (String s : at.split("\\.")) {
+      if (!s.isEmpty()) {
+        int i = Integer.parseInt(s);
+        if (!e.hasChildren() || i >= e.getChildren().size()) {
+          return null;
+        }
+        e = e.getChildren().get(i);
+      }
+    }
+    return e;
   }
 
   private void processValidationOutcomes(FetchedFile file, FetchedResource r, List<ValidationMessage> errs) {
@@ -7428,14 +7923,29 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     templateBeforeGenerate();
 
     logMessage("Generate HTML Outputs");
+    WorkerPool pool = new WorkerPool("generate", threads);
+    List<FetchedFile> resourceFiles = new ArrayList<>();
     for (FetchedFile f : changeList) {
-      f.start("generate2");
-      try {
-        generateHtmlOutputs(f, false, db);
-      } finally {
-        f.finish("generate2");      
+      if (pool.isParallel() && f.getProcessMode() == FetchedFile.PROCESS_RESOURCE) {
+        resourceFiles.add(f);
+      } else {
+        // pages share the numbering of {% sql %} fragments, so they are always done in order on this thread, once the
+        // resource files before them are done
+        generateHtmlOutputs(pool, resourceFiles, db);
+        resourceFiles.clear();
+        generateHtmlOutputs(f, db);
+      }
+    }
+    generateHtmlOutputs(pool, resourceFiles, db);
+    sortExpansions();
+    for (FetchedFile f : changeList) {
+      if (allProfilesXlsxQueue.containsKey(f)) {
+        for (StructureDefinition sd : allProfilesXlsxQueue.get(f)) {
+          addToAllProfilesXlsx(sd);
+        }
       }
     }
+    allProfilesXlsxQueue.clear();
     if (allProfilesCsv != null) {
       allProfilesCsv.dump();
     }
@@ -7607,11 +8117,14 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       }
 
       log("Build final .zip");
-      ZipGenerator zip = new ZipGenerator(Utilities.path(tempDir, "full-ig.zip"));
-      zip.addFolder(outputDir, "site/", false);
-      zip.addFileSource("index.html", REDIRECT_SOURCE, false);
-      zip.close();
-      Utilities.copyFile(Utilities.path(tempDir, "full-ig.zip"), Utilities.path(outputDir, "full-ig.zip"));
+      ArchiveBuilder zip = new ArchiveBuilder(Utilities.path(outputDir, "full-ig.zip"), tempDir, getZipExecutor());
+      try {
+        zip.addFolder(outputDir, "site/", false);
+        zip.addFileSource("index.html", REDIRECT_SOURCE, false);
+        zip.close();
+      } finally {
+        zip.discard();
+      }
       log("Final .zip built");
     }
   }
@@ -7975,15 +8488,17 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void generateZips(File df) throws Exception {
+    List<FhirFormat> formats = new ArrayList<>();
     if (generateExampleZip(FhirFormat.XML)) {
-      generateDefinitions(FhirFormat.XML, df.getCanonicalPath());
+      formats.add(FhirFormat.XML);
     }
     if (generateExampleZip(FhirFormat.JSON)) {
-      generateDefinitions(FhirFormat.JSON, df.getCanonicalPath());
+      formats.add(FhirFormat.JSON);
     }
     if (supportsTurtle() && generateExampleZip(FhirFormat.TURTLE)) {
-      generateDefinitions(FhirFormat.TURTLE, df.getCanonicalPath());
+      formats.add(FhirFormat.TURTLE);
     }
+    generateDefinitions(formats, df.getCanonicalPath());
     generateExpansions();
     generateValidationPack(df.getCanonicalPath());
     // Create an IG-specific named igpack to make is easy to grab the igpacks for multiple igs without the names colliding (Talk to Lloyd before removing this)
@@ -8022,7 +8537,10 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     return listedURLExemptions.contains(uc);
   }
 
-  private void generateDefinitions(FhirFormat fmt, String specFile)  throws Exception {
+  /**
+   * each canonical resource is converted to the IG's version once, and then written in each of the formats
+   */
+  private void generateDefinitions(List<FhirFormat> formats, String specFile)  throws Exception {
     // public definitions
     Set<FetchedResource> files = new HashSet<FetchedResource>();
     for (FetchedFile f : fileList) {
@@ -8032,69 +8550,104 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
         }
       }
     }
-    if (!files.isEmpty()) {
-      ZipGenerator zip = new ZipGenerator(Utilities.path(outputDir, "definitions."+fmt.getExtension()+".zip"));
-      for (FetchedResource r : files) {
-        ByteArrayOutputStream bs = new ByteArrayOutputStream();
-        if (VersionUtilities.isR3Ver(version)) {
-          org.hl7.fhir.dstu3.model.Resource r3 = VersionConvertorFactory_30_50.convertResource(r.getResource());
-          if (fmt.equals(FhirFormat.JSON)) {
-            new org.hl7.fhir.dstu3.formats.JsonParser().compose(bs, r3);
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new org.hl7.fhir.dstu3.formats.XmlParser().compose(bs, r3);
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            new org.hl7.fhir.dstu3.formats.RdfParser().compose(bs, r3);
-          }
-        } else if (VersionUtilities.isR4Ver(version)) {
-          org.hl7.fhir.r4.model.Resource r4 = VersionConvertorFactory_40_50.convertResource(r.getResource());
-          if (fmt.equals(FhirFormat.JSON)) {
-            new org.hl7.fhir.r4.formats.JsonParser().compose(bs, r4);
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new org.hl7.fhir.r4.formats.XmlParser().compose(bs, r4);
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            new org.hl7.fhir.r4.formats.RdfParser().compose(bs, r4);
-          }
-        } else if (VersionUtilities.isR4BVer(version)) {
-          org.hl7.fhir.r4b.model.Resource r4b = VersionConvertorFactory_43_50.convertResource(r.getResource());
-          if (fmt.equals(FhirFormat.JSON)) {
-            new org.hl7.fhir.r4b.formats.JsonParser().compose(bs, r4b);
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new org.hl7.fhir.r4b.formats.XmlParser().compose(bs, r4b);
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            new org.hl7.fhir.r4b.formats.RdfParser().compose(bs, r4b);
-          }
-        } else if (VersionUtilities.isR2BVer(version)) {
-          org.hl7.fhir.dstu2016may.model.Resource r14 = VersionConvertorFactory_14_50.convertResource(r.getResource());
-          if (fmt.equals(FhirFormat.JSON)) {
-            new org.hl7.fhir.dstu2016may.formats.JsonParser().compose(bs, r14);
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new org.hl7.fhir.dstu2016may.formats.XmlParser().compose(bs, r14);
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            new org.hl7.fhir.dstu2016may.formats.RdfParser().compose(bs, r14);
-          }
-        } else if (VersionUtilities.isR2Ver(version)) {
-          BaseAdvisor_10_50 advisor = new IGR2ConvertorAdvisor5();
-          org.hl7.fhir.dstu2.model.Resource r14 = VersionConvertorFactory_10_50.convertResource(r.getResource(), advisor);
-          if (fmt.equals(FhirFormat.JSON)) {
-            new org.hl7.fhir.dstu2.formats.JsonParser().compose(bs, r14);
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new org.hl7.fhir.dstu2.formats.XmlParser().compose(bs, r14);
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            throw new Exception("Turtle is not supported for releases < 3");
+    if (!files.isEmpty() && !formats.isEmpty()) {
+      Map<FhirFormat, ArchiveBuilder> zips = new HashMap<>();
+      try {
+        for (FhirFormat fmt : formats) {
+          zips.put(fmt, new ArchiveBuilder(Utilities.path(outputDir, "definitions."+fmt.getExtension()+".zip"), tempDir, getZipExecutor()));
+        }
+        for (FetchedResource r : files) {
+          Map<FhirFormat, ByteArrayOutputStream> outputs = new HashMap<>();
+          for (FhirFormat fmt : formats) {
+            outputs.put(fmt, new ByteArrayOutputStream());
+          }
+          if (VersionUtilities.isR3Ver(version)) {
+            org.hl7.fhir.dstu3.model.Resource r3 = VersionConvertorFactory_30_50.convertResource(r.getResource());
+            for (FhirFormat fmt : formats) {
+              ByteArrayOutputStream bs = outputs.get(fmt);
+              if (fmt.equals(FhirFormat.JSON)) {
+                new org.hl7.fhir.dstu3.formats.JsonParser().compose(bs, r3);
+              } else if (fmt.equals(FhirFormat.XML)) {
+                new org.hl7.fhir.dstu3.formats.XmlParser().compose(bs, r3);
+              } else if (fmt.equals(FhirFormat.TURTLE)) {
+                new org.hl7.fhir.dstu3.formats.RdfParser().compose(bs, r3);
+              }
+            }
+          } else if (VersionUtilities.isR4Ver(version)) {
+            org.hl7.fhir.r4.model.Resource r4 = VersionConvertorFactory_40_50.convertResource(r.getResource());
+            for (FhirFormat fmt : formats) {
+              ByteArrayOutputStream bs = outputs.get(fmt);
+              if (fmt.equals(FhirFormat.JSON)) {
+                new org.hl7.fhir.r4.formats.JsonParser().compose(bs, r4);
+              } else if (fmt.equals(FhirFormat.XML)) {
+                new org.hl7.fhir.r4.formats.XmlParser().compose(bs, r4);
+              } else if (fmt.equals(FhirFormat.TURTLE)) {
+                new org.hl7.fhir.r4.formats.RdfParser().compose(bs, r4);
+              }
+            }
+          } else if (VersionUtilities.isR4BVer(version)) {
+            org.hl7.fhir.r4b.model.Resource r4b = VersionConvertorFactory_43_50.convertResource(r.getResource());
+            for (FhirFormat fmt : formats) {
+              ByteArrayOutputStream bs = outputs.get(fmt);
+              if (fmt.equals(FhirFormat.JSON)) {
+                new org.hl7.fhir.r4b.formats.JsonParser().compose(bs, r4b);
+              } else if (fmt.equals(FhirFormat.XML)) {
+                new org.hl7.fhir.r4b.formats.XmlParser().compose(bs, r4b);
+              } else if (fmt.equals(FhirFormat.TURTLE)) {
+                new org.hl7.fhir.r4b.formats.RdfParser().compose(bs, r4b);
+              }
+            }
+          } else if (VersionUtilities.isR2BVer(version)) {
+            org.hl7.fhir.dstu2016may.model.Resource r14 = VersionConvertorFactory_14_50.convertResource(r.getResource());
+            for (FhirFormat fmt : formats) {
+              ByteArrayOutputStream bs = outputs.get(fmt);
+              if (fmt.equals(FhirFormat.JSON)) {
+                new org.hl7.fhir.dstu2016may.formats.JsonParser().compose(bs, r14);
+              } else if (fmt.equals(FhirFormat.XML)) {
+                new org.hl7.fhir.dstu2016may.formats.XmlParser().compose(bs, r14);
+              } else if (fmt.equals(FhirFormat.TURTLE)) {
+                new org.hl7.fhir.dstu2016may.formats.RdfParser().compose(bs, r14);
+              }
+            }
+          } else if (VersionUtilities.isR2Ver(version)) {
+            BaseAdvisor_10_50 advisor = new IGR2ConvertorAdvisor5();
+            org.hl7.fhir.dstu2.model.Resource r14 = VersionConvertorFactory_10_50.convertResource(r.getResource(), advisor);
+            for (FhirFormat fmt : formats) {
+              ByteArrayOutputStream bs = outputs.get(fmt);
+              if (fmt.equals(FhirFormat.JSON)) {
+                new org.hl7.fhir.dstu2.formats.JsonParser().compose(bs, r14);
+              } else if (fmt.equals(FhirFormat.XML)) {
+                new org.hl7.fhir.dstu2.formats.XmlParser().compose(bs, r14);
+              } else if (fmt.equals(FhirFormat.TURTLE)) {
+                throw new Exception("Turtle is not supported for releases < 3");
+              }
+            }
+          } else {
+            for (FhirFormat fmt : formats) {
+              ByteArrayOutputStream bs = outputs.get(fmt);
+              if (fmt.equals(FhirFormat.JSON)) {
+                new JsonParser().compose(bs, r.getResource());
+              } else if (fmt.equals(FhirFormat.XML)) {
+                new XmlParser().compose(bs, r.getResource());
+              } else if (fmt.equals(FhirFormat.TURTLE)) {
+                new RdfParser().compose(bs, r.getResource());
+              }
+            }
           }
-        } else {
-          if (fmt.equals(FhirFormat.JSON)) {
-            new JsonParser().compose(bs, r.getResource());
-          } else if (fmt.equals(FhirFormat.XML)) {
-            new XmlParser().compose(bs, r.getResource());
-          } else if (fmt.equals(FhirFormat.TURTLE)) {
-            new RdfParser().compose(bs, r.getResource());
+          for (FhirFormat fmt : formats) {
+            zips.get(fmt).addBytes(r.fhirType()+"-"+r.getId()+"."+fmt.getExtension(), outputs.get(fmt).toByteArray(), false);
           }
         }
-        zip.addBytes(r.fhirType()+"-"+r.getId()+"."+fmt.getExtension(), bs.toByteArray(), false);
+        for (FhirFormat fmt : formats) {
+          ArchiveBuilder zip = zips.get(fmt);
+          zip.addFileName("spec.internals", specFile, false);
+          zip.close();
+        }
+      } finally {
+        for (ArchiveBuilder zip : zips.values()) {
+          zip.discard();
+        }
       }
-      zip.addFileName("spec.internals", specFile, false);
-      zip.close();
     }
   }
 
@@ -8225,11 +8778,15 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (files.size() == 0) {
       return false;
     }
-    ZipGenerator zip = new ZipGenerator(path);
-    for (String fn : files) {
-      zip.addFileName(fn, Utilities.path(outputDir, fn), false);
+    ArchiveBuilder zip = new ArchiveBuilder(path, tempDir, getZipExecutor());
+    try {
+      for (String fn : files) {
+        zip.addFileName(fn, Utilities.path(outputDir, fn), false);
+      }
+      zip.close();
+    } finally {
+      zip.discard();
     }
-    zip.close();
     return true;
   }
 
@@ -8249,11 +8806,15 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       }
     }
     if (!files.isEmpty()) {
-      ZipGenerator zip = new ZipGenerator(Utilities.path(outputDir, "examples."+fmt.getExtension()+".zip"));
-      for (String fn : files) {
-        zip.addFileName(fn.substring(fn.lastIndexOf(File.separator)+1), fn, false);
+      ArchiveBuilder zip = new ArchiveBuilder(Utilities.path(outputDir, "examples."+fmt.getExtension()+".zip"), tempDir, getZipExecutor());
+      try {
+        for (String fn : files) {
+          zip.addFileName(fn.substring(fn.lastIndexOf(File.separator)+1), fn, false);
+        }
+        zip.close();
+      } finally {
+        zip.discard();
       }
-      zip.close();
     }
 
     return !files.isEmpty();
@@ -8753,10 +9314,12 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
         runner.setContext(context);;
         PublisherProvider pprov = new PublisherProvider(context, npmList, fileList, igpkp.getCanonical());
         runner.setProvider(pprov);
-        runner.setStorage(new StorageSqlite3(db.getConnection()));
         JsonObject vd = org.hl7.fhir.utilities.json.parser.JsonParser.parseObject(new File(Utilities.path(Utilities.getDirectoryForFile(igName), vdn)));
         pprov.inspect(vd);
-        runner.execute(vd);
+        db.withConnection(con -> {
+          runner.setStorage(new StorageSqlite3(con));
+          runner.execute(vd);
+        });
         captureIssues(vdn, runner.getIssues());
       } catch (Exception e) {
         e.printStackTrace();
@@ -10191,6 +10754,74 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }    
   }
   
+  private void generateHtmlOutputs(FetchedFile f, DBBuilder db) throws Exception {
+    f.start("generate2");
+    try {
+      generateHtmlOutputs(f, false, db);
+    } finally {
+      f.finish("generate2");      
+    }
+  }
+
+  private void generateHtmlOutputs(WorkerPool pool, List<FetchedFile> files, DBBuilder db) throws Exception {
+    runInFileOrder(pool, files, f -> {
+      workerRc.set(rc.copy());
+      try {
+        generateHtmlOutputs(f, db);
+      } finally {
+        workerRc.remove();
+      }
+    });
+  }
+
+  /**
+   * runs the task for each file on the pool. On worker threads, the knowledge provider's messages are held while each
+   * file is processed, and reported in file order once they're all done, so that the file a repeated message is
+   * reported against is the same whatever the number of threads
+   */
+  private void runInFileOrder(WorkerPool pool, List<FetchedFile> files, WorkerPool.IWorkerTask<FetchedFile> task) throws Exception {
+    if (!pool.isParallel() || files.size() < 2) {
+      pool.run(files, task);
+      return;
+    }
+    Map<FetchedFile, List<HeldMessage>> held = new ConcurrentHashMap<>();
+    try {
+      pool.run(files, f -> {
+        igpkp.holdMessages();
+        try {
+          task.process(f);
+        } finally {
+          held.put(f, igpkp.releaseMessages());
+        }
+      });
+    } finally {
+      for (FetchedFile f : files) {
+        if (held.containsKey(f)) {
+          igpkp.reportMessages(held.get(f));
+        }
+      }
+    }
+  }
+
+  /**
+   * expansions are collected as the value sets are rendered, and that may be done on several threads, so they're
+   * always put in a stable order, whatever the number of threads
+   */
+  private void sortExpansions() {
+    synchronized (expansions) {
+      Collections.sort(expansions, (vs1, vs2) -> (vs1.getUrl()+"|"+vs1.getVersion()).compareTo(vs2.getUrl()+"|"+vs2.getVersion()));
+    }
+  }
+
+  /**
+   * generation tasks running on worker threads each get their own copy of the rendering context,
+   * since the renderers set modes on it as they go
+   */
+  private RenderingContext rc() {
+    RenderingContext lrc = workerRc.get();
+    return lrc == null ? rc : lrc;
+  }
+
   private void generateHtmlOutputs(FetchedFile f, boolean regen, DBBuilder db) throws Exception {
     if (generationOff) {
       return;
@@ -10227,7 +10858,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
           f.getOutputNames().add(dst);
           Utilities.createDirectory(dst);
         } else
-          checkMakeFile(processSQL(db, new XSLTransformer(debug).transform(f.getSource(), f.getXslt()), f), dst, f.getOutputNames());
+          checkMakeFile(processSQL(db, getXslTransformer().transform(f.getSource(), f.getXslt()), f), dst, f.getOutputNames());
       } catch (Exception e) {
         log("Exception generating xslt page "+dst+" for "+f.getRelativePath()+" in "+tempDir+": "+e.getMessage());
       }
@@ -10528,7 +11159,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
 
   private void generateOutputsOperationDefinition(FetchedFile f, FetchedResource r, OperationDefinition od, Map<String, String> vars, boolean regen, String prefixForContainer) throws FHIRException, IOException {
-    OperationDefinitionRenderer odr = new OperationDefinitionRenderer(context, checkAppendSlash(specPath), od, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc, versionToAnnotate);
+    OperationDefinitionRenderer odr = new OperationDefinitionRenderer(context, checkAppendSlash(specPath), od, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc(), versionToAnnotate);
     if (igpkp.wantGen(r, "summary")) {
       fragment("OperationDefinition-"+prefixForContainer+od.getId()+"-summary", odr.summary(), f.getOutputNames(), r, vars, null);
     }
@@ -11064,7 +11695,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (igpkp.wantGen(r, "html")) {
       XhtmlNode xhtml = getXhtml(f, r);
       if (xhtml == null && HistoryGenerator.allEntriesAreHistoryProvenance(r.getElement())) {
-        RenderingContext ctxt = rc.copy().setParser(getTypeLoader(f, r));
+        RenderingContext ctxt = rc().copy().setParser(getTypeLoader(f, r));
         List<ProvenanceDetails> entries = loadProvenanceForBundle(igpkp.getLinkFor(r, true), r.getElement(), f);
         xhtml = new HistoryGenerator(ctxt).generateForBundle(entries); 
         fragment(r.fhirType()+"-"+r.getId()+"-html", new XhtmlComposer(XhtmlComposer.XML).compose(xhtml), f.getOutputNames(), r, vars, null);
@@ -11089,7 +11720,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
 
     if (igpkp.wantGen(r, "history")) {
-      XhtmlNode xhtml = new HistoryGenerator(rc).generate(r);
+      XhtmlNode xhtml = new HistoryGenerator(rc()).generate(r);
       String html = xhtml == null ? "" : new XhtmlComposer(XhtmlComposer.XML).compose(xhtml);
       fragment(r.fhirType()+"-"+r.getId()+"-history", html, f.getOutputNames(), r, vars, null);
     }
@@ -11134,7 +11765,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (igpkp.wantGen(r, "html")) {
       XhtmlNode xhtml = getXhtml(f, r, res);
       if (xhtml == null && HistoryGenerator.allEntriesAreHistoryProvenance(r.getElement())) {
-        RenderingContext ctxt = rc.copy().setParser(getTypeLoader(f, r));
+        RenderingContext ctxt = rc().copy().setParser(getTypeLoader(f, r));
         List<ProvenanceDetails> entries = loadProvenanceForBundle(igpkp.getLinkFor(r, true), r.getElement(), f);
         xhtml = new HistoryGenerator(ctxt).generateForBundle(entries); 
         fragment(res.fhirType()+"-"+prefixForContained+res.getId()+"-html", new XhtmlComposer(XhtmlComposer.XML).compose(xhtml), f.getOutputNames(), r, vars, prefixForContained);
@@ -11281,7 +11912,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
    * @throws Exception
    */
   private void generateOutputsCodeSystem(FetchedFile f, FetchedResource fr, CodeSystem cs, Map<String, String> vars, String prefixForContainer) throws Exception {
-    CodeSystemRenderer csr = new CodeSystemRenderer(context, specPath, cs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc, versionToAnnotate);
+    CodeSystemRenderer csr = new CodeSystemRenderer(context, specPath, cs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc(), versionToAnnotate);
     if (igpkp.wantGen(fr, "summary")) {
       fragment("CodeSystem-"+prefixForContainer+cs.getId()+"-summary", csr.summaryTable(fr, igpkp.wantGen(fr, "xml"), igpkp.wantGen(fr, "json"), igpkp.wantGen(fr, "ttl"), igpkp.summaryRows()), f.getOutputNames(), fr, vars, null);
     }
@@ -11321,7 +11952,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
    * @throws Exception
    */
   private void generateOutputsValueSet(FetchedFile f, FetchedResource r, ValueSet vs, Map<String, String> vars, String prefixForContainer, DBBuilder db) throws Exception {
-    ValueSetRenderer vsr = new ValueSetRenderer(context, specPath, vs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc, versionToAnnotate);
+    ValueSetRenderer vsr = new ValueSetRenderer(context, specPath, vs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc(), versionToAnnotate);
     if (igpkp.wantGen(r, "summary")) {
       fragment("ValueSet-"+prefixForContainer+vs.getId()+"-summary", vsr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     }
@@ -11351,7 +11982,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
         if (exp.getValueset() != null) {
           expansions.add(exp.getValueset());
 
-          RenderingContext lrc = rc.copy();
+          RenderingContext lrc = rc().copy();
           exp.getValueset().setCompose(null);
           exp.getValueset().setText(null);  
           RendererFactory.factory(exp.getValueset(), lrc).render(exp.getValueset());
@@ -11479,7 +12110,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (igpkp.wantGen(r, "json-schema"))
       fragmentError("StructureDefinition-"+prefixForContainer+sd.getId()+"-json-schema", "yet to be done: json schema as html", null, f.getOutputNames());
 
-    StructureDefinitionRenderer sdr = new StructureDefinitionRenderer(context, checkAppendSlash(specPath), sd, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc, allInvariants, sdMapCache, specPath, versionToAnnotate);
+    StructureDefinitionRenderer sdr = new StructureDefinitionRenderer(context, checkAppendSlash(specPath), sd, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, getStructureGraph(), rc(), allInvariants, sdMapCache, specPath, versionToAnnotate);
     if (igpkp.wantGen(r, "summary")) {
       fragment("StructureDefinition-"+prefixForContainer+sd.getId()+"-summary", sdr.summary(), f.getOutputNames(), r, vars, null);
     }
@@ -11578,24 +12209,24 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       fragment("StructureDefinition-"+prefixForContainer+sd.getId()+"-spanall", sdr.span(true, igpkp.getCanonical(), otherFilesRun), f.getOutputNames(), r, vars, null);
 
     if (igpkp.wantGen(r, "example-list"))
-      fragment("StructureDefinition-example-list-"+prefixForContainer+sd.getId(), sdr.exampleList(fileList, true), f.getOutputNames(), r, vars, null);
+      fragment("StructureDefinition-example-list-"+prefixForContainer+sd.getId(), sdr.exampleList(getProfileUsages(), true), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "example-table"))
-      fragment("StructureDefinition-example-table-"+prefixForContainer+sd.getId(), sdr.exampleTable(fileList, true), f.getOutputNames(), r, vars, null);
+      fragment("StructureDefinition-example-table-"+prefixForContainer+sd.getId(), sdr.exampleTable(getProfileUsages(), true), f.getOutputNames(), r, vars, null);
 
     if (igpkp.wantGen(r, "example-list-all"))
-      fragment("StructureDefinition-example-list-all-"+prefixForContainer+sd.getId(), sdr.exampleList(fileList, false), f.getOutputNames(), r, vars, null);
+      fragment("StructureDefinition-example-list-all-"+prefixForContainer+sd.getId(), sdr.exampleList(getProfileUsages(), false), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "example-table-all"))
-      fragment("StructureDefinition-example-table-all-"+prefixForContainer+sd.getId(), sdr.exampleTable(fileList, false), f.getOutputNames(), r, vars, null);
+      fragment("StructureDefinition-example-table-all-"+prefixForContainer+sd.getId(), sdr.exampleTable(getProfileUsages(), false), f.getOutputNames(), r, vars, null);
 
     if (igpkp.wantGen(r, "testplan-list"))
-      fragment("StructureDefinition-testplan-list-"+prefixForContainer+sd.getId(), sdr.testplanList(fileList), f.getOutputNames(), r, vars, null);
+      fragment("StructureDefinition-testplan-list-"+prefixForContainer+sd.getId(), sdr.testplanList(getProfileUsages()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "testplan-table"))
-      fragment("StructureDefinition-testplan-table-"+prefixForContainer+sd.getId(), sdr.testplanTable(fileList), f.getOutputNames(), r, vars, null);
+      fragment("StructureDefinition-testplan-table-"+prefixForContainer+sd.getId(), sdr.testplanTable(getProfileUsages()), f.getOutputNames(), r, vars, null);
 
     if (igpkp.wantGen(r, "testscript-list"))
-      fragment("StructureDefinition-testscript-list-"+prefixForContainer+sd.getId(), sdr.testscriptList(fileList), f.getOutputNames(), r, vars, null);
+      fragment("StructureDefinition-testscript-list-"+prefixForContainer+sd.getId(), sdr.testscriptList(getProfileUsages()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "testscript-table"))
-      fragment("StructureDefinition-testscript-table-"+prefixForContainer+sd.getId(), sdr.testscriptTable(fileList), f.getOutputNames(), r, vars, null);
+      fragment("StructureDefinition-testscript-table-"+prefixForContainer+sd.getId(), sdr.testscriptTable(getProfileUsages()), f.getOutputNames(), r, vars, null);
 
     String sdPrefix = newIg ? "StructureDefinition-" : "";
     if (igpkp.wantGen(r, "csv")) {
@@ -11636,11 +12267,13 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       sdg.renderStructureDefinition(sd, false);
       sdg.finish(new FileOutputStream(path));
       lapsed("xslx");
-      if (allProfilesXlsx == null) {
-        allProfilesXlsx  = new StructureDefinitionSpreadsheetGenerator(context, true, false);
+      if (workerRc.get() == null) {
+        addToAllProfilesXlsx(sd);
+        lapsed("all-xslx");
+      } else {
+        // on a worker thread: the combined spreadsheet is built in changeList order once all the files are done
+        allProfilesXlsxQueue.computeIfAbsent(f, k -> new ArrayList<>()).add(sd);
       }
-      allProfilesXlsx.renderStructureDefinition(sd, true);
-      lapsed("all-xslx");
     }
 
     if (!regen && sd.getKind() != StructureDefinitionKind.LOGICAL &&  igpkp.wantGen(r, "sch")) {
@@ -11653,10 +12286,17 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       fragmentError("StructureDefinition-"+prefixForContainer+sd.getId()+"-sch", "yet to be done: schematron as html", null, f.getOutputNames());
   }
 
+  private void addToAllProfilesXlsx(StructureDefinition sd) throws Exception {
+    if (allProfilesXlsx == null) {
+      allProfilesXlsx  = new StructureDefinitionSpreadsheetGenerator(context, true, false);
+    }
+    allProfilesXlsx.renderStructureDefinition(sd, true);
+  }
+
   private void lapsed(String msg) {
     long now = System.currentTimeMillis();
-    long d = now - last;
-    last = now;
+    long d = now - last.get();
+    last.set(now);
     if (msg != null) {
       //      System.out.println("  "+msg+": "+Long.toString(d));
     }
@@ -11676,7 +12316,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void generateOutputsStructureMap(FetchedFile f, FetchedResource r, StructureMap map, Map<String,String> vars, String prefixForContainer) throws Exception {
-    StructureMapRenderer smr = new StructureMapRenderer(context, checkAppendSlash(specPath), map, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc, versionToAnnotate);
+    StructureMapRenderer smr = new StructureMapRenderer(context, checkAppendSlash(specPath), map, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc(), versionToAnnotate);
     if (igpkp.wantGen(r, "summary"))
       fragment("StructureMap-"+prefixForContainer+map.getId()+"-summary", smr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "summary-table"))
@@ -11697,7 +12337,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void generateOutputsCanonical(FetchedFile f, FetchedResource r, CanonicalResource cr, Map<String,String> vars, String prefixForContainer) throws Exception {
-    CanonicalRenderer smr = new CanonicalRenderer(context, checkAppendSlash(specPath), cr, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc, versionToAnnotate);
+    CanonicalRenderer smr = new CanonicalRenderer(context, checkAppendSlash(specPath), cr, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc(), versionToAnnotate);
     if (igpkp.wantGen(r, "summary"))
       fragment(cr.fhirType()+"-"+prefixForContainer+cr.getId()+"-summary", smr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "summary-table"))
@@ -11718,7 +12358,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void generateOutputsExampleScenario(FetchedFile f, FetchedResource r, ExampleScenario scen, Map<String,String> vars, String prefixForContainer) throws Exception {
-    ExampleScenarioRenderer er = new ExampleScenarioRenderer(context, checkAppendSlash(specPath), scen, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc.copy().setDefinitionsTarget(igpkp.getDefinitionsName(r)), versionToAnnotate);
+    ExampleScenarioRenderer er = new ExampleScenarioRenderer(context, checkAppendSlash(specPath), scen, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc().copy().setDefinitionsTarget(igpkp.getDefinitionsName(r)), versionToAnnotate);
     if (igpkp.wantGen(r, "actor-table"))
       fragment("ExampleScenario-"+prefixForContainer+scen.getId()+"-actor-table", er.render(ExampleScenarioRendererMode.ACTORS), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "instance-table"))
@@ -11730,7 +12370,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void generateOutputsQuestionnaire(FetchedFile f, FetchedResource r, Questionnaire q, Map<String,String> vars, String prefixForContainer) throws Exception {
-    QuestionnaireRenderer qr = new QuestionnaireRenderer(context, checkAppendSlash(specPath), q, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc.copy().setDefinitionsTarget(igpkp.getDefinitionsName(r)), versionToAnnotate);
+    QuestionnaireRenderer qr = new QuestionnaireRenderer(context, checkAppendSlash(specPath), q, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc().copy().setDefinitionsTarget(igpkp.getDefinitionsName(r)), versionToAnnotate);
     if (igpkp.wantGen(r, "summary"))
       fragment("Questionnaire-"+prefixForContainer+q.getId()+"-summary", qr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "summary-table"))
@@ -11777,7 +12417,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void generateOutputsQuestionnaireResponse(FetchedFile f, FetchedResource r, Map<String,String> vars, String prefixForContainer) throws Exception {
-    RenderingContext lrc = rc.copy().setParser(getTypeLoader(f, r));
+    RenderingContext lrc = rc().copy().setParser(getTypeLoader(f, r));
     String qu = getQuestionnaireURL(r);
     if (qu != null) {
       Questionnaire q = context.fetchResource(Questionnaire.class, qu);
@@ -11827,11 +12467,11 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (r.fhirType().equals("Bundle")) {
       // bundles are difficult and complicated. 
       //      if (true) {
-      //        RenderingContext lrc = rc.copy().setParser(getTypeLoader(f, r));
+      //        RenderingContext lrc = rc().copy().setParser(getTypeLoader(f, r));
       //        return new BundleRenderer(lrc).render(new ElementWrappers.ResourceWrapperMetaElement(lrc, r.getElement()));
       //      }
       if (r.getResource() != null && r.getResource() instanceof Bundle) {
-        RenderingContext lrc = rc.copy().setParser(getTypeLoader(f, r));
+        RenderingContext lrc = rc().copy().setParser(getTypeLoader(f, r));
         Bundle b = (Bundle) r.getResource();
         BundleRenderer br = new BundleRenderer(lrc);
         if (br.canRender(b)) {
@@ -11847,10 +12487,10 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
     if (r.getResource() != null && r.getResource() instanceof Parameters) {
       Parameters p = (Parameters) r.getResource();
-      return new ParametersRenderer(rc, new ResourceContext(null, p)).render(p);
+      return new ParametersRenderer(rc(), new ResourceContext(null, p)).render(p);
     }
     if (r.fhirType().equals("Parameters")) {
-      RenderingContext lrc = rc.copy().setParser(getTypeLoader(f, r));
+      RenderingContext lrc = rc().copy().setParser(getTypeLoader(f, r));
       return new ParametersRenderer(lrc, new ResourceContext(null, r.getElement())).render(new ElementWrappers.ResourceWrapperMetaElement(lrc, r.getElement()));
     } else {
       return getHtmlForResource(r.getElement());
@@ -11865,13 +12505,13 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
     if (resource instanceof Bundle) {
       Bundle b = (Bundle) resource;
-      return new BundleRenderer(rc).render(b);
+      return new BundleRenderer(rc()).render(b);
     }
     if (resource instanceof Parameters) {
       Parameters p = (Parameters) resource;
-      return new ParametersRenderer(rc, new ResourceContext(null, p)).render(p);
+      return new ParametersRenderer(rc(), new ResourceContext(null, p)).render(p);
     }
-    RenderingContext lrc = rc.copy().setParser(getTypeLoader(f, r));
+    RenderingContext lrc = rc().copy().setParser(getTypeLoader(f, r));
     return RendererFactory.factory(resource, lrc).build(resource);
   }
 
@@ -11893,10 +12533,12 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void trackedFragment(String id, String name, String content, Set<String> outputTracker) throws IOException, FHIRException {
-    if (!trackedFragments.containsKey(id)) {
-      trackedFragments.put(id, new ArrayList<>());      
+    synchronized (trackedFragments) {
+      if (!trackedFragments.containsKey(id)) {
+        trackedFragments.put(id, new ArrayList<>());      
+      }
+      trackedFragments.get(id).add(name+".xhtml");
     }
-    trackedFragments.get(id).add(name+".xhtml");
     fragment(name, content+HTMLInspector.TRACK_PREFIX+id+HTMLInspector.TRACK_SUFFIX, outputTracker, null, null, null);
   }
 
@@ -12136,17 +12778,34 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       System.out.println("  (default is http://tx.fhir.org)");
       System.out.println("  use 'n/a' to run without a terminology server");
       System.out.println("");
+      System.out.println("-compactTx: (optional) before the build, rewrite the terminology cache files with only the");
+      System.out.println("  latest answer for each request. Don't use this while another build is using the same cache");
+      System.out.println("  (-resetTxErrors does this too, as well as dropping the cached errors)");
+      System.out.println("");
       System.out.println("-no-network: (optional) Stop the IG publisher accessing the network");
       System.out.println("  Beware: the ig -pubisher will not function properly if the network is prohibited");
       System.out.println("  unless the package and terminology cache are correctly populated (not documented here)");
       System.out.println("");
-      //      System.out.println("-watch (optional): if this is present, the publisher will not terminate;");
-      //      System.out.println("  instead, it will stay running, an watch for changes to the IG or its ");
-      //      System.out.println("  contents and re-run when it sees changes ");
+      System.out.println("-watch (optional): if this is present, the publisher will not terminate;");
+      System.out.println("  instead, it will stay running, and watch for changes to the IG or its ");
+      System.out.println("  contents and run a full build again, with the same parameters, when it sees changes.");
+      System.out.println("  Each rebuild regenerates the whole IG; it only saves the time it takes to start the");
+      System.out.println("  publisher and open the package cache (use -build-cache as well to reuse validation)");
       System.out.println("");
       System.out.println("-packages: a directory to load packages (*.tgz) from before resolving dependencies");
       System.out.println("           this parameter can be present multiple times");
       System.out.println("");
+      System.out.println("-threads: (optional) the number of threads to use when generating snapshots,");
+      System.out.println("  narratives and html fragments and validating resources, or 'auto' to use one per");
+      System.out.println("  processor (default is 1)");
+      System.out.println("");
+      System.out.println("-build-cache: (optional) keep the validation results for each file in the terminology");
+      System.out.println("  cache folder, and reuse them in the next build if the file, and the profiles, value sets,");
+      System.out.println("  code systems and resources in the IG it was validated against or refers to, are unchanged");
+      System.out.println("  (any resource being added, removed or renamed, or any package or configuration change,");
+      System.out.println("  invalidates them all). This only caches validation: loading, snapshots, narratives and");
+      System.out.println("  rendering are done in full on every build");
+      System.out.println("");
       System.out.println("The most important output from the publisher is qa.html");
       System.out.println("");
       System.out.println("Alternatively, you can run the Publisher directly against a folder containing");
@@ -12253,6 +12912,8 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
             self.setCacheOption(CacheOption.CLEAR_ALL);
           } else if (CliParams.hasNamedParam(args, "-resetTxErrors")) {
             self.setCacheOption(CacheOption.CLEAR_ERRORS);
+          } else if (CliParams.hasNamedParam(args, "-compactTx")) {
+            self.setCacheOption(CacheOption.COMPACT);
           } else {
             self.setCacheOption(CacheOption.LEAVE);
           }
@@ -12300,149 +12961,18 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       //      }
       self.logMessage("Start Clock @ "+nowAsString(self.execTime)+" ("+nowAsDate(self.execTime)+")");
       self.logMessage("");
-      if (CliParams.hasNamedParam(args, "-auto-ig-build")) {
-        self.setMode(IGBuildMode.AUTOBUILD);
-        self.targetOutput = CliParams.getNamedParam(args, "-target");
-        self.repoSource = CliParams.getNamedParam(args, "-repo");
-      }
-
-      if (CliParams.hasNamedParam(args, "-no-narrative")) {
-        String param = CliParams.getNamedParam(args, "-no-narrative");
-        parseAndAddNoNarrativeParam(self, param);
-      }
-      if (CliParams.hasNamedParam(args, "-no-validate")) {
-        String param = CliParams.getNamedParam(args, "-no-validate");
-        parseAndAddNoValidateParam(self, param);
-      }
-      if (CliParams.hasNamedParam(args, "-no-network")) {
-        FhirSettings.setProhibitNetworkAccess(true);
-      }
-      if (FhirSettings.isProhibitNetworkAccess()) {
-        System.out.println("Running without network access - output may not be correct unless cache contents are correct");        
-      }
-
-      if (CliParams.hasNamedParam(args, "-validation-off")) {
-        self.validationOff = true;
-        System.out.println("Running without validation to shorten the run time (editor process only)");
-      }
-      if (CliParams.hasNamedParam(args, "-generation-off")) {
-        self.generationOff = true;
-        System.out.println("Running without generation to shorten the run time (editor process only)");
-      }
-
-      setTxServerValue(args, self);
-      if (CliParams.hasNamedParam(args, "-source")) {
-        // run with standard template. this is publishing lite
-        self.setSourceDir(CliParams.getNamedParam(args, "-source"));
-        self.setDestDir(CliParams.getNamedParam(args, "-destination"));
-        self.specifiedVersion = CliParams.getNamedParam(args, "-version");
-      } else if (!CliParams.hasNamedParam(args, "-ig") && args.length == 1 && new File(args[0]).exists()) {
-        self.setConfigFile(determineActualIG(args[0], IGBuildMode.MANUAL));
-      } else if (CliParams.hasNamedParam(args, "-prompt")) {
-        IniFile ini = new IniFile("publisher.ini");
-        String last = ini.getStringProperty("execute", "path");
-        boolean ok = false;
-        if (Utilities.noString(last)) {
-          while (!ok) {
-            System.out.print("Enter path of IG: ");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-            last = reader.readLine();
-            if (new File(last).exists()) {
-              ok = true;
-            } else {
-              System.out.println("Can't find "+last);
-            }
-          } 
-        } else {
-          while (!ok) {
-            System.out.print("Enter path of IG ["+last+"]: ");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-            String nlast = reader.readLine();
-            if (Utilities.noString(nlast))
-              nlast = last;
-            if (new File(nlast).exists()) {
-              ok = true;
-              last = nlast;
-            } else {
-              System.out.println("Can't find "+nlast);
-            }
-          }
-        }
-        ini.setStringProperty("execute", "path", last, null);
-        ini.save();
-        if (new File(last).isDirectory()) {
-          self.setConfigFile(determineActualIG(Utilities.path(last, "ig.json"), IGBuildMode.MANUAL));
-        } else {
-          self.setConfigFile(determineActualIG(last, IGBuildMode.MANUAL));
-        }
-      } else if (CliParams.hasNamedParam(args, "-simplifier")) {
-        if (!CliParams.hasNamedParam(args, "-destination")) {
-          throw new Exception("A destination folder (-destination) must be provided for the output from processing the simplifier IG");
-        }
-        if (!CliParams.hasNamedParam(args, "-canonical")) {
-          throw new Exception("A canonical URL (-canonical) must be provided in order to process a simplifier IG");
-        }
-        if (!CliParams.hasNamedParam(args, "-npm-name")) {
-          throw new Exception("A package name (-npm-name) must be provided in order to process a simplifier IG");
-        }
-        if (!CliParams.hasNamedParam(args, "-license")) {
-          throw new Exception("A license code (-license) must be provided in order to process a simplifier IG");
-        }
-        List<String> packages = new ArrayList<String>();
-        for (int i = 0; i < args.length; i++) {
-          if (args[i].equals("-dependsOn")) { 
-            packages.add(args[i+1]);
-          }
-        }
-        // create an appropriate ig.json in the specified folder
-        self.setConfigFile(generateIGFromSimplifier(CliParams.getNamedParam(args, "-simplifier"), CliParams.getNamedParam(args, "-destination"), CliParams.getNamedParam(args, "-canonical"), CliParams.getNamedParam(args, "-npm-name"), CliParams.getNamedParam(args, "-license"), packages));
-        self.folderToDelete = Utilities.getDirectoryForFile(self.getConfigFile());
-      } else {
-        self.setConfigFile(determineActualIG(CliParams.getNamedParam(args, "-ig"), self.mode));
-        if (Utilities.noString(self.getConfigFile())) {
-          throw new Exception("No Implementation Guide Specified (-ig parameter)");
-        }
-        self.setConfigFile(getAbsoluteConfigFilePath(self.getConfigFile()));
-      }
-      self.setJekyllCommand(CliParams.getNamedParam(args, "-jekyll"));
-      self.setIgPack(CliParams.getNamedParam(args, "-spec"));
-      String proxy = CliParams.getNamedParam(args, "-proxy");
-      if (!Utilities.noString(proxy)) {
-        String[] p = proxy.split("\\:");
-        System.setProperty("http.proxyHost", p[0]);
-        System.setProperty("http.proxyPort", p[1]);
-        System.setProperty("https.proxyHost", p[0]);
-        System.setProperty("https.proxyPort", p[1]);
-        System.out.println("Web Proxy = "+p[0]+":"+p[1]);
-      }
-      self.setTxServer(CliParams.getNamedParam(args, "-tx"));
-      self.setPackagesFolder(CliParams.getNamedParam(args, "-packages"));
+      parseOptions(self, args);
       if (CliParams.hasNamedParam(args, "-watch")) {
-        throw new Error("Watch mode (-watch) is no longer supported");
-      }
-      self.debug = CliParams.hasNamedParam(args, "-debug");
-      self.cacheVersion = CliParams.hasNamedParam(args, "-cacheVersion");
-      if (CliParams.hasNamedParam(args, "-publish")) {
-        self.setMode(IGBuildMode.PUBLICATION);
-        self.targetOutput = CliParams.getNamedParam(args, "-publish");
-        self.publishing  = true;
-        self.targetOutputNested = CliParams.getNamedParam(args, "-nested");
-      }
-      if (CliParams.hasNamedParam(args, "-resetTx")) {
-        self.setCacheOption(CacheOption.CLEAR_ALL);
-      } else if (CliParams.hasNamedParam(args, "-resetTxErrors")) {
-        self.setCacheOption(CacheOption.CLEAR_ERRORS);
-      } else {
-        self.setCacheOption(CacheOption.LEAVE);
-      }
-      if (CliParams.hasNamedParam(args, "-no-sushi")) {
-        self.noSushi = true;
-      }
-      if (CliParams.hasNamedParam(args, PACKAGE_CACHE_FOLDER_PARAM)) {
-        self.setPackageCacheFolder(CliParams.getNamedParam(args, PACKAGE_CACHE_FOLDER_PARAM));
+        if (self.getConfigFile() == null || self.folderToDelete != null || self.publishing || self.mode == IGBuildMode.AUTOBUILD || CliParams.hasNamedParam(args, "-prompt")) {
+          throw new Error("Watch mode (-watch) can only be used when building a local IG with -ig");
+        }
+        self.watchSession = new WatchSession();
       }
       try {
         self.execute();
+        if (self.watchSession != null) {
+          self.watchForChanges(args);
+        }
         if (CliParams.hasNamedParam(args, "-no-errors")) {
           exitCode = self.countErrs(self.errors) > 0 ? 1 : 0;
         }
@@ -12476,6 +13006,161 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
   }
 
+  /**
+   * sets up a publisher from the command line. Watch mode uses this for each rebuild too, so that 
+   * the rebuild gets exactly the options the first build was given
+   */
+  public static void parseOptions(Publisher self, String[] args) throws Exception {
+    if (CliParams.hasNamedParam(args, "-auto-ig-build")) {
+      self.setMode(IGBuildMode.AUTOBUILD);
+      self.targetOutput = CliParams.getNamedParam(args, "-target");
+      self.repoSource = CliParams.getNamedParam(args, "-repo");
+    }
+
+    if (CliParams.hasNamedParam(args, "-no-narrative")) {
+      String param = CliParams.getNamedParam(args, "-no-narrative");
+      parseAndAddNoNarrativeParam(self, param);
+    }
+    if (CliParams.hasNamedParam(args, "-no-validate")) {
+      String param = CliParams.getNamedParam(args, "-no-validate");
+      parseAndAddNoValidateParam(self, param);
+    }
+    if (CliParams.hasNamedParam(args, "-no-network")) {
+      FhirSettings.setProhibitNetworkAccess(true);
+    }
+    if (FhirSettings.isProhibitNetworkAccess()) {
+      System.out.println("Running without network access - output may not be correct unless cache contents are correct");        
+    }
+
+    if (CliParams.hasNamedParam(args, "-validation-off")) {
+      self.validationOff = true;
+      System.out.println("Running without validation to shorten the run time (editor process only)");
+    }
+    if (CliParams.hasNamedParam(args, "-generation-off")) {
+      self.generationOff = true;
+      System.out.println("Running without generation to shorten the run time (editor process only)");
+    }
+    if (CliParams.hasNamedParam(args, "-build-cache")) {
+      self.useBuildCache = true;
+      System.out.println("Reusing validation results from the previous build for files whose definitions are unchanged");
+    }
+    if (CliParams.hasNamedParam(args, "-threads")) {
+      self.threads = WorkerPool.parseThreadCount(CliParams.getNamedParam(args, "-threads"));
+      System.out.println("Using up to "+self.threads+" worker threads");
+    }
+
+    setTxServerValue(args, self);
+    if (CliParams.hasNamedParam(args, "-source")) {
+      // run with standard template. this is publishing lite
+      self.setSourceDir(CliParams.getNamedParam(args, "-source"));
+      self.setDestDir(CliParams.getNamedParam(args, "-destination"));
+      self.specifiedVersion = CliParams.getNamedParam(args, "-version");
+    } else if (!CliParams.hasNamedParam(args, "-ig") && args.length == 1 && new File(args[0]).exists()) {
+      self.setConfigFile(determineActualIG(args[0], IGBuildMode.MANUAL));
+    } else if (CliParams.hasNamedParam(args, "-prompt")) {
+      IniFile ini = new IniFile("publisher.ini");
+      String last = ini.getStringProperty("execute", "path");
+      boolean ok = false;
+      if (Utilities.noString(last)) {
+        while (!ok) {
+          System.out.print("Enter path of IG: ");
+          BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+          last = reader.readLine();
+          if (new File(last).exists()) {
+            ok = true;
+          } else {
+            System.out.println("Can't find "+last);
+          }
+        } 
+      } else {
+        while (!ok) {
+          System.out.print("Enter path of IG ["+last+"]: ");
+          BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+          String nlast = reader.readLine();
+          if (Utilities.noString(nlast))
+            nlast = last;
+          if (new File(nlast).exists()) {
+            ok = true;
+            last = nlast;
+          } else {
+            System.out.println("Can't find "+nlast);
+          }
+        }
+      }
+      ini.setStringProperty("execute", "path", last, null);
+      ini.save();
+      if (new File(last).isDirectory()) {
+        self.setConfigFile(determineActualIG(Utilities.path(last, "ig.json"), IGBuildMode.MANUAL));
+      } else {
+        self.setConfigFile(determineActualIG(last, IGBuildMode.MANUAL));
+      }
+    } else if (CliParams.hasNamedParam(args, "-simplifier")) {
+      if (!CliParams.hasNamedParam(args, "-destination")) {
+        throw new Exception("A destination folder (-destination) must be provided for the output from processing the simplifier IG");
+      }
+      if (!CliParams.hasNamedParam(args, "-canonical")) {
+        throw new Exception("A canonical URL (-canonical) must be provided in order to process a simplifier IG");
+      }
+      if (!CliParams.hasNamedParam(args, "-npm-name")) {
+        throw new Exception("A package name (-npm-name) must be provided in order to process a simplifier IG");
+      }
+      if (!CliParams.hasNamedParam(args, "-license")) {
+        throw new Exception("A license code (-license) must be provided in order to process a simplifier IG");
+      }
+      List<String> packages = new ArrayList<String>();
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-dependsOn")) { 
+          packages.add(args[i+1]);
+        }
+      }
+      // create an appropriate ig.json in the specified folder
+      self.setConfigFile(generateIGFromSimplifier(CliParams.getNamedParam(args, "-simplifier"), CliParams.getNamedParam(args, "-destination"), CliParams.getNamedParam(args, "-canonical"), CliParams.getNamedParam(args, "-npm-name"), CliParams.getNamedParam(args, "-license"), packages));
+      self.folderToDelete = Utilities.getDirectoryForFile(self.getConfigFile());
+    } else {
+      self.setConfigFile(determineActualIG(CliParams.getNamedParam(args, "-ig"), self.mode));
+      if (Utilities.noString(self.getConfigFile())) {
+        throw new Exception("No Implementation Guide Specified (-ig parameter)");
+      }
+      self.setConfigFile(getAbsoluteConfigFilePath(self.getConfigFile()));
+    }
+    self.setJekyllCommand(CliParams.getNamedParam(args, "-jekyll"));
+    self.setIgPack(CliParams.getNamedParam(args, "-spec"));
+    String proxy = CliParams.getNamedParam(args, "-proxy");
+    if (!Utilities.noString(proxy)) {
+      String[] p = proxy.split("\\:");
+      System.setProperty("http.proxyHost", p[0]);
+      System.setProperty("http.proxyPort", p[1]);
+      System.setProperty("https.proxyHost", p[0]);
+      System.setProperty("https.proxyPort", p[1]);
+      System.out.println("Web Proxy = "+p[0]+":"+p[1]);
+    }
+    self.setTxServer(CliParams.getNamedParam(args, "-tx"));
+    self.setPackagesFolder(CliParams.getNamedParam(args, "-packages"));
+    self.debug = CliParams.hasNamedParam(args, "-debug");
+    self.cacheVersion = CliParams.hasNamedParam(args, "-cacheVersion");
+    if (CliParams.hasNamedParam(args, "-publish")) {
+      self.setMode(IGBuildMode.PUBLICATION);
+      self.targetOutput = CliParams.getNamedParam(args, "-publish");
+      self.publishing  = true;
+      self.targetOutputNested = CliParams.getNamedParam(args, "-nested");
+    }
+    if (CliParams.hasNamedParam(args, "-resetTx")) {
+      self.setCacheOption(CacheOption.CLEAR_ALL);
+    } else if (CliParams.hasNamedParam(args, "-resetTxErrors")) {
+      self.setCacheOption(CacheOption.CLEAR_ERRORS);
+    } else if (CliParams.hasNamedParam(args, "-compactTx")) {
+      self.setCacheOption(CacheOption.COMPACT);
+    } else {
+      self.setCacheOption(CacheOption.LEAVE);
+    }
+    if (CliParams.hasNamedParam(args, "-no-sushi")) {
+      self.noSushi = true;
+    }
+    if (CliParams.hasNamedParam(args, PACKAGE_CACHE_FOLDER_PARAM)) {
+      self.setPackageCacheFolder(CliParams.getNamedParam(args, PACKAGE_CACHE_FOLDER_PARAM));
+    }
+  }
+
   public static String getAbsoluteConfigFilePath(String configFilePath) throws IOException {
     if (new File(configFilePath).isAbsolute()) {
       return configFilePath;
@@ -12884,7 +13569,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
 
   @Override
-  public void recordProfileUsage(StructureDefinition profile, Object appContext, Element element) {
+  public synchronized void recordProfileUsage(StructureDefinition profile, Object appContext, Element element) {
     if (profile != null && profile.getUrl().startsWith(igpkp.getCanonical())) { // ignore anything we didn't define
       FetchedResource example;
       if (appContext instanceof ValidationContext) {
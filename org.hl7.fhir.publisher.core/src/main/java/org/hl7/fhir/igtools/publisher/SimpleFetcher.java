@@ -21,11 +21,13 @@ package org.hl7.fhir.igtools.publisher;
  */
 
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -37,6 +39,7 @@ import org.hl7.fhir.r5.context.ILoggingService;
 import org.hl7.fhir.r5.context.ILoggingService.LogCategory;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.elementmodel.FmlParser;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r5.elementmodel.ValidatedFragment;
 import org.hl7.fhir.r5.formats.FormatUtilities;
 import org.hl7.fhir.r5.model.CanonicalType;
@@ -63,9 +66,9 @@ public class SimpleFetcher implements IFetchFile {
   private List<String> resourceDirs;
   private ILoggingService log;
   private String rootDir;
-  private FmlParser fp;
   private boolean debug = false;
   private boolean report = true;
+  private int threads = 1;
 
   
   public SimpleFetcher(ILoggingService log) {
@@ -116,11 +119,7 @@ public class SimpleFetcher implements IFetchFile {
       } else if (path.endsWith("xml")) {
         ff.setContentType("application/fhir+xml");
       }
-      InputStream ss = new FileInputStream(f);
-      byte[] b = new byte[ss.available()];
-      ss.read(b, 0, ss.available());
-      ff.setSource(b);
-      ss.close();
+      ff.setSource(TextFile.fileToBytes(f.getAbsolutePath()));
     }
     return ff;
   }
@@ -157,11 +156,7 @@ public class SimpleFetcher implements IFetchFile {
     } else if (f.getName().endsWith("xml")) {
       ff.setContentType("application/fhir+xml");
     }
-    InputStream ss = new FileInputStream(f);
-    byte[] b = new byte[ss.available()];
-    ss.read(b, 0, ss.available());
-    ff.setSource(b);
-    ss.close();
+    ff.setSource(TextFile.fileToBytes(f.getAbsolutePath()));
     return ff;
   }
 
@@ -325,90 +320,41 @@ public class SimpleFetcher implements IFetchFile {
       throw new FHIRException("No Source directories to scan found"); // though it's not possible to get to this point...
 
     List<FetchedFile> res = new ArrayList<>();
+    WorkerPool pool = new WorkerPool("scan", threads);
     for (String s : Utilities.sorted(sources)) {
       int count = 0;
       File file = new File(s);
       if (file.exists()) {
+        List<ScannedFile> files = new ArrayList<>();
         for (File f : file.listFiles()) {
           if (!f.isDirectory()) {
 //            System.out.println("scanning: "+f.getAbsolutePath());
             String fn = f.getCanonicalPath();
             String ext = Utilities.getFileExtension(fn);
             if (!Utilities.existsInList(ext, "md", "txt") && !fn.endsWith(".gitignore") && !fn.contains("-spreadsheet") && !isIgnoredFile(f.getName())) {
-              boolean ok = false;
-              if (!Utilities.existsInList(ext, fixedFileTypes()))
-                try {
-                  org.hl7.fhir.r5.elementmodel.Element e = new org.hl7.fhir.r5.elementmodel.XmlParser(context).parseSingle(new FileInputStream(f), null);
-                  addFile(res, f, e, "application/fhir+xml");
-                  count++;
-                  ok = true;
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-") && !f.getName().startsWith("binary-") ) { // we don't notify here because Binary is special. 
-                    if (report) {
-                      log.logMessage("Error loading "+f+" as XML: "+e.getMessage());
-                      if (debug) {
-                        e.printStackTrace();
-                      }
-                    }
-                  }
-                }
-              if (!ok && !Utilities.existsInList(ext, "xml", "ttl", "html", "txt", "fml")) {
-                try {
-                  List<ValidatedFragment> el = new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(new FileInputStream(fn));
-                  if (el.size() == 1) {
-                    addFile(res, f, el.get(0).getElement(), "application/fhir+json");
-                    count++;
-                    ok = true;
-                  }
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
-                    if (report) {
-                      log.logMessage("Error loading "+f+" as JSON: "+e.getMessage());
-                      if (debug) {
-                        e.printStackTrace();
-                      }
-                    }
-                  }
-                }
-              }
-              if (!ok && !Utilities.existsInList(ext, "json", "xml", "html", "txt", "fml")) {
-                try {
-                  org.hl7.fhir.r5.elementmodel.Element e = new org.hl7.fhir.r5.elementmodel.TurtleParser(context).parseSingle(new FileInputStream(fn), null);
-                  addFile(res, f, e, "application/fhir+turtle");
-                  count++;
-                  ok = true;
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
-                    if (report) {
-                      log.logMessage("Error loading "+f+" as Turtle: "+e.getMessage());
-                      if (debug) {
-                        e.printStackTrace();
-                      }
-                    }
-
-                  }
-                }
-              }              
-              if (!ok && !Utilities.existsInList(ext, "json", "xml", "html", "txt")) {
-                try {
-                  if (fp==null) {
-                    fp = new FmlParser(context);
-                  }
-                  org.hl7.fhir.r5.elementmodel.Element e  = fp.parse(new FileInputStream(f)).get(0).getElement();
-                  addFile(res, f, e, "fml");
-                  count++;
-                  ok = true;
-                } catch (Exception e) {
-                  if (!f.getName().startsWith("Binary-")) { // we don't notify here because Binary is special. 
-                    if (report) {
-                      log.logMessage("Error loading "+f+" as FML: "+e.getMessage());
-                      if (debug) {
-                        e.printStackTrace();
-                      }
-                    }
-                  }
-                }
-              }
+              files.add(new ScannedFile(f, ext));
+            }
+          }
+        }
+        // the files are parsed on the pool, but the outcomes are reported and collected in directory order
+        try {
+          pool.run(files, sf -> scanFile(sf, context));
+        } catch (IOException | RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+        for (ScannedFile sf : files) {
+          for (int i = 0; i < sf.errors.size(); i++) {
+            log.logMessage(sf.errors.get(i));
+            if (debug) {
+              sf.exceptions.get(i).printStackTrace();
+            }
+          }
+          if (sf.loaded) {
+            count++;
+            if (sf.ff != null) {
+              res.add(sf.ff);
             }
           }
         }
@@ -419,6 +365,121 @@ public class SimpleFetcher implements IFetchFile {
     return res;
   }
 
+  private static class ScannedFile {
+    private File file;
+    private String ext;
+    private boolean loaded;
+    private FetchedFile ff;
+    private List<String> errors = new ArrayList<>();
+    private List<Exception> exceptions = new ArrayList<>();
+
+    private ScannedFile(File file, String ext) {
+      this.file = file;
+      this.ext = ext;
+    }
+  }
+
+  /**
+   * The file is read once, and parsed with the parser that matches its first few bytes. The other parsers
+   * are only tried (in the same order as always, and subject to the same file extension rules) if that doesn't work
+   */
+  private void scanFile(ScannedFile sf, IWorkerContext context) throws IOException {
+    File f = sf.file;
+    byte[] src = TextFile.fileToBytes(f.getAbsolutePath());
+    List<FhirFormat> formats = new ArrayList<>();
+    if (!Utilities.existsInList(sf.ext, fixedFileTypes())) {
+      formats.add(FhirFormat.XML);
+    }
+    if (!Utilities.existsInList(sf.ext, "xml", "ttl", "html", "txt", "fml")) {
+      formats.add(FhirFormat.JSON);
+    }
+    if (!Utilities.existsInList(sf.ext, "json", "xml", "html", "txt", "fml")) {
+      formats.add(FhirFormat.TURTLE);
+    }
+    if (!Utilities.existsInList(sf.ext, "json", "xml", "html", "txt")) {
+      formats.add(FhirFormat.FML);
+    }
+    FhirFormat sniffed = sniffFormat(src);
+    if (sniffed != null && formats.remove(sniffed)) {
+      formats.add(0, sniffed);
+    }
+    for (FhirFormat fmt : formats) {
+      try {
+        switch (fmt) {
+        case XML:
+          addFile(sf, new org.hl7.fhir.r5.elementmodel.XmlParser(context).parseSingle(new ByteArrayInputStream(src), null), src, "application/fhir+xml");
+          return;
+        case JSON:
+          List<ValidatedFragment> el = new org.hl7.fhir.r5.elementmodel.JsonParser(context).parse(new ByteArrayInputStream(src));
+          if (el.size() == 1) {
+            addFile(sf, el.get(0).getElement(), src, "application/fhir+json");
+            return;
+          }
+          break;
+        case TURTLE:
+          addFile(sf, new org.hl7.fhir.r5.elementmodel.TurtleParser(context).parseSingle(new ByteArrayInputStream(src), null), src, "application/fhir+turtle");
+          return;
+        case FML:
+          addFile(sf, new FmlParser(context).parse(new ByteArrayInputStream(src)).get(0).getElement(), src, "fml");
+          return;
+        default:
+          break;
+        }
+      } catch (Exception e) {
+        // we don't notify here because Binary is special. 
+        if (report && !f.getName().startsWith("Binary-") && !(fmt == FhirFormat.XML && f.getName().startsWith("binary-"))) {
+          sf.errors.add("Error loading "+f+" as "+formatName(fmt)+": "+e.getMessage());
+          sf.exceptions.add(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * works out what the content is from the first non-whitespace characters, or null if it's not clear
+   */
+  public static FhirFormat sniffFormat(byte[] src) {
+    int i = 0;
+    if (src.length >= 3 && (src[0] & 0xFF) == 0xEF && (src[1] & 0xFF) == 0xBB && (src[2] & 0xFF) == 0xBF) {
+      i = 3;
+    }
+    while (i < src.length && Character.isWhitespace(src[i])) {
+      i++;
+    }
+    if (i == src.length) {
+      return null;
+    }
+    String start = new String(src, i, Math.min(src.length - i, 8), StandardCharsets.UTF_8);
+    switch (start.charAt(0)) {
+    case '<':
+      return FhirFormat.XML;
+    case '{':
+      return FhirFormat.JSON;
+    case '@':
+      return FhirFormat.TURTLE;
+    case '/':
+      return FhirFormat.FML;
+    default:
+      if (start.startsWith("PREFIX") || start.startsWith("BASE")) {
+        return FhirFormat.TURTLE;
+      } else if (start.startsWith("map ") || start.startsWith("map\t")) {
+        return FhirFormat.FML;
+      } else {
+        return null;
+      }
+    }
+  }
+
+  private String formatName(FhirFormat fmt) {
+    switch (fmt) {
+    case XML: return "XML";
+    case JSON: return "JSON";
+    case TURTLE: return "Turtle";
+    case FML: return "FML";
+    default: return fmt.toCode();
+    }
+  }
+
   private List<String> fixedFileTypes() {
     return Utilities.strings(
         // known file types we have parsers for
@@ -428,24 +489,21 @@ public class SimpleFetcher implements IFetchFile {
         "jpg", "png", "gif", "mp3", "mp4", "pfd", "doc", "docx", "ppt", "pptx", "svg");
   }
 
-  private void addFile(List<FetchedFile> res, File f, org.hl7.fhir.r5.elementmodel.Element e, String cnt) throws IOException {
+  private void addFile(ScannedFile sf, org.hl7.fhir.r5.elementmodel.Element e, byte[] src, String cnt) throws IOException {
+    sf.loaded = true;
     if (!e.fhirType().equals("ImplementationGuide"))
-      addFile(res, f, cnt);
+      sf.ff = makeFile(sf.file, src, cnt);
   }
   
-  private void addFile(List<FetchedFile> res, File f, String cnt) throws IOException {
+  private FetchedFile makeFile(File f, byte[] src, String cnt) throws IOException {
     FetchedFile ff = new FetchedFile(new File(rootDir).toURI().relativize(f.toURI()).getPath());
     ff.setPath(f.getCanonicalPath());
     ff.setName(fileTitle(f.getCanonicalPath()));
     ff.setTime(f.lastModified());
     ff.setFolder(false);   
     ff.setContentType(cnt);
-    InputStream ss = new FileInputStream(f);
-    byte[] b = new byte[ss.available()];
-    ss.read(b, 0, ss.available());
-    ff.setSource(b);
-    ss.close();
-    res.add(ff);    
+    ff.setSource(src);
+    return ff;
   }
 
   public ILoggingService getLogger() {
@@ -507,6 +565,14 @@ public class SimpleFetcher implements IFetchFile {
     this.debug = debug;
   }
 
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
   public boolean isReport() {
     return report;
   }
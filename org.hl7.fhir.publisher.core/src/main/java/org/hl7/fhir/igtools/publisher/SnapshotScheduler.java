@@ -0,0 +1,152 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.Utilities;
+
+/**
+ * Works out the order in which the IG's own StructureDefinitions can have their snapshots generated.
+ *
+ * A profile depends on its base, and on any local profile it uses as a type profile in its differential
+ * (snapshot generation walks into those). The profiles are arranged in waves: everything in a wave
+ * only depends on things in earlier waves (or on things that aren't in the IG, or are already snapshotted),
+ * so the profiles in a wave can be generated at the same time.
+ *
+ * Within a wave, work is grouped by file, in fileList order, so that messages are added to each file
+ * in a predictable order.
+ */
+public class SnapshotScheduler {
+
+  public static class SnapshotTask {
+    private FetchedFile file;
+    private List<FetchedResource> resources = new ArrayList<>();
+
+    public SnapshotTask(FetchedFile file) {
+      super();
+      this.file = file;
+    }
+
+    public FetchedFile getFile() {
+      return file;
+    }
+
+    public List<FetchedResource> getResources() {
+      return resources;
+    }
+  }
+
+  private Map<String, FetchedResource> byUrl = new HashMap<>();
+  private Map<FetchedResource, FetchedFile> files = new HashMap<>();
+  private Map<FetchedResource, Integer> levels = new HashMap<>();
+  private Set<FetchedResource> inProgress = new HashSet<>();
+
+  public List<List<SnapshotTask>> schedule(List<FetchedFile> fileList) {
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (r.getResource() instanceof StructureDefinition && !r.isSnapshotted()) {
+          StructureDefinition sd = (StructureDefinition) r.getResource();
+          files.put(r, f);
+          byUrl.put(sd.getUrl(), r);
+          if (sd.hasVersion()) {
+            byUrl.put(sd.getUrl()+"|"+sd.getVersion(), r);
+          }
+        }
+      }
+    }
+
+    List<List<SnapshotTask>> waves = new ArrayList<>();
+    for (FetchedFile f : fileList) {
+      for (FetchedResource r : f.getResources()) {
+        if (files.containsKey(r)) {
+          int level = level(r);
+          while (waves.size() <= level) {
+            waves.add(new ArrayList<>());
+          }
+          List<SnapshotTask> wave = waves.get(level);
+          SnapshotTask task = wave.isEmpty() ? null : wave.get(wave.size()-1);
+          if (task == null || task.getFile() != f) {
+            task = new SnapshotTask(f);
+            wave.add(task);
+          }
+          task.getResources().add(r);
+        }
+      }
+    }
+    return waves;
+  }
+
+  private int level(FetchedResource r) {
+    Integer res = levels.get(r);
+    if (res != null) {
+      return res;
+    }
+    inProgress.add(r);
+    int level = 0;
+    for (FetchedResource dep : dependencies((StructureDefinition) r.getResource())) {
+      // a circular reference is left to generateSnapshot to report, as it always has
+      if (dep != r && !inProgress.contains(dep)) {
+        level = Math.max(level, level(dep) + 1);
+      }
+    }
+    inProgress.remove(r);
+    levels.put(r, level);
+    return level;
+  }
+
+  private Set<FetchedResource> dependencies(StructureDefinition sd) {
+    Set<FetchedResource> res = new HashSet<>();
+    if (sd.hasBaseDefinition()) {
+      addDependency(res, sd.getBaseDefinition());
+    }
+    for (ElementDefinition ed : sd.getDifferential().getElement()) {
+      for (TypeRefComponent t : ed.getType()) {
+        if (t.hasCode() && Utilities.isAbsoluteUrl(t.getCode())) {
+          addDependency(res, t.getCode());
+        }
+        for (CanonicalType p : t.getProfile()) {
+          addDependency(res, p.getValue());
+        }
+      }
+    }
+    return res;
+  }
+
+  private void addDependency(Set<FetchedResource> res, String url) {
+    if (url != null) {
+      FetchedResource r = byUrl.get(url);
+      if (r != null) {
+        res.add(r);
+      }
+    }
+  }
+}
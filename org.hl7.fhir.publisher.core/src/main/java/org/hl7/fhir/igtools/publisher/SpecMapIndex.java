@@ -0,0 +1,161 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Answers 'which of these specifications could this link be pointing into' without walking every SpecMapManager.
+ *
+ * The bases (and versioned bases) of the specs are held in a character trie, so a link is matched against all
+ * of them in a single pass along the link. Only the specs whose base is a prefix of the link are then asked,
+ * using SpecMapManager.hasTarget / hasImage as always, so the answers are the same as looping over the list.
+ *
+ * In addition, a set of exact urls (bases, downloads, etc.) that are known to resolve can be registered.
+ *
+ * Only specs with a base are indexed (SpecMapManagers without a base can't resolve anything).
+ */
+public class SpecMapIndex {
+
+  private class Node {
+    private Map<Character, Node> children;
+    private List<SpecMapManager> bases; // specs with this as base
+    private List<SpecMapManager> bases2; // specs with this as versioned base
+
+    private Node child(char ch, boolean create) {
+      if (children == null) {
+        if (!create) {
+          return null;
+        }
+        children = new HashMap<>();
+      }
+      Node res = children.get(ch);
+      if (res == null && create) {
+        res = new Node();
+        children.put(ch, res);
+      }
+      return res;
+    }
+  }
+
+  private Node root = new Node();
+  private Set<String> known = new HashSet<>();
+
+  public SpecMapIndex(List<SpecMapManager> specs) {
+    if (specs != null) {
+      for (SpecMapManager spec : specs) {
+        if (spec.getBase() != null) {
+          Node n = node(spec.getBase());
+          if (n.bases == null) {
+            n.bases = new ArrayList<>();
+          }
+          n.bases.add(spec);
+          if (spec.getBase2() != null) {
+            n = node(spec.getBase2());
+            if (n.bases2 == null) {
+              n.bases2 = new ArrayList<>();
+            }
+            n.bases2.add(spec);
+          }
+        }
+      }
+    }
+  }
+
+  private Node node(String url) {
+    Node n = root;
+    for (int i = 0; i < url.length(); i++) {
+      n = n.child(url.charAt(i), true);
+    }
+    return n;
+  }
+
+  /**
+   * all the specs whose base or versioned base is a prefix of the url, in the order the bases are found along the url
+   */
+  private List<SpecMapManager> match(String url, boolean includeVersioned) {
+    List<SpecMapManager> res = new ArrayList<>();
+    Node n = root;
+    int i = 0;
+    while (n != null) {
+      if (n.bases != null) {
+        res.addAll(n.bases);
+      }
+      if (includeVersioned && n.bases2 != null) {
+        res.addAll(n.bases2);
+      }
+      n = i < url.length() ? n.child(url.charAt(i), false) : null;
+      i++;
+    }
+    return res;
+  }
+
+  public void addKnown(String url) {
+    if (url != null) {
+      known.add(url);
+    }
+  }
+
+  public boolean isKnown(String url) {
+    return known.contains(url);
+  }
+
+  /**
+   * same as asking spec.hasTarget(tgt) for each spec
+   */
+  public boolean hasTarget(String tgt) {
+    for (SpecMapManager spec : match(tgt, true)) {
+      if (spec.hasTarget(tgt)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * same as asking spec.hasImage(tgt) for each spec
+   */
+  public boolean hasImage(String tgt) {
+    if (tgt == null) {
+      return false;
+    }
+    for (SpecMapManager spec : match(tgt, false)) {
+      if (spec.hasImage(tgt)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * the specs for which url.startsWith(spec.getBase())
+   */
+  public List<SpecMapManager> specsForBase(String url) {
+    return match(url, false);
+  }
+}
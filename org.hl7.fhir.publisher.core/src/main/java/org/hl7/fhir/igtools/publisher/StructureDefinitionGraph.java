@@ -0,0 +1,162 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.Extension;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+/**
+ * The relationships between all the StructureDefinitions in the context: which structures are derived from
+ * a structure (baseDefinition), which use it as a type, a type profile or a target profile in their differential,
+ * and which refer to it from an extension on the structure itself (e.g. imposeProfile).
+ *
+ * Built once per build, before the first profile is rendered, so that rendering each profile's usage doesn't have to look at every
+ * structure in the core spec and the dependencies.
+ *
+ * Links are keyed by the url of the structure referred to, without any version, and keep the reference as
+ * it was made. They're in the order the context lists the structures.
+ */
+public class StructureDefinitionGraph {
+
+  public static class Link {
+    private StructureDefinition source;
+    private String reference;
+
+    public Link(StructureDefinition source, String reference) {
+      super();
+      this.source = source;
+      this.reference = reference;
+    }
+
+    /**
+     * the structure that makes the reference
+     */
+    public StructureDefinition getSource() {
+      return source;
+    }
+
+    /**
+     * the reference exactly as the source makes it (may have a |version)
+     */
+    public String getReference() {
+      return reference;
+    }
+  }
+
+  private Map<String, List<Link>> derived = new HashMap<>();
+  private Map<String, List<Link>> types = new HashMap<>();
+  private Map<String, List<Link>> profiles = new HashMap<>();
+  private Map<String, List<Link>> targetProfiles = new HashMap<>();
+  private Map<String, Map<String, List<Link>>> extensions = new HashMap<>();
+
+  /**
+   * @param extensionUrls the extensions on StructureDefinition whose values are references to other structures
+   */
+  public StructureDefinitionGraph(List<StructureDefinition> structures, String... extensionUrls) {
+    super();
+    for (String u : extensionUrls) {
+      extensions.put(u, new HashMap<>());
+    }
+    for (StructureDefinition sd : structures) {
+      add(derived, sd, sd.getBaseDefinition());
+      for (Extension ext : sd.getExtension()) {
+        Map<String, List<Link>> map = extensions.get(ext.getUrl());
+        if (map != null && ext.hasValue()) {
+          add(map, sd, ext.getValue().primitiveValue());
+        }
+      }
+      for (ElementDefinition ed : sd.getDifferential().getElement()) {
+        for (TypeRefComponent tr : ed.getType()) {
+          add(types, sd, tr.getCode());
+          for (CanonicalType u : tr.getProfile()) {
+            add(profiles, sd, u.getValue());
+          }
+          for (CanonicalType u : tr.getTargetProfile()) {
+            add(targetProfiles, sd, u.getValue());
+          }
+        }
+      }
+    }
+  }
+
+  private void add(Map<String, List<Link>> map, StructureDefinition sd, String reference) {
+    if (reference != null) {
+      String url = reference.contains("|") ? reference.substring(0, reference.indexOf("|")) : reference;
+      List<Link> list = map.get(url);
+      if (list == null) {
+        list = new ArrayList<>();
+        map.put(url, list);
+      }
+      list.add(new Link(sd, reference));
+    }
+  }
+
+  private List<Link> get(Map<String, List<Link>> map, String url) {
+    List<Link> list = map == null || url == null ? null : map.get(url);
+    return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+  }
+
+  /**
+   * structures that have the url as their baseDefinition
+   */
+  public List<Link> getDerived(String url) {
+    return get(derived, url);
+  }
+
+  /**
+   * structures with a differential element whose type code is the url (one link per type)
+   */
+  public List<Link> getTypeUsers(String url) {
+    return get(types, url);
+  }
+
+  /**
+   * structures with a differential element that has the url as a type profile (one link per profile)
+   */
+  public List<Link> getProfileUsers(String url) {
+    return get(profiles, url);
+  }
+
+  /**
+   * structures with a differential element that has the url as a target profile (one link per profile)
+   */
+  public List<Link> getTargetProfileUsers(String url) {
+    return get(targetProfiles, url);
+  }
+
+  /**
+   * structures that have the extension, with the url as its value. The extension must be one the graph was built for
+   */
+  public List<Link> getExtensionUsers(String extensionUrl, String url) {
+    return get(extensions.get(extensionUrl), url);
+  }
+}
@@ -10,6 +10,8 @@ import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
 
 public class SuppressedMessageInformation {
 
+  private static final String SLICE_NOTE = " (this may not be a problem, but you should check that it's not intended to match a slice)";
+
   public class SuppressedMessageListSorter implements Comparator<SuppressedMessage> {
 
     @Override
@@ -81,7 +83,7 @@ public class SuppressedMessageInformation {
     }
 
     public boolean matches(String msg) {
-      return matchesInner(msg) || matchesInner(msg.replace(" (this may not be a problem, but you should check that it's not intended to match a slice)", ""));
+      return matchesInner(msg) || matchesInner(msg.replace(SLICE_NOTE, ""));
     }
     
     private boolean matchesInner(String msg) {
@@ -102,29 +104,53 @@ public class SuppressedMessageInformation {
   
   private List<Category> categories = new ArrayList<>();
 
+  // all the messages in category order, and the category each is in, indexed the same as the matcher
+  private SuppressedMessageMatcher matcher;
+  private List<SuppressedMessage> matcherMessages;
+  private List<Category> matcherCategories;
+
   public boolean contains(String message, ValidationMessage vMsg) {
     if (message == null) {
       return false;
     }
     String msg = message.toLowerCase().trim();
-    for (Category c : categories) {
-      for (SuppressedMessage sm : c.messages) {
-        boolean match = sm.matches(msg);
-        if (match) {
-          if (!vMsg.isMatched()) {
-            if (vMsg.getLevel() == IssueSeverity.WARNING) {
-              sm.useWarning();
-            } else {
-              sm.useHint();
-            }
-            vMsg.setMatched(true);
-            vMsg.setComment(c.name);
-          }
-          return true;
+    SuppressedMessageMatcher m = getMatcher();
+    int i = msg.contains(SLICE_NOTE) ? m.match(msg, msg.replace(SLICE_NOTE, "")) : m.match(msg);
+    if (i < 0) {
+      return false;
+    }
+    SuppressedMessage sm = matcherMessages.get(i);
+    if (!vMsg.isMatched()) {
+      if (vMsg.getLevel() == IssueSeverity.WARNING) {
+        sm.useWarning();
+      } else {
+        sm.useHint();
+      }
+      vMsg.setMatched(true);
+      vMsg.setComment(matcherCategories.get(i).name);
+    }
+    return true;
+  }
+
+  /**
+   * the patterns are compiled the first time a message is checked (and again if more are added after that)
+   */
+  private synchronized SuppressedMessageMatcher getMatcher() {
+    if (matcher == null) {
+      SuppressedMessageMatcher m = new SuppressedMessageMatcher();
+      matcherMessages = new ArrayList<>();
+      matcherCategories = new ArrayList<>();
+      for (Category c : categories) {
+        for (SuppressedMessage sm : c.messages) {
+          m.add(sm.compType, sm.messageComp);
+          matcherMessages.add(sm);
+          matcherCategories.add(c);
         }
       }
+      m.build();
+      matcher = m;
     }
-    return false;
+    return matcher;
   }
 
   public int count() {
@@ -159,6 +185,7 @@ public class SuppressedMessageInformation {
     if (msg == null || name == null) {
       return;
     }
+    matcher = null;
     for (Category c : categories) {
       if (c.name.equals(name)) {
         c.messages.add(new SuppressedMessage(msg));
@@ -0,0 +1,182 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Matches a message against all the suppressed message patterns at once, and finds the first pattern
+ * (in the order they were added) that matches.
+ *
+ * Exact patterns are looked up in a hash map, prefix and suffix patterns are found by walking a trie
+ * from the start or the end of the message, and the 'contains' patterns are found with an Aho-Corasick
+ * automaton, so the cost of a match depends on the length of the message, not the number of patterns.
+ *
+ * Patterns and messages are expected to be lower case already. Call build() after the last pattern is added.
+ */
+public class SuppressedMessageMatcher {
+
+  public static final int EXACT = 0;
+  public static final int PREFIX = 1;
+  public static final int SUFFIX = 2;
+  public static final int CONTAINS = 3;
+
+  private static final int NONE = Integer.MAX_VALUE;
+
+  private static class Node {
+    private Map<Character, Node> next = new HashMap<>();
+    private Node fail;
+    private int first = NONE; // the first pattern that ends here
+    private int out = NONE; // the first pattern that ends here, or at any node on the fail chain
+
+    private Node child(char c) {
+      Node n = next.get(c);
+      if (n == null) {
+        n = new Node();
+        next.put(c, n);
+      }
+      return n;
+    }
+  }
+
+  private int count;
+  private Map<String, Integer> exact = new HashMap<>();
+  private Node prefixes = new Node();
+  private Node suffixes = new Node();
+  private Node substrings = new Node();
+
+  /**
+   * add the next pattern. Returns the index that match() reports for it
+   */
+  public int add(int type, String pattern) {
+    int index = count++;
+    switch (type) {
+    case EXACT:
+      if (!exact.containsKey(pattern)) {
+        exact.put(pattern, index);
+      }
+      break;
+    case PREFIX:
+      insert(prefixes, pattern, false, index);
+      break;
+    case SUFFIX:
+      insert(suffixes, pattern, true, index);
+      break;
+    case CONTAINS:
+      insert(substrings, pattern, false, index);
+      break;
+    }
+    return index;
+  }
+
+  private void insert(Node root, String pattern, boolean reverse, int index) {
+    Node n = root;
+    for (int i = 0; i < pattern.length(); i++) {
+      n = n.child(pattern.charAt(reverse ? pattern.length() - 1 - i : i));
+    }
+    if (n.first == NONE) {
+      n.first = index;
+    }
+  }
+
+  /**
+   * link up the 'contains' automaton
+   */
+  public void build() {
+    substrings.fail = substrings;
+    substrings.out = substrings.first;
+    Queue<Node> queue = new ArrayDeque<>();
+    for (Node n : substrings.next.values()) {
+      n.fail = substrings;
+      n.out = Math.min(n.first, substrings.out);
+      queue.add(n);
+    }
+    while (!queue.isEmpty()) {
+      Node n = queue.remove();
+      for (Map.Entry<Character, Node> e : n.next.entrySet()) {
+        Node child = e.getValue();
+        Node f = n.fail;
+        while (f != substrings && !f.next.containsKey(e.getKey())) {
+          f = f.fail;
+        }
+        Node target = f.next.get(e.getKey());
+        child.fail = target == null || target == child ? substrings : target;
+        child.out = Math.min(child.first, child.fail.out);
+        queue.add(child);
+      }
+    }
+  }
+
+  /**
+   * @return the index of the first pattern that matches any of the messages, or -1 if none do
+   */
+  public int match(String... messages) {
+    int res = NONE;
+    for (String msg : messages) {
+      res = Math.min(res, match(msg));
+    }
+    return res == NONE ? -1 : res;
+  }
+
+  private int match(String msg) {
+    int res = NONE;
+    Integer i = exact.get(msg);
+    if (i != null) {
+      res = i;
+    }
+
+    Node n = prefixes;
+    res = Math.min(res, n.first);
+    for (int j = 0; j < msg.length() && n != null; j++) {
+      n = n.next.get(msg.charAt(j));
+      if (n != null) {
+        res = Math.min(res, n.first);
+      }
+    }
+
+    n = suffixes;
+    res = Math.min(res, n.first);
+    for (int j = msg.length() - 1; j >= 0 && n != null; j--) {
+      n = n.next.get(msg.charAt(j));
+      if (n != null) {
+        res = Math.min(res, n.first);
+      }
+    }
+
+    n = substrings;
+    res = Math.min(res, n.out);
+    for (int j = 0; j < msg.length(); j++) {
+      char c = msg.charAt(j);
+      while (n != substrings && !n.next.containsKey(c)) {
+        n = n.fail;
+      }
+      Node t = n.next.get(c);
+      n = t == null ? substrings : t;
+      res = Math.min(res, n.out);
+    }
+    return res;
+  }
+}
@@ -0,0 +1,214 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+
+/**
+ * Looks after the terminology cache folder (vsCache) between builds: clearing it, trimming it, dropping
+ * the cached errors, and compacting the cache files.
+ *
+ * The cache files themselves are read and written by the terminology cache in the context. Each .cache file
+ * is a list of entries (a request, and what the server said about it), each followed by a line of dashes;
+ * anything before the first line of dashes is a header, and is kept as it is. Errors are dropped entry by
+ * entry, rather than deleting every file that has an error in it, so clearing the errors doesn't throw away
+ * the good answers in the same file and cost a full warm up on the next build. The per-version caches the
+ * comparators keep in sub-folders are looked after the same way.
+ *
+ * The maintenance is done while holding a lock on a file in the folder, so two publishers don't clear or
+ * compact it at the same time, and each rewritten file is written alongside and then moved into place, so
+ * a reader never sees half a file. The terminology cache in the context doesn't take the lock when it writes
+ * though, so the maintenance is only done when asked for, and shouldn't be asked for while another build is
+ * using the folder: anything that build writes to a file while it is being rewritten is lost.
+ */
+public class TerminologyCacheStore {
+
+  public static final String LOCK_NAME = ".lock";
+  private static final String CACHE_EXT = ".cache";
+  private static final String ENTRY_SEP = "-------------------------------------------------------------------------------------";
+  private static final String REQUEST_END = "####";
+
+  private final File folder;
+
+  public TerminologyCacheStore(String folder) throws IOException {
+    super();
+    this.folder = new File(folder);
+    Utilities.createDirectory(folder);
+  }
+
+  public interface IStoreTask<T> {
+    T run() throws IOException;
+  }
+
+  /**
+   * run the task while no other publisher is maintaining the cache
+   */
+  public <T> T locked(IStoreTask<T> task) throws IOException {
+    try (FileChannel channel = FileChannel.open(new File(folder, LOCK_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = channel.lock()) {
+      return task.run();
+    }
+  }
+
+  public void clearAll() throws IOException {
+    locked(() -> {
+      Utilities.clearDirectory(folder.getAbsolutePath(), LOCK_NAME);
+      return null;
+    });
+  }
+
+  /**
+   * clear everything except the named files (the big code systems that are expensive to warm up)
+   */
+  public void trim(String... keep) throws IOException {
+    String[] names = new String[keep.length+1];
+    System.arraycopy(keep, 0, names, 0, keep.length);
+    names[keep.length] = LOCK_NAME;
+    locked(() -> {
+      Utilities.clearDirectory(folder.getAbsolutePath(), names);
+      return null;
+    });
+  }
+
+  /**
+   * drop every cached answer that is an error, and compact the cache files while we're at it
+   *
+   * @return the number of errors dropped
+   */
+  public int clearErrors() throws IOException {
+    return locked(() -> process(folder, true));
+  }
+
+  /**
+   * rewrite the cache files with only the latest answer for each request
+   *
+   * @return the number of entries dropped
+   */
+  public int compact() throws IOException {
+    return locked(() -> process(folder, false));
+  }
+
+  /**
+   * the number of cache files (not counting the lock file)
+   */
+  public int count() {
+    int res = 0;
+    File[] files = folder.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isFile() && !LOCK_NAME.equals(f.getName())) {
+          res++;
+        }
+      }
+    }
+    return res;
+  }
+
+  private int process(File dir, boolean errors) throws IOException {
+    int res = 0;
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return 0;
+    }
+    for (File f : files) {
+      if (f.isDirectory()) {
+        // the comparators' per-version caches; anything else (e.g. the build cache) has no .cache files
+        res = res + process(f, errors);
+      } else if (f.getName().endsWith(CACHE_EXT)) {
+        res = res + processCacheFile(f, errors);
+      } else if (errors && !LOCK_NAME.equals(f.getName()) && !f.getName().endsWith(".svg") && TextFile.fileToString(f).contains("OperationOutcome")) {
+        // not one of the entry lists: same as always, the whole file goes
+        f.delete();
+        res++;
+      }
+    }
+    return res;
+  }
+
+  private int processCacheFile(File f, boolean errors) throws IOException {
+    String src = TextFile.fileToString(f);
+    int first = src.indexOf(ENTRY_SEP);
+    if (first < 0) {
+      // no entries
+      return 0;
+    }
+    String header = src.substring(0, first);
+    List<String> entries = new ArrayList<>();
+    for (String entry : src.substring(first + ENTRY_SEP.length()).split(ENTRY_SEP)) {
+      if (!entry.trim().isEmpty()) {
+        entries.add(entry.trim());
+      }
+    }
+    // the latest answer for a request is the one that counts
+    Map<String, String> latest = new LinkedHashMap<>();
+    int dropped = 0;
+    for (String entry : entries) {
+      String request = entry.contains(REQUEST_END) ? entry.substring(0, entry.indexOf(REQUEST_END)) : entry;
+      if (latest.remove(request) != null) {
+        dropped++;
+      }
+      latest.put(request, entry);
+    }
+    if (errors) {
+      for (String request : new ArrayList<>(latest.keySet())) {
+        if (latest.get(request).contains("OperationOutcome")) {
+          latest.remove(request);
+          dropped++;
+        }
+      }
+    }
+    if (dropped > 0) {
+      if (latest.isEmpty() && header.trim().isEmpty()) {
+        f.delete();
+      } else {
+        StringBuilder b = new StringBuilder();
+        b.append(header);
+        b.append(ENTRY_SEP);
+        b.append("\r\n");
+        for (String entry : latest.values()) {
+          b.append(entry);
+          b.append("\r\n");
+          b.append(ENTRY_SEP);
+          b.append("\r\n");
+        }
+        File tmp = new File(f.getAbsolutePath()+".tmp");
+        TextFile.stringToFile(b.toString(), tmp);
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+    }
+    return dropped;
+  }
+}
@@ -0,0 +1,96 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.terminologies.expansion.ValueSetExpansionOutcome;
+
+/**
+ * Gathers up the value set expansions the publisher is going to ask the terminology server for, and runs
+ * them ahead of time with a bounded number of requests in flight, so that a build with a cold terminology
+ * cache doesn't wait for one round trip at a time.
+ *
+ * The expansions are done through the normal context calls, so the results land in the terminology cache
+ * (and the tx log) exactly as if the publisher had asked for them itself; when it does, it gets the cached
+ * result. Anything that fails is left for the publisher to report in the usual way.
+ */
+public class TerminologyPrefetcher {
+
+  public interface IExpansionOperation {
+    ValueSetExpansionOutcome expand(ValueSet vs) throws Exception;
+  }
+
+  private final int inFlight;
+  private Map<String, ValueSet> expansions = new LinkedHashMap<>();
+  private AtomicInteger failures = new AtomicInteger();
+
+  /**
+   * @param inFlight the most requests to have waiting on the server at once
+   */
+  public TerminologyPrefetcher(int inFlight) {
+    super();
+    this.inFlight = inFlight;
+  }
+
+  /**
+   * note that the value set will be expanded. Each version of a value set is only expanded once
+   */
+  public void seeExpansion(ValueSet vs) {
+    String key = vs.hasUrl() ? vs.getVersionedUrl() : "#"+vs.getId();
+    if (!expansions.containsKey(key)) {
+      expansions.put(key, vs);
+    }
+  }
+
+  public int count() {
+    return expansions.size();
+  }
+
+  public int failures() {
+    return failures.get();
+  }
+
+  /**
+   * run the operation for each value set, in the order they were seen. The context doesn't usually throw
+   * when an expansion fails - it hands back an outcome with an error - so both count as failures
+   */
+  public void expand(IExpansionOperation operation) throws Exception {
+    List<ValueSet> list = new ArrayList<>(expansions.values());
+    new WorkerPool("tx", inFlight).run(list, vs -> {
+      try {
+        ValueSetExpansionOutcome outcome = operation.expand(vs);
+        if (outcome == null || outcome.getError() != null) {
+          failures.incrementAndGet();
+        }
+      } catch (Exception e) {
+        failures.incrementAndGet();
+      }
+    });
+  }
+}
@@ -0,0 +1,131 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+
+/**
+ * The state that carries over from one build to the next when the publisher is running with -watch.
+ *
+ * Each build is done by a fresh Publisher, since nearly everything the publisher holds belongs to a
+ * single build. The only thing kept here is the package cache manager. The core context isn't kept:
+ * a build changes the definitions it loads (ids, snapshots, user data), so each build loads its own.
+ *
+ * Changes to the IG source are found by polling the last modified time and size of the files in the
+ * IG folder, in the same way that FetchedFile and the HTMLInspector decide whether a file has changed.
+ */
+public class WatchSession {
+
+  private static final int POLL_INTERVAL = 1000;
+
+  private FilesystemPackageCacheManager pcm;
+
+  private String root;
+  private List<String> exclusions = new ArrayList<>();
+  private Map<String, String> files = new HashMap<>();
+
+  public FilesystemPackageCacheManager getPcm() {
+    return pcm;
+  }
+
+  public void setPcm(FilesystemPackageCacheManager pcm) {
+    this.pcm = pcm;
+  }
+
+  /**
+   * records the state of the files under root (other than those in the excluded folders), to compare against when looking for changes
+   */
+  public void watch(String root, List<String> exclusions) {
+    this.root = root;
+    this.exclusions.clear();
+    for (String s : exclusions) {
+      if (s != null) {
+        this.exclusions.add(new File(s).getAbsolutePath());
+      }
+    }
+    files = scan();
+  }
+
+  /**
+   * waits until something in the watched folder has changed, and then stopped changing (editors and
+   * tools often write several files, or write a file more than once), and returns the files that changed
+   */
+  public List<String> waitForChanges() throws InterruptedException {
+    Map<String, String> current = files;
+    Map<String, String> next;
+    do {
+      Thread.sleep(POLL_INTERVAL);
+      next = scan();
+    } while (next.equals(current));
+    do {
+      current = next;
+      Thread.sleep(POLL_INTERVAL);
+      next = scan();
+    } while (!next.equals(current));
+
+    List<String> changes = new ArrayList<>();
+    for (String s : next.keySet()) {
+      if (!next.get(s).equals(files.get(s))) {
+        changes.add(s);
+      }
+    }
+    for (String s : files.keySet()) {
+      if (!next.containsKey(s)) {
+        changes.add(s);
+      }
+    }
+    Collections.sort(changes);
+    files = next;
+    return changes;
+  }
+
+  private Map<String, String> scan() {
+    Map<String, String> res = new HashMap<>();
+    scan(new File(root), res);
+    return res;
+  }
+
+  private void scan(File dir, Map<String, String> res) {
+    File[] list = dir.listFiles();
+    if (list == null) {
+      return;
+    }
+    for (File f : list) {
+      if (f.getName().startsWith(".") || exclusions.contains(f.getAbsolutePath())) {
+        continue;
+      }
+      if (f.isDirectory()) {
+        scan(f, res);
+      } else {
+        res.put(f.getAbsolutePath(), Long.toString(f.lastModified())+":"+Long.toString(f.length()));
+      }
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package org.hl7.fhir.igtools.publisher;
+
+/*-
+ * #%L
+ * org.hl7.fhir.publisher.core
+ * %%
+ * Copyright (C) 2014 - 2019 Health Level 7
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a unit of publisher work over a list of items on a bounded set of threads.
+ *
+ * With 1 thread (the default), everything runs inline on the calling thread,
+ * exactly as the publisher always has. Otherwise the items are handed out to
+ * the workers in list order, and the method returns once all of them are done.
+ *
+ * If any item fails, the first failure in list order is rethrown, so that the
+ * error the user sees doesn't depend on thread scheduling.
+ */
+public class WorkerPool {
+
+  public interface IWorkerTask<T> {
+    void process(T item) throws Exception;
+  }
+
+  private final String name;
+  private final int threads;
+
+  public WorkerPool(String name, int threads) {
+    super();
+    this.name = name;
+    this.threads = threads < 1 ? 1 : threads;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public boolean isParallel() {
+    return threads > 1;
+  }
+
+  public <T> void run(List<T> items, IWorkerTask<T> task) throws Exception {
+    if (threads == 1 || items.size() < 2) {
+      for (T item : items) {
+        task.process(item);
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, items.size()), new WorkerThreadFactory());
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (T item : items) {
+        futures.add(executor.submit(() -> {
+          task.process(item);
+          return null;
+        }));
+      }
+      Throwable first = null;
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (first == null) {
+            first = e.getCause();
+          }
+        }
+      }
+      if (first instanceof Exception) {
+        throw (Exception) first;
+      } else if (first instanceof Error) {
+        throw (Error) first;
+      } else if (first != null) {
+        throw new Exception(first);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private class WorkerThreadFactory implements ThreadFactory {
+    private AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "igpub-"+name+"-"+count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+  /**
+   * works out how many threads to use from the -threads parameter: a number, or 'auto' for one per processor
+   */
+  public static int parseThreadCount(String value) {
+    if (value == null) {
+      return 1;
+    }
+    if ("auto".equals(value)) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    try {
+      return Math.max(1, Integer.parseInt(value));
+    } catch (NumberFormatException e) {
+      throw new Error("Invalid value for -threads: '"+value+"' (must be a number or 'auto')");
+    }
+  }
+}
@@ -2,8 +2,14 @@ package org.hl7.fhir.igtools.publisher;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -11,7 +17,18 @@ import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 public class XSLTransformer {
+    private static final int MAX_TEMPLATES = 16;
+
     private final boolean debug;
+    private int compileCount;
+
+    // compiled stylesheets, least recently used first, so that stylesheets that have been edited away drop out
+    private final Map<String, Templates> templates = new LinkedHashMap<String, Templates>(MAX_TEMPLATES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Templates> eldest) {
+            return size() > MAX_TEMPLATES;
+        }
+    };
 
     public XSLTransformer(boolean debug) {
         this.debug = debug;
@@ -46,10 +63,8 @@ public class XSLTransformer {
 
 
     public byte[] transform(byte[] source, byte[] xslt) throws TransformerException {
-        TransformerFactory f = TransformerFactory.newInstance();
-        f.setErrorListener(new MyErrorListener());
-        StreamSource xsrc = new StreamSource(new ByteArrayInputStream(xslt));
-        Transformer t = f.newTransformer(xsrc);
+        // the compiled stylesheet is shared, but a Transformer isn't thread safe, so each transform gets its own
+        Transformer t = compile(xslt).newTransformer();
         t.setErrorListener(new MyErrorListener());
 
         StreamSource src = new StreamSource(new ByteArrayInputStream(source));
@@ -58,4 +73,39 @@ public class XSLTransformer {
         t.transform(src, res);
         return out.toByteArray();
     }
+
+    /**
+     * stylesheets are only compiled once by each transformer, and found again by the hash of their content
+     */
+    private Templates compile(byte[] xslt) throws TransformerException {
+        String key = digest(xslt);
+        synchronized (templates) {
+            Templates res = templates.get(key);
+            if (res == null) {
+                TransformerFactory f = TransformerFactory.newInstance();
+                f.setErrorListener(new MyErrorListener());
+                res = f.newTemplates(new StreamSource(new ByteArrayInputStream(xslt)));
+                compileCount++;
+                templates.put(key, res);
+            }
+            return res;
+        }
+    }
+
+    private String digest(byte[] xslt) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(xslt));
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * the number of stylesheets this transformer has compiled
+     */
+    public int getCompileCount() {
+        synchronized (templates) {
+            return compileCount;
+        }
+    }
 }
@@ -0,0 +1,158 @@
+package org.hl7.fhir.igtools.publisher.comparators;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.convertors.advisors.impl.BaseAdvisor_30_50;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_30_50;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider;
+import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.igtools.publisher.loaders.PublisherLoader;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+/**
+ * The published packages the comparators compare the IG against, each loaded once into its own context
+ * and shared by all the comparators that ask for it.
+ *
+ * Loading a package means loading the core package for its FHIR version into a new context, then the package 
+ * and its dependencies. Nothing mutable is shared between the loaded packages: each has its own core definitions
+ * and its own terminology cache (in a sub-folder of the IG's named for the package version), so comparisons 
+ * against different packages can run at the same time.
+ *
+ * Everything is held by soft references, so the JVM drops them when memory is short: anything dropped is just
+ * loaded again if it's asked for again.
+ */
+public class ComparisonContextPool {
+
+  public static final String[] RESOURCE_TYPES = { "StructureDefinition", "ValueSet", "CodeSystem", "CapabilityStatement" };
+
+  public static class LoadedPackage {
+    private NpmPackage npm;
+    private SimpleWorkerContext context;
+    private List<CanonicalResource> resources = new ArrayList<>();
+    private IGKnowledgeProvider pkp;
+
+    public NpmPackage getNpm() {
+      return npm;
+    }
+
+    public SimpleWorkerContext getContext() {
+      return context;
+    }
+
+    public IGKnowledgeProvider getPkp() {
+      return pkp;
+    }
+
+    /**
+     * the package's resources of the given types, in package order
+     */
+    public List<CanonicalResource> getResources(String... types) {
+      List<CanonicalResource> res = new ArrayList<>();
+      for (CanonicalResource cr : resources) {
+        if (Utilities.existsInList(cr.fhirType(), types)) {
+          res.add(cr);
+        }
+      }
+      return res;
+    }
+  }
+
+  private SimpleWorkerContext context;
+  private FilesystemPackageCacheManager pcm;
+  private Map<String, SoftReference<LoadedPackage>> packages = new ConcurrentHashMap<>();
+  private Map<String, Object> locks = new ConcurrentHashMap<>();
+
+  /**
+   * @param context the IG's own context, whose terminology set up the loaded contexts share
+   */
+  public ComparisonContextPool(SimpleWorkerContext context) {
+    super();
+    this.context = context;
+  }
+
+  private synchronized FilesystemPackageCacheManager pcm() throws IOException {
+    if (pcm == null) {
+      pcm = new FilesystemPackageCacheManager.Builder().build();
+    }
+    return pcm;
+  }
+
+  private Object lock(String key) {
+    return locks.computeIfAbsent(key, k -> new Object());
+  }
+
+  /**
+   * @param allowDuplicates whether the package's context accepts duplicate resources (the previous version comparison needs this)
+   */
+  public LoadedPackage get(String pid, String version, boolean allowDuplicates) throws IOException {
+    NpmPackage npm = pcm().loadPackage(pid, version);
+    String key = pid+"#"+version+"|"+npm.fhirVersion()+(allowDuplicates ? "|duplicates" : "");
+    synchronized (lock(key)) {
+      SoftReference<LoadedPackage> ref = packages.get(key);
+      LoadedPackage lp = ref == null ? null : ref.get();
+      if (lp == null) {
+        lp = load(npm, allowDuplicates);
+        packages.put(key, new SoftReference<>(lp));
+      }
+      return lp;
+    }
+  }
+
+  private LoadedPackage load(NpmPackage current, boolean allowDuplicates) throws IOException {
+    LoadedPackage lp = new LoadedPackage();
+    lp.npm = current;
+    String filename = "";
+    try {
+      for (String id : current.listResources(RESOURCE_TYPES)) {
+        filename = id;
+        CanonicalResource curr = (CanonicalResource) loadResourceFromPackage(current, id, current.fhirVersion());
+        if (curr != null) {
+          curr.setWebPath(Utilities.pathURL(current.getWebLocation(), curr.fhirType()+"-"+curr.getId()+".html")); // to do - actually refactor to use the correct algorithm
+          lp.resources.add(curr);
+        }
+      }
+      NpmPackage core = pcm().loadPackage(VersionUtilities.packageForVersion(current.fhirVersion()), VersionUtilities.getCurrentVersion(current.fhirVersion()));
+      lp.context = new SimpleWorkerContext.SimpleWorkerContextBuilder().withTerminologyCachePath(Utilities.path(context.getTxCache().getFolder(), current.version())).fromPackage(core, new PublisherLoader(core, SpecMapManager.fromPackage(core), core.getWebLocation(), null).makeLoader(), true);
+      lp.context.connectToTSServer(context.getTxClientManager().getFactory(), context.getTxClientManager().getMasterClient());
+      if (allowDuplicates) {
+        lp.context.setAllowLoadingDuplicates(true);
+      }
+      lp.context.setExpansionParameters(context.getExpansionParameters());
+      lp.context.setUcumService(context.getUcumService());
+      lp.context.setLocale(context.getLocale());
+      lp.context.setLogger(context.getLogger());
+      lp.context.loadFromPackageAndDependencies(current, new PublisherLoader(current, SpecMapManager.fromPackage(current), current.getWebLocation(), null).makeLoader(), pcm());
+      lp.pkp = new IGKnowledgeProvider(lp.context, current.getWebLocation(), current.canonical(), null, null, false, null, null, null, null);
+    } catch (Exception e) {
+      throw new FHIRException(e.getMessage()+" on file "+filename, e);
+    }
+    return lp;
+  }
+
+  private Resource loadResourceFromPackage(NpmPackage npm, String filename, String version) throws FHIRException, IOException {
+    InputStream s = npm.loadResource(filename);
+    if (VersionUtilities.isR3Ver(version)) {
+      return VersionConvertorFactory_30_50.convertResource(new org.hl7.fhir.dstu3.formats.JsonParser().parse(s), new BaseAdvisor_30_50(false));
+    } else if (VersionUtilities.isR4Ver(version)) {
+      return VersionConvertorFactory_40_50.convertResource(new org.hl7.fhir.r4.formats.JsonParser().parse(s));
+    } else if (VersionUtilities.isR5Plus(version)) {
+      return new org.hl7.fhir.r5.formats.JsonParser().parse(s);
+    } else {
+      return null;
+    }
+  }
+}
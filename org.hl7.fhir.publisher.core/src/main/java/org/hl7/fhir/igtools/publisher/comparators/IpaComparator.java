@@ -1,20 +1,14 @@
 package org.hl7.fhir.igtools.publisher.comparators;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-import org.hl7.fhir.convertors.advisors.impl.BaseAdvisor_30_50;
-import org.hl7.fhir.convertors.factory.VersionConvertorFactory_30_50;
-import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
 import org.hl7.fhir.exceptions.FHIRException;
-import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider;
 import org.hl7.fhir.igtools.publisher.PastProcessHackerUtilities;
-import org.hl7.fhir.igtools.publisher.SpecMapManager;
-import org.hl7.fhir.igtools.publisher.loaders.PublisherLoader;
+import org.hl7.fhir.igtools.publisher.comparators.ComparisonContextPool.LoadedPackage;
 import org.hl7.fhir.r5.comparison.ComparisonRenderer;
 import org.hl7.fhir.r5.comparison.ComparisonSession;
 import org.hl7.fhir.r5.conformance.profile.ProfileKnowledgeProvider;
@@ -23,13 +17,8 @@ import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.model.CanonicalResource;
 import org.hl7.fhir.r5.model.CapabilityStatement;
 import org.hl7.fhir.r5.model.ImplementationGuide;
-import org.hl7.fhir.r5.model.Resource;
 import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.utilities.Utilities;
-import org.hl7.fhir.utilities.VersionUtilities;
-import org.hl7.fhir.utilities.npm.BasePackageCacheManager;
-import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
-import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.hl7.fhir.utilities.npm.PackageList;
 import org.hl7.fhir.utilities.npm.PackageList.PackageListEntry;
 
@@ -73,6 +62,7 @@ public class IpaComparator {
   }
 
   private SimpleWorkerContext context;
+  private ComparisonContextPool pool;
   private String dstDir;
   private List<ComparisonPair> comparisons = new ArrayList<>();
   private ProfileKnowledgeProvider newpkp;
@@ -84,10 +74,11 @@ public class IpaComparator {
   private String lastName;
   private String lastUrl;
   
-  public IpaComparator(SimpleWorkerContext context, String rootDir, String dstDir, ProfileKnowledgeProvider pkp, ILoggingService logger, List<String> versions) {
+  public IpaComparator(SimpleWorkerContext context, ComparisonContextPool pool, String rootDir, String dstDir, ProfileKnowledgeProvider pkp, ILoggingService logger, List<String> versions) {
     super();
         
     this.context = context;
+    this.pool = pool;
     this.dstDir = dstDir;
     this.newpkp = pkp;
     this.logger = logger;
@@ -164,50 +155,19 @@ public class IpaComparator {
     if (errMsg == null && pid != null) {
       resources = new ArrayList<>();
       for (VersionInstance vi : versionList) {
-        String filename = "";
         try {
-          vi.resources = new ArrayList<>();
-          BasePackageCacheManager pcm = new FilesystemPackageCacheManager.Builder().build();
-          NpmPackage current = pcm.loadPackage(pid, vi.version);
-          for (String id : current.listResources("StructureDefinition", "ValueSet", "CodeSystem", "CapabilityStatement")) {
-            filename = id;
-            CanonicalResource curr = (CanonicalResource) loadResourceFromPackage(current, id, current.fhirVersion());
-            curr.setWebPath(Utilities.pathURL(current.getWebLocation(), curr.fhirType()+"-"+curr.getId()+".html")); // to do - actually refactor to use the correct algorithm
-            if (curr != null) {
-              vi.resources.add(curr);
-            }
-          }
-          NpmPackage core = pcm.loadPackage(VersionUtilities.packageForVersion(current.fhirVersion()), VersionUtilities.getCurrentVersion(current.fhirVersion()));
-          vi.context = new SimpleWorkerContext.SimpleWorkerContextBuilder().withTerminologyCachePath(Utilities.path(context.getTxCache().getFolder(), vi.version)).fromPackage(core, new PublisherLoader(core, SpecMapManager.fromPackage(core), core.getWebLocation(), null).makeLoader(), true);
-          //vi.context.initTS();
-          vi.context.connectToTSServer(context.getTxClientManager().getFactory(), context.getTxClientManager().getMasterClient());
-          vi.context.setExpansionParameters(context.getExpansionParameters());
-          vi.context.setUcumService(context.getUcumService());
-          vi.context.setLocale(context.getLocale());
-          vi.context.setLogger(context.getLogger());
-          vi.context.loadFromPackageAndDependencies(current, new PublisherLoader(current, SpecMapManager.fromPackage(current), current.getWebLocation(), null).makeLoader(), pcm);
-          vi.pkp = new IGKnowledgeProvider(vi.context, current.getWebLocation(), current.canonical(), null, null, false, null, null, null, null);
+          LoadedPackage lp = pool.get(pid, vi.version, false);
+          vi.resources = lp.getResources("StructureDefinition", "ValueSet", "CodeSystem", "CapabilityStatement");
+          vi.context = lp.getContext();
+          vi.pkp = lp.getPkp();
         } catch (Exception e) {
-          vi.errMsg = "Unable to find load package "+pid+"#"+vi.version+" ("+e.getMessage()+" on file "+filename+")";
+          vi.errMsg = "Unable to find load package "+pid+"#"+vi.version+" ("+e.getMessage()+")";
           e.printStackTrace();
         }
       }
     }
   }
 
-  private Resource loadResourceFromPackage(NpmPackage uscore, String filename, String version) throws FHIRException, IOException {
-    InputStream s = uscore.loadResource(filename);
-    if (VersionUtilities.isR3Ver(version)) {
-      return VersionConvertorFactory_30_50.convertResource(new org.hl7.fhir.dstu3.formats.JsonParser().parse(s), new BaseAdvisor_30_50(false));
-    } else if (VersionUtilities.isR4Ver(version)) {
-      return VersionConvertorFactory_40_50.convertResource(new org.hl7.fhir.r4.formats.JsonParser().parse(s));
-    } else if (VersionUtilities.isR5Plus(version)) {
-      return new org.hl7.fhir.r5.formats.JsonParser().parse(s);
-    } else {
-      return null;
-    }
-  }
-
   public void finishChecks() throws IOException {
     if (errMsg == null && pid != null) {
       for (VersionInstance vi : versionList) {
@@ -3,20 +3,20 @@ package org.hl7.fhir.igtools.publisher.comparators;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.hl7.fhir.convertors.advisors.impl.BaseAdvisor_30_50;
-import org.hl7.fhir.convertors.factory.VersionConvertorFactory_30_50;
-import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider;
+import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider.HeldMessage;
 import org.hl7.fhir.igtools.publisher.PastProcessHackerUtilities;
-import org.hl7.fhir.igtools.publisher.SpecMapManager;
-import org.hl7.fhir.igtools.publisher.loaders.PublisherLoader;
+import org.hl7.fhir.igtools.publisher.WorkerPool;
+import org.hl7.fhir.igtools.publisher.comparators.ComparisonContextPool.LoadedPackage;
 import org.hl7.fhir.r5.comparison.ComparisonRenderer;
 import org.hl7.fhir.r5.comparison.ComparisonSession;
 import org.hl7.fhir.r5.conformance.profile.ProfileKnowledgeProvider;
@@ -24,13 +24,8 @@ import org.hl7.fhir.r5.context.ILoggingService;
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.model.CanonicalResource;
 import org.hl7.fhir.r5.model.ImplementationGuide;
-import org.hl7.fhir.r5.model.Resource;
 import org.hl7.fhir.utilities.IniFile;
 import org.hl7.fhir.utilities.Utilities;
-import org.hl7.fhir.utilities.VersionUtilities;
-import org.hl7.fhir.utilities.npm.BasePackageCacheManager;
-import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
-import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.hl7.fhir.utilities.npm.PackageList;
 import org.hl7.fhir.utilities.npm.PackageList.PackageListEntry;
 
@@ -65,6 +60,7 @@ public class PreviousVersionComparator {
     private SimpleWorkerContext context;    
     private List<CanonicalResource> resources = new ArrayList<>();
     private String errMsg;
+    private String compareErrMsg;
     private IniFile ini;
     private ProfileKnowledgeProvider pkp;
     private boolean annotate;
@@ -78,9 +74,9 @@ public class PreviousVersionComparator {
   }
 
   private SimpleWorkerContext context;
+  private ComparisonContextPool pool;
   private String version;
   private String dstDir;
-  private List<ProfilePair> comparisons = new ArrayList<>();
   private ProfileKnowledgeProvider newpkp;
   private String errMsg;
   private String pid;
@@ -90,11 +86,13 @@ public class PreviousVersionComparator {
   private String lastName;
   private String lastUrl;
   private String businessVersion;
+  private int threads = 1;
   
-  public PreviousVersionComparator(SimpleWorkerContext context, String version, String businessVersion, String rootDir, String dstDir, String canonical, ProfileKnowledgeProvider pkp, ILoggingService logger, List<String> versions, String versionToAnnotate) {
+  public PreviousVersionComparator(SimpleWorkerContext context, ComparisonContextPool pool, String version, String businessVersion, String rootDir, String dstDir, String canonical, ProfileKnowledgeProvider pkp, ILoggingService logger, List<String> versions, String versionToAnnotate) {
     super();
         
     this.context = context;
+    this.pool = pool;
     this.version = version;
     this.businessVersion = businessVersion;
     this.dstDir = dstDir;
@@ -181,99 +179,147 @@ public class PreviousVersionComparator {
   }
 
 
-  public void startChecks(ImplementationGuide ig) {
+  /**
+   * the versions are independent of each other, so they're loaded and compared on separate threads.
+   * Instances of the same version (e.g. {last} and {current}) share a thread, since they write to the same place
+   */
+  private List<List<VersionInstance>> versionGroups() {
+    Map<String, List<VersionInstance>> groups = new LinkedHashMap<>();
+    for (VersionInstance vi : versionList) {
+      groups.computeIfAbsent(vi.version, v -> new ArrayList<>()).add(vi);
+    }
+    return new ArrayList<>(groups.values());
+  }
+
+  private boolean isAnnotated(List<VersionInstance> group) {
+    for (VersionInstance vi : group) {
+      if (vi.annotate) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void startChecks(ImplementationGuide ig) throws Exception {
     if (errMsg == null && pid != null && businessVersion != null) {
       resources = new ArrayList<>();
-      for (VersionInstance vi : versionList) {
-        String filename = "";
-        try {
-          vi.resources = new ArrayList<>();
-          BasePackageCacheManager pcm = new FilesystemPackageCacheManager.Builder().build();
-          NpmPackage current = pcm.loadPackage(pid, vi.version);
-          for (String id : current.listResources("StructureDefinition", "ValueSet", "CodeSystem")) {
-            filename = id;
-            CanonicalResource curr = (CanonicalResource) loadResourceFromPackage(current, id, current.fhirVersion());
-            if (curr != null) {
-              curr.setWebPath(Utilities.pathURL(current.getWebLocation(), curr.fhirType()+"-"+curr.getId()+".html")); // to do - actually refactor to use the correct algorithm
-              vi.resources.add(curr);
-            }
-          }
-          NpmPackage core = pcm.loadPackage(VersionUtilities.packageForVersion(current.fhirVersion()), VersionUtilities.getCurrentVersion(current.fhirVersion()));
-          vi.context = new SimpleWorkerContext.SimpleWorkerContextBuilder().withTerminologyCachePath(Utilities.path(context.getTxCache().getFolder(), vi.version)).fromPackage(core, new PublisherLoader(core, SpecMapManager.fromPackage(core), core.getWebLocation(), null).makeLoader(), true);
-          //vi.context.initTS();
-          vi.context.connectToTSServer(context.getTxClientManager().getFactory(), context.getTxClientManager().getMasterClient());
-          vi.context.setAllowLoadingDuplicates(true);
-          vi.context.setExpansionParameters(context.getExpansionParameters());
-          vi.context.setUcumService(context.getUcumService());
-          vi.context.setLocale(context.getLocale());
-          vi.context.setLogger(context.getLogger());
-          vi.context.loadFromPackageAndDependencies(current, new PublisherLoader(current, SpecMapManager.fromPackage(current), current.getWebLocation(), null).makeLoader(), pcm);
-          vi.pkp = new IGKnowledgeProvider(vi.context, current.getWebLocation(), current.canonical(), null, null, false, null, null, null, null);
-        } catch (Exception e) {
-          vi.errMsg = "Unable to find load package "+pid+"#"+vi.version+" ("+e.getMessage()+" on file "+filename+")";
-          e.printStackTrace();
+      new WorkerPool("compare", threads).run(versionGroups(), group -> {
+        for (VersionInstance vi : group) {
+          loadVersion(vi);
         }
-      }
+      });
     }
   }
 
-  private Resource loadResourceFromPackage(NpmPackage uscore, String filename, String version) throws FHIRException, IOException {
-    InputStream s = uscore.loadResource(filename);
-    if (VersionUtilities.isR3Ver(version)) {
-      return VersionConvertorFactory_30_50.convertResource(new org.hl7.fhir.dstu3.formats.JsonParser().parse(s), new BaseAdvisor_30_50(false));
-    } else if (VersionUtilities.isR4Ver(version)) {
-      return VersionConvertorFactory_40_50.convertResource(new org.hl7.fhir.r4.formats.JsonParser().parse(s));
-    } else if (VersionUtilities.isR5Plus(version)) {
-      return new org.hl7.fhir.r5.formats.JsonParser().parse(s);
-    } else {
-      return null;
+  private void loadVersion(VersionInstance vi) {
+    try {
+      LoadedPackage lp = pool.get(pid, vi.version, true);
+      vi.resources = lp.getResources("StructureDefinition", "ValueSet", "CodeSystem");
+      vi.context = lp.getContext();
+      vi.pkp = lp.getPkp();
+    } catch (Exception e) {
+      vi.errMsg = "Unable to find load package "+pid+"#"+vi.version+" ("+e.getMessage()+")";
+      e.printStackTrace();
     }
   }
 
-  public void finishChecks() throws IOException {
+  public void finishChecks() throws Exception {
     if (errMsg == null && pid != null && businessVersion != null) {
-      for (VersionInstance vi : versionList) {
-        comparisons.clear();
-        Set<String> set = new HashSet<>();
-        for (CanonicalResource rl : vi.resources) {
-          CanonicalResource t = findByUrl(rl.getUrl(), resources, vi.ini);
-          comparisons.add(new ProfilePair(rl, t));
-          set.add(rl.getUrl());      
-        }
-        for (CanonicalResource rr : resources) {
-          String url = fixForIniMap(rr.getUrl(), vi.ini);
-          if (!set.contains(url)) {
-            CanonicalResource t = findByUrl(url, vi.resources, null);
-            comparisons.add(new ProfilePair(t, rr));
+      // annotating a version writes onto the resources in this IG, which all the comparisons read, so that
+      // version is compared on its own first, and the rest are done in parallel once it's finished.
+      // Each version has its own context and knowledge provider (see ComparisonContextPool); what they share
+      // is this IG's context, which the publisher's own worker threads share too, and its knowledge provider,
+      // whose messages are held by each thread and reported in version order once all the comparisons are done
+      List<List<VersionInstance>> groups = new ArrayList<>();
+      for (List<VersionInstance> group : versionGroups()) {
+        if (isAnnotated(group)) {
+          for (VersionInstance vi : group) {
+            compareVersion(vi);
           }
+        } else {
+          groups.add(group);
         }
-
+      }
+      Map<VersionInstance, List<HeldMessage>> messages = new ConcurrentHashMap<>();
+      new WorkerPool("compare", threads).run(groups, group -> {
+        holdMessages();
         try {
-          ComparisonSession session = new ComparisonSession(vi.context, context, "Comparison of v"+vi.version+" with this version", vi.pkp, newpkp);
-          session.setAnnotate(vi.annotate);
-          //    session.setDebug(true);
-          for (ProfilePair c : comparisons) {
-//            System.out.println("Version Comparison: compare "+vi.version+" to current for "+c.getUrl());
-            session.compare(c.left, c.right);      
+          for (VersionInstance vi : group) {
+            compareVersion(vi);
           }
-          Utilities.createDirectory(Utilities.path(dstDir, "comparison-v"+vi.version));
-          ComparisonRenderer cr = new ComparisonRenderer(vi.context, context, Utilities.path(dstDir, "comparison-v"+vi.version), session);
-          cr.getTemplates().put("CodeSystem", new String(context.getBinaryForKey("template-comparison-CodeSystem.html")));
-          cr.getTemplates().put("ValueSet", new String(context.getBinaryForKey("template-comparison-ValueSet.html")));
-          cr.getTemplates().put("Profile", new String(context.getBinaryForKey("template-comparison-Profile.html")));
-          cr.getTemplates().put("Profile-Union", new String(context.getBinaryForKey("template-comparison-Profile-Union.html")));
-          cr.getTemplates().put("Profile-Intersection", new String(context.getBinaryForKey("template-comparison-Profile-Intersection.html")));
-          cr.getTemplates().put("Index", new String(context.getBinaryForKey("template-comparison-index.html")));
-          cr.getTemplates().put("CapabilityStatement", new String(context.getBinaryForKey("template-comparison-CapabilityStatement.html")));
-          cr.render("Version "+vi.version, "Current Build");
-        } catch (Throwable e) {
-          errMsg = "Current Version Comparison failed: "+e.getMessage();
-          e.printStackTrace();
+        } finally {
+          messages.put(group.get(0), releaseMessages());
+        }
+      });
+      for (List<VersionInstance> group : groups) {
+        reportMessages(messages.get(group.get(0)));
+      }
+      // report the failure the same way whatever order the threads finished in
+      for (VersionInstance vi : versionList) {
+        if (vi.compareErrMsg != null) {
+          errMsg = vi.compareErrMsg;
         }
       }
     }
   }
-private String fixForIniMap(String url, IniFile ini) {
+
+  private void holdMessages() {
+    if (newpkp instanceof IGKnowledgeProvider) {
+      ((IGKnowledgeProvider) newpkp).holdMessages();
+    }
+  }
+
+  private List<HeldMessage> releaseMessages() {
+    return newpkp instanceof IGKnowledgeProvider ? ((IGKnowledgeProvider) newpkp).releaseMessages() : new ArrayList<>();
+  }
+
+  private void reportMessages(List<HeldMessage> list) {
+    if (list != null && newpkp instanceof IGKnowledgeProvider) {
+      ((IGKnowledgeProvider) newpkp).reportMessages(list);
+    }
+  }
+
+  private void compareVersion(VersionInstance vi) {
+    List<ProfilePair> comparisons = new ArrayList<>();
+    Set<String> set = new HashSet<>();
+    for (CanonicalResource rl : vi.resources) {
+      CanonicalResource t = findByUrl(rl.getUrl(), resources, vi.ini);
+      comparisons.add(new ProfilePair(rl, t));
+      set.add(rl.getUrl());      
+    }
+    for (CanonicalResource rr : resources) {
+      String url = fixForIniMap(rr.getUrl(), vi.ini);
+      if (!set.contains(url)) {
+        CanonicalResource t = findByUrl(url, vi.resources, null);
+        comparisons.add(new ProfilePair(t, rr));
+      }
+    }
+
+    try {
+      ComparisonSession session = new ComparisonSession(vi.context, context, "Comparison of v"+vi.version+" with this version", vi.pkp, newpkp);
+      session.setAnnotate(vi.annotate);
+      //    session.setDebug(true);
+      for (ProfilePair c : comparisons) {
+//        System.out.println("Version Comparison: compare "+vi.version+" to current for "+c.getUrl());
+        session.compare(c.left, c.right);      
+      }
+      Utilities.createDirectory(Utilities.path(dstDir, "comparison-v"+vi.version));
+      ComparisonRenderer cr = new ComparisonRenderer(vi.context, context, Utilities.path(dstDir, "comparison-v"+vi.version), session);
+      cr.getTemplates().put("CodeSystem", new String(context.getBinaryForKey("template-comparison-CodeSystem.html")));
+      cr.getTemplates().put("ValueSet", new String(context.getBinaryForKey("template-comparison-ValueSet.html")));
+      cr.getTemplates().put("Profile", new String(context.getBinaryForKey("template-comparison-Profile.html")));
+      cr.getTemplates().put("Profile-Union", new String(context.getBinaryForKey("template-comparison-Profile-Union.html")));
+      cr.getTemplates().put("Profile-Intersection", new String(context.getBinaryForKey("template-comparison-Profile-Intersection.html")));
+      cr.getTemplates().put("Index", new String(context.getBinaryForKey("template-comparison-index.html")));
+      cr.getTemplates().put("CapabilityStatement", new String(context.getBinaryForKey("template-comparison-CapabilityStatement.html")));
+      cr.render("Version "+vi.version, "Current Build");
+    } catch (Throwable e) {
+      vi.compareErrMsg = "Current Version Comparison failed: "+e.getMessage();
+      e.printStackTrace();
+    }
+  }
+
+  private String fixForIniMap(String url, IniFile ini) {
     if (ini == null) {
       return url;
     }
@@ -378,4 +424,12 @@ private String fixForIniMap(String url, IniFile ini) {
     return lastUrl;
   }
 
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
 }
@@ -10,8 +10,10 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.hl7.fhir.exceptions.FHIRException;
@@ -73,6 +75,12 @@ public class DBBuilder {
   private int lastCLKey;
   private int lastVLKey;
 
+  // the database is rebuilt every run, so it's written without the usual durability: rows are committed 
+  // every batchSize rows, and at the end of each block of work (terminology tables, an expansion, a list entry)
+  private Map<String, PreparedStatement> statements = new HashMap<>();
+  private int pendingRows;
+  private int batchSize = 1000;
+
   private long cumulativeTime;
   
   private void time(long start) {
@@ -93,18 +101,18 @@ public class DBBuilder {
     time(start);
   }
 
-  public void metadata(String name, String value)  {
+  public synchronized void metadata(String name, String value)  {
     long start = System.currentTimeMillis();
     if (con == null) {
       return;
     }
 
     try {
-      PreparedStatement psql = con.prepareStatement("Insert into Metadata (key, name, value) values (?, ?, ?)");
+      PreparedStatement psql = prepare("Insert into Metadata (key, name, value) values (?, ?, ?)");
       psql.setInt(1, ++lastMDKey);
       bindString(psql, 2, name);
       bindString(psql, 3, value);
-      psql.executeUpdate();
+      addRow(psql);
     } catch (SQLException e) {
       errors.add(e.getMessage());
       if (debug) {
@@ -114,7 +122,7 @@ public class DBBuilder {
     time(start);
   }
 
-  public void saveResource(FetchedFile f, FetchedResource r, byte[] json) {
+  public synchronized void saveResource(FetchedFile f, FetchedResource r, byte[] json) {
     long start = System.currentTimeMillis();
     if (con == null) {
       return;
@@ -122,17 +130,17 @@ public class DBBuilder {
 
     try {
       if (r.getResource() == null || !(r.getResource() instanceof CanonicalResource)) {
-        PreparedStatement psql = con.prepareStatement("Insert into Resources (key, type, id, json, web) values (?, ?, ?, ?, ?)");
+        PreparedStatement psql = prepare("Insert into Resources (key, type, id, json, web) values (?, ?, ?, ?, ?)");
         psql.setInt(1, ++lastResKey);
         bindString(psql, 2, r.fhirType());
         bindString(psql, 3, r.getId());
         bindString(psql, 4, r.getLocalRef());
         psql.setBytes(5, json);
-        psql.executeUpdate();   
+        addRow(psql);   
         r.getElement().setUserData("db.key", lastResKey);
       } else {
         CanonicalResource cr = (CanonicalResource) r.getResource();
-        PreparedStatement psql = con.prepareStatement("Insert into Resources (key, type, id, web, url, version, status, date, name, title, experimental, realm, description, purpose, copyright, copyrightLabel, json) "+
+        PreparedStatement psql = prepare("Insert into Resources (key, type, id, web, url, version, status, date, name, title, experimental, realm, description, purpose, copyright, copyrightLabel, json) "+
             "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
         psql.setInt(1, ++lastResKey);
         bindString(psql, 2,  r.fhirType());
@@ -151,7 +159,7 @@ public class DBBuilder {
         bindString(psql, 15, cr.getCopyright());
         bindString(psql, 16, cr.getCopyrightLabel());
         psql.setBytes(17, json);
-        psql.executeUpdate();    
+        addRow(psql);    
         if (cr instanceof CodeSystem) {
           codesystems.add((CodeSystem) cr);
         } else if (cr instanceof ConceptMap) {
@@ -168,14 +176,14 @@ public class DBBuilder {
     time(start);
   }
 
-  public void finishResources() {
+  public synchronized void finishResources() {
     long start = System.currentTimeMillis();
     if (con == null) {
       return;
     }
 
     try {
-      PreparedStatement psql = con.prepareStatement("Insert into Properties (Key, ResourceKey, Code, Uri, Description, Type) "+
+      PreparedStatement psql = prepare("Insert into Properties (Key, ResourceKey, Code, Uri, Description, Type) "+
           "values (?, ?, ?, ?, ?, ?)");
       for (CodeSystem cs : codesystems) {
         for (PropertyComponent p : cs.getProperty()) { 
@@ -185,27 +193,27 @@ public class DBBuilder {
           bindString(psql, 4, p.getUri());
           bindString(psql, 5, p.getDescription());
           bindString(psql, 6, p.getType().toCode());  
-          psql.executeUpdate();     
+          addRow(psql);     
           p.setUserData("db.key", lastPropKey);   
         }
       }
-      psql = con.prepareStatement("Insert into Concepts (Key, ResourceKey, ParentKey,  Code, Display, Definition) "+
+      psql = prepare("Insert into Concepts (Key, ResourceKey, ParentKey,  Code, Display, Definition) "+
           "values (?, ?, ?, ?, ?, ?)");
       for (CodeSystem cs : codesystems) {
         addConcepts(cs, cs.getConcept(), psql, 0);
       }
-      psql = con.prepareStatement("Insert into ConceptProperties (Key, ResourceKey, ConceptKey, PropertyKey, Code, Value) "+
+      psql = prepare("Insert into ConceptProperties (Key, ResourceKey, ConceptKey, PropertyKey, Code, Value) "+
           "values (?, ?, ?, ?, ?, ?)");
       for (CodeSystem cs : codesystems) {
         addConceptProperties(cs, cs.getConcept(), psql);
       }
-      psql = con.prepareStatement("Insert into Designations (Key, ResourceKey, ConceptKey, UseSystem, UseCode, Lang, Value) "+
+      psql = prepare("Insert into Designations (Key, ResourceKey, ConceptKey, UseSystem, UseCode, Lang, Value) "+
           "values (?, ?, ?, ?, ?, ?, ?)");
       for (CodeSystem cs : codesystems) {
         addConceptDesignations(cs, cs.getConcept(), psql);
       }
 
-      psql = con.prepareStatement("Insert into ConceptMappings (Key, ResourceKey, SourceSystem, SourceVersion, SourceCode, Relationship, TargetSystem, TargetVersion, TargetCode) "+
+      psql = prepare("Insert into ConceptMappings (Key, ResourceKey, SourceSystem, SourceVersion, SourceCode, Relationship, TargetSystem, TargetVersion, TargetCode) "+
           "values (?, ?, ?, ?, ?, ?, ?, ?, ?)");
       for (ConceptMap cm : mappings) {
         for (ConceptMapGroupComponent grp : cm.getGroup()) {
@@ -220,11 +228,12 @@ public class DBBuilder {
               bindString(psql, 7, grp.getTargetElement().baseUrl());
               bindString(psql, 8, grp.getTargetElement().version());
               bindString(psql, 9, tgt.getCode());
-              psql.executeUpdate();    
+              addRow(psql);    
             }
           }
         }
       }
+      flush();
     } catch (SQLException e) {
       errors.add(e.getMessage());
       if (debug) {
@@ -234,7 +243,7 @@ public class DBBuilder {
     time(start);
   }
 
-  public void recordExpansion(ValueSet vs, ValueSetExpansionOutcome exp) throws SQLException {
+  public synchronized void recordExpansion(ValueSet vs, ValueSetExpansionOutcome exp) throws SQLException {
     long start = System.currentTimeMillis();
     try {
       if (con == null) {
@@ -244,11 +253,12 @@ public class DBBuilder {
         return;
       }
 
-      PreparedStatement psql = con.prepareStatement("Insert into ValueSet_Codes (Key, ResourceKey, ValueSetUri, ValueSetVersion, System, Version, Code, Display) "+
+      PreparedStatement psql = prepare("Insert into ValueSet_Codes (Key, ResourceKey, ValueSetUri, ValueSetVersion, System, Version, Code, Display) "+
           "values (?, ?, ?, ?, ?, ?, ?, ?)");
       for (ValueSetExpansionContainsComponent e : exp.getValueset().getExpansion().getContains()) {
         addContains(vs, e, psql);
       }
+      flush();
     } catch (SQLException e) {
       errors.add(e.getMessage());
       if (debug) {
@@ -269,7 +279,7 @@ public class DBBuilder {
       bindString(psql, 6, e.getVersion());
       bindString(psql, 7, e.getCode());
       bindString(psql, 8, e.getDisplay());
-      psql.executeUpdate();   
+      addRow(psql);   
       for (ValueSetExpansionContainsComponent c : e.getContains()) {
         addContains(vs, c, psql);
       }
@@ -289,7 +299,7 @@ public class DBBuilder {
       bindString(psql, 4, cd.getCode());
       bindString(psql, 5, cd.getDisplay());
       bindString(psql, 6, cd.getDefinition());
-      psql.executeUpdate();    
+      addRow(psql);    
       cd.setUserData("db.key", lastConceptKey);   
       addConcepts(cs, cd.getConcept(), psql, lastConceptKey);
     }
@@ -311,7 +321,7 @@ public class DBBuilder {
         }
         bindString(psql, 5, p.getCode());
         bindString(psql, 6, p.getValue().primitiveValue());
-        psql.executeUpdate();    
+        addRow(psql);    
         p.setUserData("db.key", lastCPropKey);   
       }
       addConceptProperties(cs, cd.getConcept(), psql);
@@ -330,7 +340,7 @@ public class DBBuilder {
           bindString(psql, 5, p.getUse().getCode());
           bindString(psql, 6, p.getLanguage());
           bindString(psql, 7, p.getValue());
-          psql.executeUpdate();    
+          addRow(psql);    
           p.setUserData("db.key", lastDesgKey);   
         }
         addConceptDesignations(cs, cd.getConcept(), psql);
@@ -347,6 +357,44 @@ public class DBBuilder {
     
   }
 
+  /**
+   * each insert statement is prepared once, and reused for all the rows
+   */
+  private PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement psql = statements.get(sql);
+    if (psql == null) {
+      psql = con.prepareStatement(sql);
+      statements.put(sql, psql);
+    }
+    return psql;
+  }
+
+  private void addRow(PreparedStatement psql) throws SQLException {
+    psql.executeUpdate();
+    pendingRows++;
+    if (pendingRows >= batchSize) {
+      flush();
+    }
+  }
+
+  /**
+   * commit any rows written since the last commit
+   */
+  private void flush() throws SQLException {
+    if (pendingRows > 0) {
+      con.commit();
+      pendingRows = 0;
+    }
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
   private PropertyComponent getPropDefn(String code, CodeSystem cs) {
     if (code == null) {
       return null;
@@ -366,6 +414,10 @@ public class DBBuilder {
   private Connection connect(String filename) throws SQLException, ClassNotFoundException {
     new File(filename).delete();
     Connection con = DriverManager.getConnection("jdbc:sqlite:"+filename); 
+    Statement stmt = con.createStatement();
+    stmt.execute("PRAGMA journal_mode=WAL");
+    stmt.execute("PRAGMA synchronous=OFF");
+    con.setAutoCommit(false);
     makeMetadataTable(con);
     makeResourcesTable(con);
     makePropertiesTable(con);
@@ -376,6 +428,7 @@ public class DBBuilder {
     makeValueSetTable(con);
     makeCSListTables(con);
     makeVSListTables(con);
+    con.commit();
     return con;    
   }
 
@@ -552,7 +605,7 @@ public class DBBuilder {
   }
 
 
-  public String processSQL(String sql) {
+  public synchronized String processSQL(String sql) {
     long start = System.currentTimeMillis();
     if (con == null) {
       return "<span style=\"color: maroon\">Error processing SQL: SQL is not set up properly</span>";
@@ -666,10 +719,18 @@ public class DBBuilder {
     return Utilities.noString(p[0]) ? "grid" : p[0];
   }
 
-  public void closeUp() {
+  public synchronized void closeUp() {
     long start = System.currentTimeMillis();
     if (con != null) {
       try {
+        flush();
+        for (PreparedStatement psql : statements.values()) {
+          psql.close();
+        }
+        statements.clear();
+        // leave an ordinary single file database behind for the package
+        con.setAutoCommit(true);
+        con.createStatement().execute("PRAGMA journal_mode=DELETE");
         con.close();
       } catch (SQLException e) {
         errors.add(e.getMessage());
@@ -688,11 +749,11 @@ public class DBBuilder {
     System.out.println("DB Cumulative Time invested: "+Utilities.describeDuration(cumulativeTime));
   }
 
-  public void addToCSList(int viewType, CodeSystem cs, Set<String> oids, Set<Resource> rl) {
+  public synchronized void addToCSList(int viewType, CodeSystem cs, Set<String> oids, Set<Resource> rl) {
     try {
       lastCLKey++;
       PreparedStatement sql;
-      sql = con.prepareStatement("insert into CodeSystemList (CodeSystemListKey, ViewType, ResourceKey, Url, Version, Status, Name, Title, Description) values (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      sql = prepare("insert into CodeSystemList (CodeSystemListKey, ViewType, ResourceKey, Url, Version, Status, Name, Title, Description) values (?, ?, ?, ?, ?, ?, ?, ?, ?)");
       sql.setInt(1, lastCLKey);
       sql.setInt(2, viewType);
       if (cs.hasUserData("db.key")) {
@@ -706,18 +767,18 @@ public class DBBuilder {
       sql.setString(7, cs.getName());
       sql.setString(8, cs.getTitle());
       sql.setString(9, cs.getDescription());
-      sql.execute();
+      addRow(sql);
 
-      sql = con.prepareStatement("insert into CodeSystemListOIDs (CodeSystemListKey, OID) values (?, ?)");
+      sql = prepare("insert into CodeSystemListOIDs (CodeSystemListKey, OID) values (?, ?)");
       for (String oid : oids) {
         sql.setInt(1, lastCLKey);
         sql.setString(2, oid);      
-        sql.execute();
+        addRow(sql);
       }
 
       if (rl != null) {
         Set<String> keys = new HashSet<>();
-        sql = con.prepareStatement("insert into CodeSystemListRefs (CodeSystemListKey, Type, Id, ResourceKey, Title, Web) values (?, ?, ?, ?, ?, ?)");      
+        sql = prepare("insert into CodeSystemListRefs (CodeSystemListKey, Type, Id, ResourceKey, Title, Web) values (?, ?, ?, ?, ?, ?)");      
         for (Resource r : rl) {
           String key = r.fhirType()+"/"+r.getIdBase();
           if (!keys.contains(key)) {
@@ -732,20 +793,21 @@ public class DBBuilder {
             }      
             sql.setString(5, r instanceof CanonicalResource ? ((CanonicalResource) r).present() : r.fhirType()+"/"+r.getIdBase());
             sql.setString(6, r.getWebPath());
-            sql.execute();
+            addRow(sql);
           }
         }
       }
+      flush();
     } catch (SQLException e) {
       e.printStackTrace();
     }
   }
 
-  public void addToVSList(int viewType, ValueSet vs, Set<String> oids, Set<String> used, Set<String> sources, Set<Resource> rl) {
+  public synchronized void addToVSList(int viewType, ValueSet vs, Set<String> oids, Set<String> used, Set<String> sources, Set<Resource> rl) {
     try {
       lastVLKey++;
       PreparedStatement sql;
-      sql = con.prepareStatement("insert into ValueSetList (ValueSetListKey, ViewType, ResourceKey, Url, Version, Status, Name, Title, Description) values (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      sql = prepare("insert into ValueSetList (ValueSetListKey, ViewType, ResourceKey, Url, Version, Status, Name, Title, Description) values (?, ?, ?, ?, ?, ?, ?, ?, ?)");
       sql.setInt(1, lastVLKey);
       sql.setInt(2, viewType);
       if (vs.hasUserData("db.key")) {
@@ -759,32 +821,32 @@ public class DBBuilder {
       sql.setString(7, vs.getName());
       sql.setString(8, vs.getTitle());
       sql.setString(9, vs.getDescription());
-      sql.execute();
+      addRow(sql);
 
-      sql = con.prepareStatement("insert into ValueSetListOIDs (ValueSetListKey, OID) values (?, ?)");
+      sql = prepare("insert into ValueSetListOIDs (ValueSetListKey, OID) values (?, ?)");
       for (String oid : oids) {
         sql.setInt(1, lastVLKey);
         sql.setString(2, oid);      
-        sql.execute();
+        addRow(sql);
       }
 
-      sql = con.prepareStatement("insert into ValueSetListSystems (ValueSetListKey, URL) values (?, ?)");
+      sql = prepare("insert into ValueSetListSystems (ValueSetListKey, URL) values (?, ?)");
       for (String u : used) {
         sql.setInt(1, lastVLKey);
         sql.setString(2, u);      
-        sql.execute();
+        addRow(sql);
       }
 
 
-      sql = con.prepareStatement("insert into ValueSetListSources (ValueSetListKey, Source) values (?, ?)");
+      sql = prepare("insert into ValueSetListSources (ValueSetListKey, Source) values (?, ?)");
       for (String s : sources) {
         sql.setInt(1, lastVLKey);
         sql.setString(2, s);      
-        sql.execute();
+        addRow(sql);
       }
 
       if (rl != null) {
-        sql = con.prepareStatement("insert into ValueSetListRefs (ValueSetListKey, Type, Id, ResourceKey, Title, Web) values (?, ?, ?, ?, ?, ?)");      
+        sql = prepare("insert into ValueSetListRefs (ValueSetListKey, Type, Id, ResourceKey, Title, Web) values (?, ?, ?, ?, ?, ?)");      
         for (Resource r : rl) {
           sql.setInt(1, lastVLKey);
           sql.setString(2, r.fhirType());      
@@ -796,17 +858,39 @@ public class DBBuilder {
           }      
           sql.setString(5, r instanceof CanonicalResource ? ((CanonicalResource) r).present() : r.fhirType()+"/"+r.getIdBase());
           sql.setString(6, r.getWebPath());
-          sql.execute();
+          addRow(sql);
         }
       }
+      flush();
     } catch (SQLException e) {
       e.printStackTrace();
     }
     
   }
 
-  public Connection getConnection() {
-    return con;
+  public interface IConnectionTask {
+    void run(Connection con) throws Exception;
+  }
+
+  /**
+   * run some work directly against the database (e.g. the view definitions). The rows written so far are committed
+   * first, and whatever the task writes is committed when it's done, so it isn't left in an open transaction
+   */
+  public synchronized void withConnection(IConnectionTask task) throws Exception {
+    if (con == null) {
+      task.run(null);
+      return;
+    }
+    flush();
+    try {
+      task.run(con);
+    } finally {
+      if (con.getAutoCommit()) {
+        con.setAutoCommit(false);
+      } else {
+        con.commit();
+      }
+    }
   }
 
 
@@ -15,7 +15,10 @@ import org.hl7.fhir.exceptions.FHIRFormatError;
 import org.hl7.fhir.igtools.publisher.FetchedFile;
 import org.hl7.fhir.igtools.publisher.FetchedResource;
 import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider;
+import org.hl7.fhir.igtools.publisher.ProfileUsageIndex;
+import org.hl7.fhir.igtools.publisher.ProfileUsageIndex.ProfileUse;
 import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.igtools.publisher.StructureDefinitionGraph;
 import org.hl7.fhir.r5.comparison.CanonicalResourceComparer.CanonicalResourceComparison;
 import org.hl7.fhir.r5.comparison.CanonicalResourceComparer.ChangeAnalysisState;
 import org.hl7.fhir.r5.comparison.VersionComparisonAnnotation;
@@ -109,6 +112,7 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
   private StructureDefinition sd;
   private String destDir;
   private List<FetchedFile> files;
+  private StructureDefinitionGraph graph;
   private boolean allInvariants;
   private HashMap<String, ElementDefinition> differentialHash = null;
   private HashMap<String, ElementDefinition> mustSupportHash = null;
@@ -121,12 +125,13 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
 
   private org.hl7.fhir.r5.renderers.StructureDefinitionRenderer sdr;
 
-  public StructureDefinitionRenderer(IWorkerContext context, String corePath, StructureDefinition sd, String destDir, IGKnowledgeProvider igp, List<SpecMapManager> maps, Set<String> allTargets, MarkDownProcessor markdownEngine, NpmPackage packge, List<FetchedFile> files, RenderingContext gen, boolean allInvariants,Map<String, Map<String, ElementDefinition>> mapCache, String specPath, String versionToAnnotate) {
+  public StructureDefinitionRenderer(IWorkerContext context, String corePath, StructureDefinition sd, String destDir, IGKnowledgeProvider igp, List<SpecMapManager> maps, Set<String> allTargets, MarkDownProcessor markdownEngine, NpmPackage packge, List<FetchedFile> files, StructureDefinitionGraph graph, RenderingContext gen, boolean allInvariants,Map<String, Map<String, ElementDefinition>> mapCache, String specPath, String versionToAnnotate) {
     super(context, corePath, sd, destDir, igp, maps, allTargets, markdownEngine, packge, gen, versionToAnnotate);
     this.sd = sd;
     this.destDir = destDir;
     utils = new ProfileUtilities(context, null, igp);
     this.files = files;
+    this.graph = graph;
     this.allInvariants = allInvariants;
     this.sdMapCache = mapCache;
     sdr = new org.hl7.fhir.r5.renderers.StructureDefinitionRenderer(gen);
@@ -1337,167 +1342,122 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
 
   private List<StructureDefinition> findDerived() {
     List<StructureDefinition> res = new ArrayList<>();
-    for (StructureDefinition t : context.fetchResourcesByType(StructureDefinition.class)) {
-      if (refersToThisSD(t.getBaseDefinition())) {
-        res.add(t);
-      }
+    for (StructureDefinitionGraph.Link link : graph.getDerived(sd.getUrl())) {
+      res.add(link.getSource());
     }
     return res;
   }
 
   private List<StructureDefinition> findUses() {
     List<StructureDefinition> res = new ArrayList<>();
-    for (StructureDefinition t : context.fetchResourcesByType(StructureDefinition.class)) {
-      boolean uses = false;
-      for (ElementDefinition ed : t.getDifferential().getElement()) {
-        for (TypeRefComponent u : ed.getType()) {
-          if (u.hasProfile(sd.getUrl())) {
-            uses = true;
-          }
-        }
-      }
-      if (uses) {
-        res.add(t);
+    for (StructureDefinitionGraph.Link link : graph.getProfileUsers(sd.getUrl())) {
+      if (link.getReference().equals(sd.getUrl()) && !res.contains(link.getSource())) {
+        res.add(link.getSource());
       }
     }
     return res;
   }
 
 
-  public String exampleList(List<FetchedFile> fileList, boolean statedOnly) {
+  public String exampleList(ProfileUsageIndex usages, boolean statedOnly) {
     StringBuilder b = new StringBuilder();
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (!r.fhirType().equals("ImplementationGuide")) {
-          for (String p : r.getProfiles(statedOnly)) {
-            if (refersToThisSD(p)) {
-              String name = r.getTitle();
-              if (Utilities.noString(name))
-                name = "example";
-              String ref = igp.getLinkFor(r, true);
-              b.append(" <li><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></li>\r\n");
-            }
-          }
-        }
-      }
+    for (ProfileUse use : usages.getExamples(sd.getUrl(), statedOnly)) {
+      FetchedResource r = use.getResource();
+      if (r.fhirType().equals("ImplementationGuide"))
+        continue;
+      String name = r.getTitle();
+      if (Utilities.noString(name))
+        name = "example";
+      String ref = igp.getLinkFor(r, true);
+      b.append(" <li><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></li>\r\n");
     }
     return b.toString();
   }
 
-  public String exampleTable(List<FetchedFile> fileList, boolean statedOnly) {
+  public String exampleTable(ProfileUsageIndex usages, boolean statedOnly) {
     StringBuilder b = new StringBuilder();
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (!r.fhirType().equals("ImplementationGuide")) {
-          for (String p : r.getProfiles(statedOnly)) {
-            if (refersToThisSD(p)) {
-              String name = r.fhirType() + "/" + r.getId();
-              String title = r.getTitle();
-              if (Utilities.noString(title))
-                name = "example";
-              if (f.getTitle() != null && f.getTitle() != f.getName())
-                title = f.getTitle();
-              String ref = igp.getLinkFor(r, true);
-              b.append(" <tr>\r\n");
-              b.append("   <td><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></td>\r\n");
-              b.append("   <td>" + Utilities.escapeXml(title) + "</td>\r\n");
-              b.append(" </tr>\r\n");
-            }
-          }
-        }
-      }
+    for (ProfileUse use : usages.getExamples(sd.getUrl(), statedOnly)) {
+      FetchedFile f = use.getFile();
+      FetchedResource r = use.getResource();
+      if (r.fhirType().equals("ImplementationGuide"))
+        continue;
+      String name = r.fhirType() + "/" + r.getId();
+      String title = r.getTitle();
+      if (Utilities.noString(title))
+        name = "example";
+      if (f.getTitle() != null && f.getTitle() != f.getName())
+        title = f.getTitle();
+      String ref = igp.getLinkFor(r, true);
+      b.append(" <tr>\r\n");
+      b.append("   <td><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></td>\r\n");
+      b.append("   <td>" + Utilities.escapeXml(title) + "</td>\r\n");
+      b.append(" </tr>\r\n");
     }
     return b.toString();
   }
 
-  public String testplanList(List<FetchedFile> fileList) {
+  public String testplanList(ProfileUsageIndex usages) {
     StringBuilder b = new StringBuilder();
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.fhirType().equals("TestPlan")) {
-          for (String p : r.getTestArtifacts()) {
-            if (refersToThisSD(p)) {
-              String name = r.getTitle();
-              if (Utilities.noString(name))
-                name = "TestPlan";
-              String ref = igp.getLinkFor(r, true);
-              b.append(" <li><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></li>\r\n");
-            }
-          }
-        }
-      }
+    for (ProfileUse use : usages.getTestPlans(sd.getUrl())) {
+      FetchedResource r = use.getResource();
+      String name = r.getTitle();
+      if (Utilities.noString(name))
+        name = "TestPlan";
+      String ref = igp.getLinkFor(r, true);
+      b.append(" <li><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></li>\r\n");
     }
     return b.toString();
   }
 
-  public String testplanTable(List<FetchedFile> fileList) {
+  public String testplanTable(ProfileUsageIndex usages) {
     StringBuilder b = new StringBuilder();
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.fhirType().equals("TestPlan")) {
-          for (String p : r.getTestArtifacts()) {
-            if (refersToThisSD(p)) {
-              String name = r.fhirType() + "/" + r.getId();
-              String title = r.getTitle();
-              if (Utilities.noString(title))
-                name = "TestPlan";
-              if (f.getTitle() != null && f.getTitle() != f.getName())
-                title = f.getTitle();
-              String ref = igp.getLinkFor(r, true);
-              b.append(" <tr>\r\n");
-              b.append("   <td><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></td>\r\n");
-              b.append("   <td>" + Utilities.escapeXml(title) + "</td>\r\n");
-              b.append(" </tr>\r\n");
-            }
-          }
-        }
-      }
+    for (ProfileUse use : usages.getTestPlans(sd.getUrl())) {
+      FetchedFile f = use.getFile();
+      FetchedResource r = use.getResource();
+      String name = r.fhirType() + "/" + r.getId();
+      String title = r.getTitle();
+      if (Utilities.noString(title))
+        name = "TestPlan";
+      if (f.getTitle() != null && f.getTitle() != f.getName())
+        title = f.getTitle();
+      String ref = igp.getLinkFor(r, true);
+      b.append(" <tr>\r\n");
+      b.append("   <td><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></td>\r\n");
+      b.append("   <td>" + Utilities.escapeXml(title) + "</td>\r\n");
+      b.append(" </tr>\r\n");
     }
     return b.toString();
   }
 
-  public String testscriptList(List<FetchedFile> fileList) {
+  public String testscriptList(ProfileUsageIndex usages) {
     StringBuilder b = new StringBuilder();
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.fhirType().equals("TestScript")) {
-          for (String p : r.getTestArtifacts()) {
-            if (refersToThisSD(p)) {
-              String name = r.getTitle();
-              if (Utilities.noString(name))
-                name = "TestScript";
-              String ref = igp.getLinkFor(r, true);
-              b.append(" <li><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></li>\r\n");
-            }
-          }
-        }
-      }
+    for (ProfileUse use : usages.getTestScripts(sd.getUrl())) {
+      FetchedResource r = use.getResource();
+      String name = r.getTitle();
+      if (Utilities.noString(name))
+        name = "TestScript";
+      String ref = igp.getLinkFor(r, true);
+      b.append(" <li><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></li>\r\n");
     }
     return b.toString();
   }
 
-  public String testscriptTable(List<FetchedFile> fileList) {
+  public String testscriptTable(ProfileUsageIndex usages) {
     StringBuilder b = new StringBuilder();
-    for (FetchedFile f : fileList) {
-      for (FetchedResource r : f.getResources()) {
-        if (r.fhirType().equals("TestScript")) {
-          for (String p : r.getTestArtifacts()) {
-            if (refersToThisSD(p)) {
-              String name = r.fhirType() + "/" + r.getId();
-              String title = r.getTitle();
-              if (Utilities.noString(title))
-                name = "TestScript";
-              if (f.getTitle() != null && f.getTitle() != f.getName())
-                title = f.getTitle();
-              String ref = igp.getLinkFor(r, true);
-              b.append(" <tr>\r\n");
-              b.append("   <td><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></td>\r\n");
-              b.append("   <td>" + Utilities.escapeXml(title) + "</td>\r\n");
-              b.append(" </tr>\r\n");
-            }
-          }
-        }
-      }
+    for (ProfileUse use : usages.getTestScripts(sd.getUrl())) {
+      FetchedFile f = use.getFile();
+      FetchedResource r = use.getResource();
+      String name = r.fhirType() + "/" + r.getId();
+      String title = r.getTitle();
+      if (Utilities.noString(title))
+        name = "TestScript";
+      if (f.getTitle() != null && f.getTitle() != f.getName())
+        title = f.getTitle();
+      String ref = igp.getLinkFor(r, true);
+      b.append(" <tr>\r\n");
+      b.append("   <td><a href=\"" + Utilities.escapeXml(ref) + "\">" + Utilities.escapeXml(name) + "</a></td>\r\n");
+      b.append("   <td>" + Utilities.escapeXml(title) + "</td>\r\n");
+      b.append(" </tr>\r\n");
     }
     return b.toString();
   }
@@ -2020,40 +1980,33 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
     Map<String, String> refs = new HashMap<>();
     Map<String, String> trefs = new HashMap<>();
     Map<String, String> examples = new HashMap<>();
-    for (StructureDefinition sdt : context.fetchResourcesByType(StructureDefinition.class)) {
-      if (refersToThisSD(sdt.getBaseDefinition())) {
-        base.put(sdt.getWebPath(), sdt.present());
-      }
-      scanExtensions(invoked, sdt, ToolingExtensions.EXT_OBLIGATION_INHERITS);
-      scanExtensions(imposed, sdt, ToolingExtensions.EXT_SD_IMPOSE_PROFILE);
-      scanExtensions(compliedWith, sdt, ToolingExtensions.EXT_SD_COMPLIES_WITH_PROFILE);
-
-      for (ElementDefinition ed : sdt.getDifferential().getElement()) {
-        for (TypeRefComponent tr : ed.getType()) {
-          if (refersToThisSD(tr.getCode())) {
-            if (sdt.hasWebPath()) {
-              refs.put(sdt.getWebPath(), sdt.present());
-            }
-          }
-          for (CanonicalType u : tr.getProfile()) {
-            if (refersToThisSD(u.getValue())) {
-              if (sdt.hasWebPath()) {
-                refs.put(sdt.getWebPath(), sdt.present());
-              } else {
-                System.out.println("SD "+sdt.getVersionedUrl()+" has no path");
-              }
-            }
-          }
-          for (CanonicalType u : tr.getTargetProfile()) {
-            if (refersToThisSD(u.getValue())) {
-              if (sdt.hasWebPath()) {
-                trefs.put(sdt.getWebPath(), sdt.present());
-              } else {
-                System.out.println("SD "+sdt.getVersionedUrl()+" has no path");
-              }
-            }
-          }
-        }
+    for (StructureDefinitionGraph.Link link : graph.getDerived(sd.getUrl())) {
+      base.put(link.getSource().getWebPath(), link.getSource().present());
+    }
+    scanExtensions(invoked, ToolingExtensions.EXT_OBLIGATION_INHERITS);
+    scanExtensions(imposed, ToolingExtensions.EXT_SD_IMPOSE_PROFILE);
+    scanExtensions(compliedWith, ToolingExtensions.EXT_SD_COMPLIES_WITH_PROFILE);
+
+    for (StructureDefinitionGraph.Link link : graph.getTypeUsers(sd.getUrl())) {
+      StructureDefinition sdt = link.getSource();
+      if (sdt.hasWebPath()) {
+        refs.put(sdt.getWebPath(), sdt.present());
+      }
+    }
+    for (StructureDefinitionGraph.Link link : graph.getProfileUsers(sd.getUrl())) {
+      StructureDefinition sdt = link.getSource();
+      if (sdt.hasWebPath()) {
+        refs.put(sdt.getWebPath(), sdt.present());
+      } else {
+        System.out.println("SD "+sdt.getVersionedUrl()+" has no path");
+      }
+    }
+    for (StructureDefinitionGraph.Link link : graph.getTargetProfileUsers(sd.getUrl())) {
+      StructureDefinition sdt = link.getSource();
+      if (sdt.hasWebPath()) {
+        trefs.put(sdt.getWebPath(), sdt.present());
+      } else {
+        System.out.println("SD "+sdt.getVersionedUrl()+" has no path");
       }
     }
     if (VersionUtilities.isR5Plus(context.getVersion())) {
@@ -2129,12 +2082,9 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
     }
   }
 
-  private void scanExtensions(Map<String, String> invoked, StructureDefinition sd, String u) {
-    for (Extension ext : sd.getExtensionsByUrl(u)) {
-      String v = ext.getValue().primitiveValue();
-      if (refersToThisSD(v)) {
-        invoked.put(sd.getWebPath(), sd.present());
-      }
+  private void scanExtensions(Map<String, String> invoked, String u) {
+    for (StructureDefinitionGraph.Link link : graph.getExtensionUsers(u, sd.getUrl())) {
+      invoked.put(link.getSource().getWebPath(), link.getSource().present());
     }
   }
 
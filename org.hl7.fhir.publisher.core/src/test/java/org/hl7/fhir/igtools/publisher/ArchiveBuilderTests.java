@@ -0,0 +1,143 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.utilities.TextFile;
+import org.junit.jupiter.api.Test;
+
+public class ArchiveBuilderTests {
+
+  private File makeSite() throws IOException {
+    File dir = Files.createTempDirectory("archive").toFile();
+    new File(dir, "sub").mkdir();
+    TextFile.stringToFile("<html>b</html>", new File(dir, "b.html"));
+    TextFile.stringToFile("<html>a</html>", new File(dir, "a.html"));
+    TextFile.stringToFile("{\"c\" : 1}", new File(dir, "sub/c.json"));
+    return dir;
+  }
+
+  private List<String> check(File zip) throws IOException {
+    List<String> names = new ArrayList<>();
+    try (ZipFile zf = new ZipFile(zip)) {
+      for (ZipEntry e : Collections.list(zf.entries())) {
+        names.add(e.getName());
+      }
+      assertEquals("<html>a</html>", new String(IOUtils.toByteArray(zf.getInputStream(zf.getEntry("site/a.html")))));
+      assertEquals("{\"c\" : 1}", new String(IOUtils.toByteArray(zf.getInputStream(zf.getEntry("site/sub/c.json")))));
+    }
+    return names;
+  }
+
+  private void testBuild(ExecutorService executor) throws IOException {
+    File dir = makeSite();
+    File temp = Files.createTempDirectory("archive-temp").toFile();
+    File zip = new File(dir, "full-ig.zip");
+    TextFile.stringToFile("left over from the last run", zip);
+
+    ArchiveBuilder builder = new ArchiveBuilder(zip.getAbsolutePath(), temp.getAbsolutePath(), executor);
+    builder.addFolder(dir.getAbsolutePath(), "site/", false);
+    builder.addFileSource("index.html", "<html>redirect</html>", false);
+    builder.close();
+
+    List<String> names = check(zip);
+    assertEquals("[site/a.html, site/b.html, site/sub/c.json, index.html]", names.toString());
+    assertFalse(new File(zip.getAbsolutePath()+".tmp").exists());
+    // the compression threads' scratch files are cleaned up
+    assertEquals(0, temp.list().length);
+  }
+
+  @Test
+  public void testSerial() throws IOException {
+    testBuild(ArchiveBuilder.makeExecutor(1));
+  }
+
+  @Test
+  public void testParallel() throws IOException {
+    ExecutorService executor = ArchiveBuilder.makeExecutor(4);
+    try {
+      testBuild(executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSharedExecutor() throws IOException {
+    ExecutorService executor = ArchiveBuilder.makeExecutor(2);
+    try {
+      File dir = makeSite();
+      ArchiveBuilder first = new ArchiveBuilder(new File(dir, "first.zip").getAbsolutePath(), null, executor);
+      ArchiveBuilder second = new ArchiveBuilder(new File(dir, "second.zip").getAbsolutePath(), null, executor);
+      first.addFileSource("a.txt", "a", false);
+      second.addFileSource("b.txt", "b", false);
+      first.close();
+      // writing one archive doesn't stop the executor the others are using
+      assertFalse(executor.isShutdown());
+      second.addFileSource("c.txt", "c", false);
+      second.close();
+      try (ZipFile zf = new ZipFile(new File(dir, "second.zip"))) {
+        assertEquals("c", new String(IOUtils.toByteArray(zf.getInputStream(zf.getEntry("c.txt")))));
+      }
+      testBuild(executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testDiscard() throws IOException {
+    ExecutorService executor = ArchiveBuilder.makeExecutor(2);
+    try {
+      for (ExecutorService e : new ExecutorService[] { null, executor }) {
+        File dir = makeSite();
+        File temp = Files.createTempDirectory("archive-temp").toFile();
+        File zip = new File(dir, "full-ig.zip");
+        ArchiveBuilder builder = new ArchiveBuilder(zip.getAbsolutePath(), temp.getAbsolutePath(), e);
+        try {
+          builder.addFolder(dir.getAbsolutePath(), "site/", false);
+          builder.addFileSource("site/a.html", "duplicate", false);
+          builder.close();
+        } catch (IOException ex) {
+          // expected: duplicate entry
+        } finally {
+          builder.discard();
+        }
+        assertFalse(zip.exists());
+        assertFalse(new File(zip.getAbsolutePath()+".tmp").exists());
+        assertEquals(0, temp.list().length);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testWrittenAsAdded() throws IOException {
+    File dir = Files.createTempDirectory("archive").toFile();
+    File zip = new File(dir, "big.zip");
+    byte[] content = new byte[1024 * 1024];
+    new Random(1).nextBytes(content);
+
+    ArchiveBuilder builder = new ArchiveBuilder(zip.getAbsolutePath(), null, null);
+    builder.addBytes("a.bin", content, false);
+    builder.addBytes("b.bin", content, false);
+    // random bytes don't compress, so the entries must already be on disk
+    assertTrue(new File(zip.getAbsolutePath()+".tmp").length() > content.length);
+    builder.close();
+    assertTrue(zip.length() > 2 * content.length);
+  }
+}
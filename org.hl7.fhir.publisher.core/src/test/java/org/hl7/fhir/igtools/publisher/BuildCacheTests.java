@@ -0,0 +1,50 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.junit.jupiter.api.Test;
+
+public class BuildCacheTests {
+
+  @Test
+  public void testEntryDependsOnlyOnItsOwnFiles() throws IOException {
+    BuildCache cache = new BuildCache(Files.createTempDirectory("build-cache").toFile().getAbsolutePath(), null);
+    Map<String, String> hashes = new HashMap<>();
+    hashes.put("profile.json", "1");
+    hashes.put("other.json", "2");
+    Map<String, String> deps = new HashMap<>();
+    deps.put("profile.json", "1");
+    JsonObject content = new JsonObject();
+    content.add("value", "x");
+    cache.save("k", content, deps);
+
+    assertNotNull(cache.load("k", hashes));
+    hashes.put("other.json", "3");
+    assertEquals("x", cache.load("k", hashes).asString("value"));
+    hashes.put("profile.json", "4");
+    assertNull(cache.load("k", hashes));
+  }
+
+  @Test
+  public void testSliceTextRoundTrips() {
+    ValidationMessage vm = new ValidationMessage(Source.InstanceValidator, IssueType.STRUCTURE, 1, 2, "Patient.name", "message", "html", IssueSeverity.INFORMATION);
+    vm.setSliceHtml("<p>slice</p>", new String[] { "one", "two" });
+    vm.setSlicingHint(true);
+    ValidationMessage res = BuildCache.messageFromJson(BuildCache.messageToJson(vm));
+    assertEquals("<p>slice</p>", res.getSliceHtml());
+    assertArrayEquals(new String[] { "one", "two" }, res.getSliceText());
+  }
+}
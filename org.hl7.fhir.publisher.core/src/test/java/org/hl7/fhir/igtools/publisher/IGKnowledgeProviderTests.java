@@ -0,0 +1,82 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r5.model.Patient;
+import org.junit.jupiter.api.Test;
+
+public class IGKnowledgeProviderTests {
+
+  private Map<String, String> fixed() {
+    return IGKnowledgeProvider.fixedTokens("Title", "example", "example", "xml", "Patient");
+  }
+
+  private Map<String, String> vars(String... pairs) {
+    Map<String, String> res = new HashMap<>();
+    for (int i = 0; i < pairs.length; i = i + 2) {
+      res.put(pairs[i], pairs[i+1]);
+    }
+    return res;
+  }
+
+  private void check(String s, Map<String, String> vars) {
+    assertEquals(IGKnowledgeProvider.replaceTokensInTurn(s, fixed(), vars), IGKnowledgeProvider.replaceTokens(s, fixed(), vars), s);
+  }
+
+  @Test
+  public void testPlain() {
+    check("no tokens at all", null);
+    check("{{[id]}}.html", null);
+    check("{{[type]}}-{{[id]}}.{{[fmt]}} ({{[title]}}, {{[uid]}}, {{[name]}})", null);
+    check("{{[id]}}{{[id]}}{{[id", null);
+    check("{{[v]}}/{{[id]}}", vars("v", "x"));
+  }
+
+  @Test
+  public void testUnknown() {
+    check("{{[unknown]}}-{{[id]}}", null);
+    check("{{[unknown]}}-{{[id]}}", vars("other", "x"));
+    check("{{[]}}{{[id]}}", null);
+  }
+
+  @Test
+  public void testNested() {
+    check("{{[x{{[id]}}]}}", null);
+    check("{{[ex{{[v]}}]}}", vars("v", "ample", "example", "done"));
+    check("{{[{{[v]}}]}}", vars("v", "id"));
+  }
+
+  @Test
+  public void testValueContainsToken() {
+    check("{{[v]}}", vars("v", "{{[id]}}"));
+    check("{{[v]}}", vars("v", "{{[w]}}", "w", "done"));
+    check("{{[w]}}{{[v]}}", vars("v", "{{[w]}}", "w", "done"));
+    check("{{[title]}}", vars("t", "x"));
+  }
+
+  @Test
+  public void testValueEndsWithPartialToken() {
+    check("{{[v]}}{[id]}}", vars("v", "{"));
+    check("{{[v]}}[id]}}", vars("v", "{{"));
+    check("{{[v]}}[w]}}", vars("v", "{{", "w", "done"));
+  }
+
+  @Test
+  public void testValueJoinsWithTextBefore() {
+    check("{{{{[v]}}id]}}", vars("v", "["));
+    check("{{{{[v]}}[id]}}", vars("v", ""));
+    check("{{[v]}}", vars("v", "id]}}"));
+  }
+
+  @Test
+  public void testNullVar() throws Exception {
+    check("a{{[v]}}b{{[id]}}", vars("v", null));
+    IGKnowledgeProvider pkp = new IGKnowledgeProvider(null, "http://hl7.org/fhir", "http://example.org/fhir", null, null, false, null, null, null, null);
+    Patient p = new Patient();
+    p.setId("pat");
+    assertEquals("a-b-pat-?title?-pat-json-html", pkp.doReplacements("a-{{[v]}}b-{{[id]}}-{{[title]}}-{{[name]}}", p, vars("v", null), "json"));
+  }
+}
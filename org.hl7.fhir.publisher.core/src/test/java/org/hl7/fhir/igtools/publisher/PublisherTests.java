@@ -7,10 +7,12 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.stream.Stream;
 
+import org.hl7.fhir.igtools.publisher.Publisher.CacheOption;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -76,4 +78,45 @@ public class PublisherTests {
         assertNotNull(thrown);
         assertTrue(thrown.getMessage().endsWith(expectedError.replace('/', File.separatorChar)));
     }
+
+    private static final String[] OPTIONS = { "configFile", "sourceDir", "destDir", "specifiedVersion", "txServer", "igPack", "jekyllCommand", 
+        "packagesFolder", "packageCacheFolder", "mode", "targetOutput", "repoSource", "targetOutputNested", "publishing", "debug", "cacheVersion", 
+        "noSushi", "validationOff", "generationOff", "useBuildCache", "threads", "noNarratives", "noValidate" };
+
+    @Test
+    public void testRebuildPublisherOptions() throws Exception {
+        File ig = tempDir.resolve("ig.json").toFile();
+        Files.writeString(ig.toPath(), "{}");
+        String[] args = { "-ig", ig.getAbsolutePath(), "-tx", "n/a", "-jekyll", "jekyll-test", "-packages", tempDir.toString(), 
+            "-package-cache-folder", tempDir.resolve("child").toString(), "-debug", "-cacheVersion", "-no-sushi", "-validation-off", 
+            "-generation-off", "-build-cache", "-threads", "3", "-no-narrative", "Patient/a,Patient/b", "-no-validate", "Patient/c", "-resetTx", "-watch" };
+        Publisher original = new Publisher();
+        Publisher.parseOptions(original, args);
+        Publisher rebuild = original.makeRebuildPublisher(args);
+
+        for (String name : OPTIONS) {
+            assertEquals(option(original, name), option(rebuild, name), name);
+        }
+        assertEquals(true, option(rebuild, "useBuildCache"));
+        assertEquals(3, option(rebuild, "threads"));
+        // the terminology cache is only reset by the first build
+        assertEquals(CacheOption.CLEAR_ALL, original.getCacheOption());
+        assertEquals(CacheOption.LEAVE, rebuild.getCacheOption());
+    }
+
+    @Test
+    public void testRebuildPublisherLeavesBuildCacheOff() throws Exception {
+        File ig = tempDir.resolve("ig.json").toFile();
+        Files.writeString(ig.toPath(), "{}");
+        String[] args = { "-ig", ig.getAbsolutePath(), "-tx", "n/a", "-watch" };
+        Publisher original = new Publisher();
+        Publisher.parseOptions(original, args);
+        assertEquals(false, option(original.makeRebuildPublisher(args), "useBuildCache"));
+    }
+
+    private Object option(Publisher publisher, String name) throws Exception {
+        Field field = Publisher.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(publisher);
+    }
 }
@@ -0,0 +1,119 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.hl7.fhir.igtools.publisher.SuppressedMessageInformation.SuppressedMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.junit.jupiter.api.Test;
+
+public class SuppressedMessageInformationTests {
+
+  private static final String SLICE_NOTE = " (this may not be a problem, but you should check that it's not intended to match a slice)";
+
+  private SuppressedMessageInformation make() {
+    SuppressedMessageInformation smi = new SuppressedMessageInformation();
+    smi.add("The code 'abc' is not valid", "exact");
+    smi.add("Unable to resolve%", "prefix");
+    smi.add("%is not a valid code", "suffix");
+    smi.add("%not valid%", "contains");
+    smi.add("%valid%", "contains");
+    smi.add("%ab%", "ab");
+    smi.add("%bc%", "ab");
+    return smi;
+  }
+
+  private ValidationMessage msg(String text, IssueSeverity level) {
+    return new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL, "Patient", text, level);
+  }
+
+  private SuppressedMessage find(SuppressedMessageInformation smi, String category, String raw) {
+    for (SuppressedMessage sm : smi.list(category)) {
+      if (sm.getMessageRaw().equals(raw)) {
+        return sm;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testFirstPatternWins() {
+    SuppressedMessageInformation smi = make();
+
+    ValidationMessage vm = msg("The code 'abc' is NOT valid", IssueSeverity.WARNING);
+    assertTrue(smi.contains(vm.getMessage(), vm));
+    assertEquals("exact", vm.getComment());
+
+    vm = msg("xyz is not valid here", IssueSeverity.INFORMATION);
+    assertTrue(smi.contains(vm.getMessage(), vm));
+    assertEquals("contains", vm.getComment());
+
+    vm = msg("unable to resolve the reference", IssueSeverity.WARNING);
+    assertTrue(smi.contains(vm.getMessage(), vm));
+    assertEquals("prefix", vm.getComment());
+
+    vm = msg("'x' is not a valid code", IssueSeverity.WARNING);
+    assertTrue(smi.contains(vm.getMessage(), vm));
+    assertEquals("suffix", vm.getComment());
+
+    vm = msg("xbcx", IssueSeverity.WARNING);
+    assertTrue(smi.contains(vm.getMessage(), vm));
+    assertEquals("ab", vm.getComment());
+
+    vm = msg("nothing to see", IssueSeverity.WARNING);
+    assertFalse(smi.contains(vm.getMessage(), vm));
+  }
+
+  @Test
+  public void testSliceNote() {
+    SuppressedMessageInformation smi = make();
+    ValidationMessage vm = msg("'x' is not a valid code"+SLICE_NOTE, IssueSeverity.WARNING);
+    assertTrue(smi.contains(vm.getMessage(), vm));
+    // the 'contains' pattern matches the message with the note, but the suffix pattern comes first
+    assertEquals("suffix", vm.getComment());
+  }
+
+  @Test
+  public void testUseCounts() {
+    SuppressedMessageInformation smi = make();
+    ValidationMessage vm = msg("it's valid", IssueSeverity.WARNING);
+    assertTrue(smi.contains(vm.getMessage(), vm));
+    assertTrue(smi.contains(vm.getMessage(), vm)); // only counted the first time
+    vm = msg("it's valid", IssueSeverity.INFORMATION);
+    assertTrue(smi.contains(vm.getMessage(), vm));
+
+    SuppressedMessage sm = find(smi, "contains", "%valid%");
+    assertEquals(1, sm.getUseCountWarning());
+    assertEquals(1, sm.getUseCountHint());
+    assertEquals(0, find(smi, "contains", "%not valid%").getUseCount());
+  }
+
+  @Test
+  public void testSameAsLinearScan() {
+    SuppressedMessageInformation smi = make();
+    smi.add("%b", "late");
+    List<String> categories = smi.categories();
+    String[] messages = { "abc", "cab", "b", "bab", "not valid", "the code 'abc' is not valid", "unable to resolve", "aaabbbccc", "" };
+    for (String m : messages) {
+      String expected = null;
+      // categories() is sorted, so work in the order they were added
+      for (String c : new String[] { "exact", "prefix", "suffix", "contains", "ab", "late" }) {
+        assertTrue(categories.contains(c));
+        for (SuppressedMessage sm : smi.list(c)) {
+          if (expected == null && sm.matches(m)) {
+            expected = c;
+          }
+        }
+      }
+      ValidationMessage vm = msg(m, IssueSeverity.WARNING);
+      assertEquals(expected != null, smi.contains(m, vm), m);
+      assertEquals(expected, vm.getComment(), m);
+    }
+  }
+}
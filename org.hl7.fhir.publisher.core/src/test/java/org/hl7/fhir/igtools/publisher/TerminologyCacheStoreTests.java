@@ -0,0 +1,126 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.context.TerminologyCache;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.terminologies.expansion.ValueSetExpansionOutcome;
+import org.hl7.fhir.r5.terminologies.utilities.TerminologyServiceErrorClass;
+import org.hl7.fhir.utilities.TextFile;
+import org.junit.jupiter.api.Test;
+
+public class TerminologyCacheStoreTests {
+
+  private static final String SEP = "-------------------------------------------------------------------------------------";
+
+  // the layout the terminology cache writes: a separator line, then each entry followed by a separator line
+  private String entry(String request, String response) {
+    return "{\"code\" : \""+request+"\"}####\r\nv: {\r\n  \"display\" : \""+response+"\"\r\n}\r\n"+SEP+"\r\n";
+  }
+
+  private String error(String request) {
+    return "{\"code\" : \""+request+"\"}####\r\nv: {\r\n  \"severity\" : \"error\",\r\n  \"issues\" : {\r\n  \"resourceType\" : \"OperationOutcome\"\r\n}\r\n}\r\n"+SEP+"\r\n";
+  }
+
+  @Test
+  public void testClearErrorsKeepsGoodEntries() throws IOException {
+    File dir = Files.createTempDirectory("tx-cache").toFile();
+    File cache = new File(dir, "loinc.cache");
+    TextFile.stringToFile(SEP+"\r\n"+entry("a", "A")+error("b")+entry("c", "C"), cache);
+    File version = new File(dir, "4.0.1");
+    version.mkdir();
+    File old = new File(version, "all-systems.cache");
+    TextFile.stringToFile(SEP+"\r\n"+error("d"), old);
+
+    TerminologyCacheStore store = new TerminologyCacheStore(dir.getAbsolutePath());
+    assertEquals(2, store.clearErrors());
+
+    String s = TextFile.fileToString(cache);
+    assertTrue(s.startsWith(SEP));
+    assertTrue(s.contains("\"a\""));
+    assertFalse(s.contains("\"b\""));
+    assertTrue(s.contains("\"c\""));
+    assertFalse(old.exists());
+    assertTrue(new File(dir, TerminologyCacheStore.LOCK_NAME).exists());
+    assertEquals(1, store.count());
+  }
+
+  @Test
+  public void testCompactKeepsLatest() throws IOException {
+    File dir = Files.createTempDirectory("tx-cache").toFile();
+    File cache = new File(dir, "ucum.cache");
+    TextFile.stringToFile(SEP+"\r\n"+entry("a", "old")+entry("b", "B")+entry("a", "new"), cache);
+
+    TerminologyCacheStore store = new TerminologyCacheStore(dir.getAbsolutePath());
+    assertEquals(1, store.compact());
+    String s = TextFile.fileToString(cache);
+    assertEquals(SEP+"\r\n"+entry("b", "B")+entry("a", "new"), s);
+    assertEquals(0, store.compact());
+  }
+
+  @Test
+  public void testHeaderKept() throws IOException {
+    File dir = Files.createTempDirectory("tx-cache").toFile();
+    File cache = new File(dir, "snomed.cache");
+    TextFile.stringToFile("header\r\n"+SEP+"\r\n"+entry("a", "old")+entry("a", "new"), cache);
+
+    TerminologyCacheStore store = new TerminologyCacheStore(dir.getAbsolutePath());
+    assertEquals(1, store.compact());
+    assertEquals("header\r\n"+SEP+"\r\n"+entry("a", "new"), TextFile.fileToString(cache));
+  }
+
+  private ValueSet vs(int i) {
+    ValueSet vs = new ValueSet();
+    vs.setUrl("http://example.org/fhir/ValueSet/vs"+i);
+    vs.setVersion("1.0");
+    vs.getCompose().addInclude().setSystem("http://loinc.org").addConcept().setCode("1234-"+i);
+    return vs;
+  }
+
+  private ValueSetExpansionOutcome expansion(ValueSet vs, String display) {
+    ValueSet exp = vs.copy();
+    exp.getExpansion().addContains().setSystem("http://loinc.org").setCode(vs.getCompose().getIncludeFirstRep().getConceptFirstRep().getCode()).setDisplay(display);
+    return new ValueSetExpansionOutcome(exp);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    File dir = Files.createTempDirectory("tx-cache").toFile();
+    List<ValueSet> list = new ArrayList<>();
+    TerminologyCache cache = new TerminologyCache(new Object(), dir.getAbsolutePath());
+    for (int i = 0; i < 5; i++) {
+      ValueSet vs = vs(i);
+      list.add(vs);
+      cache.cacheExpansion(cache.generateExpandToken(vs, false), expansion(vs, "old"), true);
+    }
+    // two answers are superseded, and one is an error
+    cache.cacheExpansion(cache.generateExpandToken(list.get(0), false), expansion(list.get(0), "new"), true);
+    cache.cacheExpansion(cache.generateExpandToken(list.get(1), false), expansion(list.get(1), "new"), true);
+    ValueSet bad = vs(5);
+    cache.cacheExpansion(cache.generateExpandToken(bad, false), new ValueSetExpansionOutcome("Unable to expand", TerminologyServiceErrorClass.UNKNOWN, false), true);
+
+    TerminologyCacheStore store = new TerminologyCacheStore(dir.getAbsolutePath());
+    assertEquals(2, store.compact());
+
+    TerminologyCache reloaded = new TerminologyCache(new Object(), dir.getAbsolutePath());
+    for (int i = 0; i < 5; i++) {
+      ValueSetExpansionOutcome outcome = reloaded.getExpansion(reloaded.generateExpandToken(list.get(i), false));
+      assertNotNull(outcome, "vs"+i);
+      assertNull(outcome.getError(), "vs"+i);
+      assertEquals(i < 2 ? "new" : "old", outcome.getValueset().getExpansion().getContainsFirstRep().getDisplay(), "vs"+i);
+    }
+    ValueSetExpansionOutcome outcome = reloaded.getExpansion(reloaded.generateExpandToken(bad, false));
+    assertNotNull(outcome);
+    assertEquals("Unable to expand", outcome.getError());
+  }
+}
@@ -0,0 +1,183 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.convertors.txClient.TerminologyClientFactory;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.CapabilityStatement;
+import org.hl7.fhir.r5.model.Enumerations.FHIRVersion;
+import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.r5.model.TerminologyCapabilities;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.terminologies.client.ITerminologyClient;
+import org.hl7.fhir.r5.terminologies.expansion.ValueSetExpansionOutcome;
+import org.hl7.fhir.r5.terminologies.utilities.TerminologyServiceErrorClass;
+import org.junit.jupiter.api.Test;
+
+public class TerminologyPrefetcherTests {
+
+  private static final String SERVER = "http://tx.example.org/fhir";
+  private static final String SYSTEM = "http://example.org/fhir/CodeSystem/stub";
+
+  private ValueSet vs(String id, String version) {
+    ValueSet vs = new ValueSet();
+    vs.setId(id);
+    vs.setUrl("http://example.org/fhir/ValueSet/"+id);
+    vs.setVersion(version);
+    vs.getCompose().addInclude().setSystem(SYSTEM);
+    return vs;
+  }
+
+  /**
+   * a stand-in for a terminology server: it expands every value set to a single code, except for the ones
+   * whose id starts with "bad", and notes which value sets it was asked to expand
+   */
+  private ITerminologyClient stubServer(Set<String> asked) {
+    return (ITerminologyClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ITerminologyClient.class }, (proxy, method, args) -> {
+      switch (method.getName()) {
+      case "expandValueset":
+        ValueSet src = (ValueSet) args[0];
+        asked.add(src.getId());
+        if (src.getId().startsWith("bad")) {
+          throw new FHIRException("Unable to expand "+src.getId());
+        }
+        ValueSet exp = src.copy();
+        exp.getExpansion().setIdentifier("urn:uuid:"+src.getId()).setTimestamp(new Date());
+        exp.getExpansion().addContains().setSystem(SYSTEM).setCode("a");
+        return exp;
+      case "getAddress":
+        return SERVER;
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return "stub terminology server";
+      }
+      Class<?> t = method.getReturnType();
+      if (t == CapabilityStatement.class) {
+        CapabilityStatement cs = new CapabilityStatement();
+        cs.getSoftware().setName("stub").setVersion("1.0.0");
+        cs.setFhirVersion(FHIRVersion._5_0_0);
+        return cs;
+      } else if (t == TerminologyCapabilities.class) {
+        TerminologyCapabilities tc = new TerminologyCapabilities();
+        tc.addCodeSystem().setUri(SYSTEM);
+        return tc;
+      } else if (t == Parameters.class) {
+        return new Parameters();
+      } else if (t == String.class) {
+        return "5.0.0";
+      } else if (t.isInstance(proxy)) {
+        return proxy;
+      } else if (t == boolean.class) {
+        return false;
+      } else if (t == int.class) {
+        return 0;
+      } else if (t == long.class) {
+        return 0L;
+      } else {
+        return null;
+      }
+    });
+  }
+
+  @Test
+  public void testEachExpansionOnce() throws Exception {
+    TerminologyPrefetcher tp = new TerminologyPrefetcher(1);
+    tp.seeExpansion(vs("a", "1.0"));
+    tp.seeExpansion(vs("b", "1.0"));
+    tp.seeExpansion(vs("a", "1.0"));
+    tp.seeExpansion(vs("a", "2.0"));
+    assertEquals(3, tp.count());
+
+    List<String> seen = new CopyOnWriteArrayList<>();
+    tp.expand(vs -> {
+      seen.add(vs.getVersionedUrl());
+      return new ValueSetExpansionOutcome(vs);
+    });
+    assertEquals(List.of("http://example.org/fhir/ValueSet/a|1.0", "http://example.org/fhir/ValueSet/b|1.0", "http://example.org/fhir/ValueSet/a|2.0"), seen);
+  }
+
+  @Test
+  public void testBoundedInFlight() throws Exception {
+    TerminologyPrefetcher tp = new TerminologyPrefetcher(3);
+    for (int i = 0; i < 20; i++) {
+      tp.seeExpansion(vs("vs"+i, "1.0"));
+    }
+    // a stand-in for the terminology server, that notes how many requests are waiting on it at once
+    AtomicInteger current = new AtomicInteger();
+    AtomicInteger most = new AtomicInteger();
+    AtomicInteger done = new AtomicInteger();
+    tp.expand(vs -> {
+      most.accumulateAndGet(current.incrementAndGet(), Math::max);
+      Thread.sleep(20);
+      current.decrementAndGet();
+      done.incrementAndGet();
+      return new ValueSetExpansionOutcome(vs);
+    });
+    assertEquals(20, done.get());
+    assertTrue(most.get() <= 3);
+    assertTrue(most.get() > 1);
+  }
+
+  @Test
+  public void testFailuresDontStopTheRest() throws Exception {
+    TerminologyPrefetcher tp = new TerminologyPrefetcher(2);
+    for (int i = 0; i < 5; i++) {
+      tp.seeExpansion(vs("vs"+i, "1.0"));
+    }
+    AtomicInteger done = new AtomicInteger();
+    tp.expand(vs -> {
+      if (vs.getId().equals("vs2")) {
+        throw new Exception("server said no");
+      }
+      done.incrementAndGet();
+      if (vs.getId().equals("vs3")) {
+        return new ValueSetExpansionOutcome("server said no", TerminologyServiceErrorClass.UNKNOWN, false);
+      }
+      return new ValueSetExpansionOutcome(vs);
+    });
+    assertEquals(4, done.get());
+    assertEquals(2, tp.failures());
+  }
+
+  @Test
+  public void testExpandThroughContext() throws Exception {
+    File cache = Files.createTempDirectory("tx-prefetch").toFile();
+    SimpleWorkerContext context = new SimpleWorkerContext.SimpleWorkerContextBuilder().withTerminologyCachePath(cache.getAbsolutePath()).fromNothing();
+    context.setExpansionParameters(new Parameters());
+    Set<String> asked = ConcurrentHashMap.newKeySet();
+    context.connectToTSServer(new TerminologyClientFactory("5.0.0"), stubServer(asked));
+
+    TerminologyPrefetcher tp = new TerminologyPrefetcher(3);
+    for (int i = 0; i < 6; i++) {
+      tp.seeExpansion(vs("vs"+i, "1.0"));
+    }
+    tp.seeExpansion(vs("bad", "1.0"));
+    tp.expand(vs -> context.expandVS(vs, true, true, true));
+
+    // the server is asked once for each value set, and the one it can't expand comes back as a failed outcome, not an exception
+    assertEquals(7, asked.size());
+    assertEquals(1, tp.failures());
+
+    // when the publisher gets to rendering, the expansion is already in the terminology cache
+    asked.clear();
+    ValueSetExpansionOutcome outcome = context.expandVS(vs("vs3", "1.0"), true, true, true);
+    assertTrue(outcome.getError() == null);
+    assertEquals(1, outcome.getValueset().getExpansion().getContains().size());
+    assertTrue(asked.isEmpty());
+  }
+}
@@ -1,6 +1,7 @@
 package tests;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.io.IOException;
 
@@ -23,6 +24,20 @@ public class XSLTransformerTest {
         assertArrayEquals(actual, expected);
     }
 
+    @Test
+    public void testCompiledOnce() throws IOException, TransformerException {
+        byte[] source = getLineSeparatorNormalizedBytes("/xslt/unicom-index.xml");
+        byte[] transform = getLineSeparatorNormalizedBytes("/xslt/unicom-transform.xslt");
+        byte[] expected = getLineSeparatorNormalizedBytes("/xslt/unicom-expected.xml");
+
+        // the second and later transforms use the stylesheet compiled by the first
+        XSLTransformer transformer = new XSLTransformer(false);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(expected, transformer.transform(source, transform));
+        }
+        assertEquals(1, transformer.getCompileCount());
+    }
+
     private byte[] getLineSeparatorNormalizedBytes(String fileName) throws IOException {
         return new String(IOUtils.toByteArray(this.getClass().getResource(fileName))).replace(System.lineSeparator(), "\n").getBytes();
     }